@@ -1,17 +1,54 @@
 package Bank;
 
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 /**
  * Represents a bank account with features like deposit, withdraw, and transaction history.
+ * <p>
+ * The balance is held as a fixed-point number of minor units (pence), so it never loses
+ * fractions of a penny to floating-point rounding. It shares one word with the closed flag and
+ * is updated with compare-and-set, so a deposit or withdrawal either lands before the account
+ * is closed, and is part of the balance the closing removes from the bank's totals, or is
+ * refused, without any lock. Recording the transaction in the history afterwards takes the
+ * history's lock for the few stores of one row.
+ * </p>
  */
 public class Account {
+
+    /**
+     * Atomic access to {@link #Balance}.
+     */
+	private static final VarHandle BALANCE;
+
+    /**
+     * The low bit of {@link #Balance}, set once the account is closed.
+     */
+	private static final long CLOSED = 1;
+
+    /**
+     * Returned by {@link #change(long, boolean)} when it refuses a change.
+     */
+	private static final long REFUSED = Long.MIN_VALUE;
+
+	static {
+		try {
+			BALANCE = MethodHandles.lookup().findVarHandle(Account.class, "Balance", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
 	
     /**
-     * A static counter to generate unique account numbers.
+     * The empty history shared by account views, which record no transactions.
      */
-	private static int AccountNumberCounter = 0;
+	private static final TransactionColumns NO_HISTORY = new TransactionColumns();
 
     /**
      * The unique account number for this account.
@@ -24,9 +61,10 @@ public class Account {
 	private Customer Owner;
 
     /**
-     * The current balance of the account.
+     * The current balance of the account in minor units, shifted left by one bit to make room
+     * for the {@link #CLOSED} flag.
      */
-	private double Balance;
+	private volatile long Balance;
 
     /**
      * The type of the account (e.g., SAVINGS, CURRENT).
@@ -34,23 +72,60 @@ public class Account {
 	private AccountType type;
 
     /**
-     * A list of transaction logs associated with this account.
+     * The transactions recorded on this account, stored in primitive columns.
      */
-	private List<TransactionLog> transactionHistory;
+	private TransactionColumns transactionHistory;
+
+    /**
+     * The totals of the bank this account is open in, or null if it is not open in a bank.
+     */
+	private volatile BankTotals totals;
+
+    /**
+     * The journal of the bank this account is open in, which records balances set directly,
+     * or null if it is not open in a journaled bank.
+     */
+	private volatile Journal journal;
 	
     /**
      * Constructs an Account with a specified owner and type.
-     * Initializes balance to 0 and increments account number counter.
+     * Initializes balance to 0 and assigns a unique account number.
      * 
      * @param Owner The customer who owns this account.
      * @param type The type of this account.
      */
 	public Account (Customer Owner, AccountType type) {
-		this.AccountNumber = AccountNumberCounter++;
+		this(IdAllocator.ACCOUNTS.nextInt(), Owner, type);
+	}
+
+    /**
+     * Constructs an Account with a known account number, as when restoring a bank.
+     * Ensures the given number is never assigned to a new account.
+     * 
+     * @param AccountNumber The account number.
+     * @param Owner The customer who owns this account.
+     * @param type The type of this account.
+     */
+	Account (int AccountNumber, Customer Owner, AccountType type) {
+		IdAllocator.ACCOUNTS.advancePast(AccountNumber);
+		this.AccountNumber = AccountNumber;
 		this.Owner = Owner;
 		this.Balance = 0;
 		this.type = type;
-		this.transactionHistory = new ArrayList<>();
+		this.transactionHistory = new TransactionColumns();
+	}
+
+    /**
+     * Constructs a view of an account whose number, type and balance are held elsewhere, as for a
+     * {@link LedgerAccount}. Reserves no account number and keeps no history.
+     * 
+     * @param AccountNumber The account number.
+     * @param type The type of this account.
+     */
+	Account (int AccountNumber, AccountType type) {
+		this.AccountNumber = AccountNumber;
+		this.type = type;
+		this.transactionHistory = NO_HISTORY;
 	}
 
     /**
@@ -63,12 +138,23 @@ public class Account {
 	}
 
     /**
-     * Sets the balance for this account.
+     * Sets the balance for this account. If the account is open in a journaled bank, the new
+     * balance is journaled and this returns once it is durable.
      * 
      * @param balance The new balance for the account.
+     * @throws java.io.UncheckedIOException If the bank's journal cannot be written.
      */
 	public void setBalance(double balance) {
-		this.Balance = balance;
+		long balanceMinorUnits = Money.toMinorUnits(balance);
+		Journal current = this.journal;
+		if (current == null) {
+			restoreBalance(balanceMinorUnits);
+			return;
+		}
+		current.commit(current.log(Journal.BALANCE_SET, this.AccountNumber, this.AccountNumber, balanceMinorUnits, () -> {
+			restoreBalance(balanceMinorUnits);
+			return true;
+		}));
 	}
 
     /**
@@ -77,7 +163,83 @@ public class Account {
      * @return The balance.
      */
 	public double getBalance () {
-		return this.Balance;
+		return Money.toMajorUnits(this.Balance >> 1);
+	}
+
+    /**
+     * Returns the balance of this account in minor units.
+     * 
+     * @return The balance in minor units.
+     */
+	public long getBalanceMinorUnits () {
+		return this.Balance >> 1;
+	}
+
+    /**
+     * Atomically adds an amount to the balance without recording a transaction.
+     * 
+     * @param amountMinorUnits The amount to add, in minor units.
+     * @return The balance after the addition, in minor units.
+     */
+	public long credit(long amountMinorUnits) {
+		return change(amountMinorUnits, false);
+	}
+
+    /**
+     * Atomically subtracts an amount from the balance if the balance covers it,
+     * without recording a transaction.
+     * 
+     * @param amountMinorUnits The amount to subtract, in minor units.
+     * @return true if the balance covered the amount and was reduced, false otherwise.
+     */
+	public boolean tryDebit(long amountMinorUnits) {
+		return change(-amountMinorUnits, false) != REFUSED;
+	}
+
+    /**
+     * Atomically adds an amount to the balance unless the account is closed.
+     * 
+     * @param amountMinorUnits The amount to add, in minor units.
+     * @return true if the account was open and the balance was increased, false otherwise.
+     */
+	boolean creditIfOpen(long amountMinorUnits) {
+		return change(amountMinorUnits, true) != REFUSED;
+	}
+
+    /**
+     * Atomically subtracts an amount from the balance unless the account is closed or the
+     * balance does not cover it.
+     * 
+     * @param amountMinorUnits The amount to subtract, in minor units.
+     * @return true if the account was open and the balance was reduced, false otherwise.
+     */
+	boolean debitIfOpen(long amountMinorUnits) {
+		return change(-amountMinorUnits, true) != REFUSED;
+	}
+
+    /**
+     * Adds an amount, which may be negative, to the balance with compare-and-set, unless that
+     * would take the balance below zero or the account is closed and {@code onlyIfOpen} is set.
+     * The change is reported to the bank's totals only if the account was open when it was made,
+     * and so is part of the balance {@link #close()} captures.
+     * 
+     * @return The balance after the change, or {@link #REFUSED}.
+     */
+	private long change(long deltaMinorUnits, boolean onlyIfOpen) {
+		BankTotals current = this.totals;
+		long word = this.Balance;
+		while (true) {
+			boolean closed = (word & CLOSED) != 0;
+			if ((closed && onlyIfOpen) || (deltaMinorUnits < 0 && (word >> 1) < -deltaMinorUnits)) {
+				return REFUSED;
+			}
+			long witness = (long) BALANCE.compareAndExchange(this, word, word + (deltaMinorUnits << 1));
+			if (witness == word) {
+				balanceChanged(closed ? null : current, deltaMinorUnits);
+				return (word >> 1) + deltaMinorUnits;
+			}
+			word = witness;
+		}
 	}
 
     /**
@@ -115,11 +277,45 @@ public class Account {
      * @return true if deposit was successful, false otherwise.
      */
 	public boolean deposit(double deposit) {
-        if (deposit <= 0) {
+        return depositMinorUnits(Money.toMinorUnits(deposit));
+    }
+
+    /**
+     * Attempts to deposit a specified amount of minor units to the account.
+     * Adds a transaction log if successful.
+     * 
+     * @param amountMinorUnits The amount to deposit, in minor units.
+     * @return true if deposit was successful, false otherwise.
+     */
+	public boolean depositMinorUnits(long amountMinorUnits) {
+        return depositMinorUnits(amountMinorUnits, System.currentTimeMillis());
+    }
+
+    /**
+     * Deposits minor units, recording the transaction at the given time, as when replaying a journal.
+     * 
+     * @param amountMinorUnits The amount to deposit, in minor units.
+     * @param timestamp The time of the deposit in milliseconds since the epoch.
+     * @return true if deposit was successful, false otherwise.
+     */
+	boolean depositMinorUnits(long amountMinorUnits, long timestamp) {
+        return depositMinorUnits(amountMinorUnits, timestamp, TransactionLog.nextTransactionId());
+    }
+
+    /**
+     * Deposits minor units, recording the transaction at the given time under the given ID, as
+     * when the ID must be journaled with the deposit or a journal is replayed.
+     * 
+     * @param amountMinorUnits The amount to deposit, in minor units.
+     * @param timestamp The time of the deposit in milliseconds since the epoch.
+     * @param transactionId The ID of the transaction.
+     * @return true if deposit was successful, false otherwise.
+     */
+	boolean depositMinorUnits(long amountMinorUnits, long timestamp, long transactionId) {
+        if (amountMinorUnits <= 0 || !creditIfOpen(amountMinorUnits)) {
             return false;
         }
-        Balance += deposit;
-        transactionHistory.add(new TransactionLog(this, deposit, TransactionType.DEPOSIT));
+        recordTransaction(amountMinorUnits, TransactionType.DEPOSIT, timestamp, transactionId);
         return true;
     }
 
@@ -131,36 +327,291 @@ public class Account {
      * @return true if withdrawal was successful, false otherwise.
      */
 	public boolean withdraw(double withdrawAmount) {
-        if (withdrawAmount < 0 || this.Balance < withdrawAmount) {
+        return withdrawMinorUnits(Money.toMinorUnits(withdrawAmount));
+    }
+
+    /**
+     * Attempts to withdraw a specified amount of minor units from the account.
+     * Adds a transaction log if successful.
+     * 
+     * @param amountMinorUnits The amount to withdraw, in minor units.
+     * @return true if withdrawal was successful, false otherwise.
+     */
+	public boolean withdrawMinorUnits(long amountMinorUnits) {
+        return withdrawMinorUnits(amountMinorUnits, System.currentTimeMillis());
+    }
+
+    /**
+     * Withdraws minor units, recording the transaction at the given time, as when replaying a journal.
+     * 
+     * @param amountMinorUnits The amount to withdraw, in minor units.
+     * @param timestamp The time of the withdrawal in milliseconds since the epoch.
+     * @return true if withdrawal was successful, false otherwise.
+     */
+	boolean withdrawMinorUnits(long amountMinorUnits, long timestamp) {
+        return withdrawMinorUnits(amountMinorUnits, timestamp, TransactionLog.nextTransactionId());
+    }
+
+    /**
+     * Withdraws minor units, recording the transaction at the given time under the given ID, as
+     * when the ID must be journaled with the withdrawal or a journal is replayed.
+     * 
+     * @param amountMinorUnits The amount to withdraw, in minor units.
+     * @param timestamp The time of the withdrawal in milliseconds since the epoch.
+     * @param transactionId The ID of the transaction.
+     * @return true if withdrawal was successful, false otherwise.
+     */
+	boolean withdrawMinorUnits(long amountMinorUnits, long timestamp, long transactionId) {
+        if (amountMinorUnits <= 0 || !debitIfOpen(amountMinorUnits)) {
             return false;
         }
-        Balance -= withdrawAmount;
-        transactionHistory.add(new TransactionLog(this, withdrawAmount, TransactionType.WITHDRAW));
+        recordTransaction(amountMinorUnits, TransactionType.WITHDRAW, timestamp, transactionId);
         return true;
     }
 
+    /**
+     * Sends minor units out of this account as one leg of a transfer, recording the transaction at the given time.
+     * 
+     * @param amountMinorUnits The amount to send, in minor units.
+     * @param timestamp The time of the transfer in milliseconds since the epoch.
+     * @param transactionId The ID of this leg's transaction.
+     * @return true if the balance covered the amount and was reduced, false otherwise.
+     */
+	boolean transferOutMinorUnits(long amountMinorUnits, long timestamp, long transactionId) {
+        if (amountMinorUnits <= 0 || !debitIfOpen(amountMinorUnits)) {
+            return false;
+        }
+        recordTransaction(amountMinorUnits, TransactionType.TRANSFER_OUT, timestamp, transactionId);
+        return true;
+    }
+
+    /**
+     * Receives minor units into this account as one leg of a transfer, recording the transaction at the given time.
+     * 
+     * @param amountMinorUnits The amount to receive, in minor units.
+     * @param timestamp The time of the transfer in milliseconds since the epoch.
+     * @param transactionId The ID of this leg's transaction.
+     */
+	void transferInMinorUnits(long amountMinorUnits, long timestamp, long transactionId) {
+        credit(amountMinorUnits);
+        recordTransaction(amountMinorUnits, TransactionType.TRANSFER_IN, timestamp, transactionId);
+    }
+
+    /**
+     * Records a transaction applied to the balance in this account's history.
+     * 
+     * @param amountMinorUnits The amount of the transaction in minor units.
+     * @param type The type of the transaction.
+     * @param timestamp The time of the transaction in milliseconds since the epoch.
+     * @param transactionId The ID of the transaction.
+     */
+	void recordTransaction(long amountMinorUnits, TransactionType type, long timestamp, long transactionId) {
+		transactionHistory.append(transactionId, amountMinorUnits, type, timestamp);
+	}
+
+    /**
+     * Restores the balance, as when loading a snapshot.
+     * 
+     * @param balanceMinorUnits The balance in minor units.
+     */
+	void restoreBalance(long balanceMinorUnits) {
+		BankTotals current = this.totals;
+		long word = this.Balance;
+		while (true) {
+			long witness = (long) BALANCE.compareAndExchange(this, word, balanceMinorUnits << 1 | (word & CLOSED));
+			if (witness == word) {
+				balanceChanged((word & CLOSED) != 0 ? null : current, balanceMinorUnits - (word >> 1));
+				return;
+			}
+			word = witness;
+		}
+	}
+
+    /**
+     * Starts reporting this account's balance to the totals of the bank it has been opened in,
+     * and adds it to the owner's net worth.
+     * 
+     * @param totals The bank's totals.
+     * @param journal The bank's journal, or null if the bank is not journaled.
+     */
+	void attach(BankTotals totals, Journal journal) {
+		this.journal = journal;
+		this.totals = totals;
+		long balance = this.Balance >> 1;
+		totals.opened(this.type, balance);
+		if (this.Owner != null) {
+			this.Owner.addNetWorth(balance);
+		}
+	}
+
+    /**
+     * Stops reporting this account's balance to its bank's totals after it has been closed, and
+     * removes it from the owner's net worth. Every change made while the account was open has
+     * been or will be reported to the totals and is part of the closing balance, and no later
+     * change is reported, so the totals end up without the account whatever the interleaving.
+     * 
+     * @param closingBalanceMinorUnits The balance {@link #close()} returned.
+     */
+	void detach(long closingBalanceMinorUnits) {
+		BankTotals current = this.totals;
+		if (current == null) {
+			return;
+		}
+		this.totals = null;
+		this.journal = null;
+		current.closed(this.type, closingBalanceMinorUnits);
+		if (this.Owner != null) {
+			this.Owner.addNetWorth(-closingBalanceMinorUnits);
+		}
+	}
+
+    /**
+     * Reports a balance change to the given bank totals, if any, and the owner's net worth, then
+     * tells the owner that one of its balances changed, after the change is visible.
+     */
+	private void balanceChanged(BankTotals current, long deltaMinorUnits) {
+		if (current != null && deltaMinorUnits != 0) {
+			current.add(this.type, deltaMinorUnits);
+			if (this.Owner != null) {
+				this.Owner.addNetWorth(deltaMinorUnits);
+			}
+		}
+		if (this.Owner != null) {
+			this.Owner.changed();
+		}
+	}
+
+    /**
+     * Returns whether this account has been closed.
+     * A closed account no longer accepts deposits, withdrawals or transfers.
+     * 
+     * @return true if the account is closed, false otherwise.
+     */
+	public boolean isClosed() {
+		return (this.Balance & CLOSED) != 0;
+	}
+
+    /**
+     * Marks this account as closed, in the same compare-and-set as the balance, so every deposit
+     * and withdrawal either lands in the returned balance or is refused.
+     * 
+     * @return The balance at the moment of closing, in minor units.
+     */
+	long close() {
+		long word = (long) BALANCE.getAndBitwiseOr(this, CLOSED);
+		return word >> 1;
+	}
+
     /**
      * Returns the transaction history of this account.
+     * The list is a read-only view of the recorded transactions, oldest first;
+     * each transaction log is materialized when it is accessed.
      * 
      * @return A list of transaction logs.
      */
 	public List<TransactionLog> getTransactionHistory() {
+		return new AbstractList<TransactionLog>() {
+			@Override
+			public TransactionLog get(int index) {
+				return transactionHistory.get(Account.this, index);
+			}
+
+			@Override
+			public int size() {
+				return transactionHistory.size();
+			}
+		};
+	}
+
+    /**
+     * Returns the transactions made on this account at or after {@code from} and before {@code to},
+     * oldest first. The range is found by binary search over the time-ordered history, so only the
+     * matching transactions are read.
+     * 
+     * @param from The start of the range, inclusive.
+     * @param to The end of the range, exclusive.
+     * @return A list of transaction logs.
+     * @throws IllegalArgumentException If either end of the range is null.
+     */
+	public List<TransactionLog> getTransactionHistory(Date from, Date to) {
+		if (from == null || to == null) {
+			throw new IllegalArgumentException("Range must not be null");
+		}
+		int first = transactionHistory.firstRowAtOrAfter(from.getTime());
+		int end = transactionHistory.firstRowAtOrAfter(to.getTime());
+		List<TransactionLog> transactions = new ArrayList<>(Math.max(0, end - first));
+		for (int row = first; row < end; row++) {
+			transactions.add(transactionHistory.get(this, row));
+		}
+		return transactions;
+	}
+
+    /**
+     * Returns the balance of this account as of the given time, reconstructed from its transaction
+     * history: the sum of every deposit, withdrawal and transfer made at or before that time.
+     * The history keeps periodic balance checkpoints, so the cost does not grow with the age of the
+     * account. Balance changes made outside recorded transactions, through {@link #setBalance(double)},
+     * {@link #credit(long)} or {@link #tryDebit(long)}, are not reflected.
+     * 
+     * @param when The time to reconstruct the balance at.
+     * @return The balance at that time.
+     */
+	public double getBalanceAsOf(Date when) {
+		return Money.toMajorUnits(getBalanceMinorUnitsAsOf(when));
+	}
+
+    /**
+     * Returns the balance of this account as of the given time in minor units.
+     * 
+     * @param when The time to reconstruct the balance at.
+     * @return The balance at that time, in minor units.
+     * @see #getBalanceAsOf(Date)
+     */
+	public long getBalanceMinorUnitsAsOf(Date when) {
+		return transactionHistory.balanceAsOf(when.getTime());
+	}
+
+    /**
+     * Returns the columnar store holding this account's transactions.
+     * 
+     * @return The transaction store.
+     */
+	TransactionColumns getTransactionColumns() {
 		return this.transactionHistory;
 	}
 
+    /**
+     * Writes this account's details to the given destination without building intermediate strings.
+     * 
+     * @param out The destination.
+     * @throws IOException If the destination cannot be written.
+     */
+	public void appendTo (Appendable out) throws IOException {
+		out.append("Account details: \n");
+		Report.appendNumber(out.append("Account No: "), getAccountNumber()).append('\n');
+		out.append("Name: ").append(getOwner().getName()).append('\n');
+		out.append("Address: ").append(getAddress()).append('\n');
+		Report.appendAmount(out.append("Balance: "), getBalanceMinorUnits()).append('\n');
+		out.append("Account Type: ").append(String.valueOf(getAccountType())).append('\n');
+	}
+
+    /**
+     * Writes this account's details to the given buffer as UTF-8.
+     * 
+     * @param buffer The destination buffer.
+     * @return The buffer.
+     * @throws java.nio.BufferOverflowException If the details do not fit in the buffer.
+     */
+	public ByteBuffer appendTo (ByteBuffer buffer) {
+		return Report.render(this::appendTo, buffer);
+	}
+
     /**
      * Returns a string representation of this account's details.
      * 
      * @return Account details as a string.
      */
 	public String toString () {
-		String info = "";
-		info += "Account details: " + "\n";
-		info += "Account No: " + getAccountNumber()+ "\n";
-		info += "Name: " + getOwner().getName()+ "\n";
-		info += "Address: " + getAddress() + "\n";
-		info += "Balance: " + getBalance ()+ "\n";
-		info += "Account Type: " + getAccountType()+ "\n";
-		return info;
+		return Report.render(this::appendTo);
 	}
 }
@@ -0,0 +1,204 @@
+package Bank;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency histograms and outcome counters for the operations of a {@link CentralBank}.
+ * <p>
+ * Every deposit, withdrawal, transfer, transaction history read and customer summary is timed
+ * into a fixed-size {@link LatencyHistogram} and counted by its {@link TransactionBatch} result
+ * code; operations applied through {@link CentralBank#process(TransactionBatch)} are counted but
+ * not timed individually. Recording costs two clock reads and two striped counter increments, so
+ * the metrics are always on. They can be published as an MXBean and dumped to the log periodically.
+ * </p>
+ */
+public final class BankMetrics implements BankMetricsMXBean, Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(BankMetrics.class.getName());
+
+    /**
+     * The timed operations.
+     */
+    enum Operation {
+        DEPOSIT, WITHDRAW, TRANSFER, TRANSACTION_HISTORY, CUSTOMER_SUMMARY
+    }
+
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    /** One counter per {@link TransactionBatch} result code. */
+    private static final int RESULT_CODES = TransactionBatch.INVALID_AMOUNT + 1;
+
+    private final BankTotals totals;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+    private final LongAdder[][] outcomes = new LongAdder[OPERATIONS.length][RESULT_CODES];
+
+    private ObjectName objectName;
+    private ScheduledExecutorService logScheduler;
+
+    /**
+     * Constructs empty metrics for a bank.
+     *
+     * @param totals The bank's totals, for the account count.
+     */
+    BankMetrics(BankTotals totals) {
+        this.totals = totals;
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            latencies[i] = new LatencyHistogram();
+            for (int code = 0; code < RESULT_CODES; code++) {
+                outcomes[i][code] = new LongAdder();
+            }
+        }
+    }
+
+    /**
+     * Records a timed operation.
+     *
+     * @param operation The operation.
+     * @param startNanos The {@link System#nanoTime()} at which the operation started.
+     * @param result The operation's {@link TransactionBatch} result code.
+     */
+    void record(Operation operation, long startNanos, byte result) {
+        latencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+        outcomes[operation.ordinal()][result].increment();
+    }
+
+    /**
+     * Counts an operation without timing it, as for operations applied in a batch.
+     */
+    void count(Operation operation, byte result) {
+        outcomes[operation.ordinal()][result].increment();
+    }
+
+    @Override
+    public int getAccountCount() {
+        return totals.accounts();
+    }
+
+    @Override
+    public long getTransactionCount() {
+        return outcomes[Operation.DEPOSIT.ordinal()][TransactionBatch.OK].sum()
+                + outcomes[Operation.WITHDRAW.ordinal()][TransactionBatch.OK].sum()
+                + outcomes[Operation.TRANSFER.ordinal()][TransactionBatch.OK].sum();
+    }
+
+    @Override
+    public OperationStatistics getDeposit() {
+        return statistics(Operation.DEPOSIT);
+    }
+
+    @Override
+    public OperationStatistics getWithdraw() {
+        return statistics(Operation.WITHDRAW);
+    }
+
+    @Override
+    public OperationStatistics getTransfer() {
+        return statistics(Operation.TRANSFER);
+    }
+
+    @Override
+    public OperationStatistics getTransactionHistory() {
+        return statistics(Operation.TRANSACTION_HISTORY);
+    }
+
+    @Override
+    public OperationStatistics getCustomerSummary() {
+        return statistics(Operation.CUSTOMER_SUMMARY);
+    }
+
+    /**
+     * Returns a copy of the current statistics of an operation.
+     */
+    OperationStatistics statistics(Operation operation) {
+        LatencyHistogram latency = latencies[operation.ordinal()];
+        LongAdder[] outcome = outcomes[operation.ordinal()];
+        return new OperationStatistics(latency.count(), latency.percentile(0.5), latency.percentile(0.99),
+                latency.percentile(0.999), latency.max(), outcome[TransactionBatch.OK].sum(),
+                outcome[TransactionBatch.ACCOUNT_NOT_FOUND].sum(), outcome[TransactionBatch.INSUFFICIENT_FUNDS].sum(),
+                outcome[TransactionBatch.INVALID_AMOUNT].sum());
+    }
+
+    /**
+     * Publishes these metrics on the platform MBean server under {@code Bank:type=BankMetrics,name=<name>}.
+     *
+     * @param name The name distinguishing this bank's metrics.
+     * @throws IllegalStateException If the metrics are already published or cannot be registered.
+     */
+    public synchronized void registerMBean(String name) {
+        if (objectName != null) {
+            throw new IllegalStateException("Metrics are already registered as " + objectName);
+        }
+        try {
+            ObjectName registered = new ObjectName("Bank:type=BankMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, registered);
+            objectName = registered;
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register metrics", e);
+        }
+    }
+
+    /**
+     * Starts writing every operation's statistics to the log at a fixed interval on a background thread.
+     *
+     * @param period The interval between dumps.
+     * @param unit The unit of the interval.
+     * @throws IllegalStateException If periodic logging is already scheduled.
+     */
+    public synchronized void scheduleLogging(long period, TimeUnit unit) {
+        if (logScheduler != null) {
+            throw new IllegalStateException("Metrics logging is already scheduled");
+        }
+        logScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bank-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        logScheduler.scheduleAtFixedRate(this::log, period, period, unit);
+    }
+
+    /**
+     * Writes every operation's statistics, the account count and the transaction count to the log.
+     */
+    public void log() {
+        if (!LOGGER.isLoggable(Level.INFO)) {
+            return;
+        }
+        StringBuilder dump = new StringBuilder("Bank metrics: accounts=").append(getAccountCount())
+                .append(" transactions=").append(getTransactionCount());
+        for (Operation operation : OPERATIONS) {
+            dump.append("\n  ").append(operation.name().toLowerCase()).append(": ").append(statistics(operation));
+        }
+        LOGGER.info(dump.toString());
+    }
+
+    /**
+     * Stops periodic logging and withdraws the metrics from the MBean server.
+     */
+    @Override
+    public synchronized void close() {
+        if (logScheduler != null) {
+            logScheduler.shutdownNow();
+            logScheduler = null;
+        }
+        if (objectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.unregisterMBean(objectName);
+            } catch (JMException e) {
+                LOGGER.log(Level.WARNING, "Cannot unregister metrics", e);
+            }
+            objectName = null;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package Bank;
+
+/**
+ * The management interface through which a {@link BankMetrics} is published over JMX.
+ * Each operation's statistics appear as a composite attribute.
+ */
+public interface BankMetricsMXBean {
+
+    /** Returns the number of open accounts. */
+    int getAccountCount();
+
+    /** Returns the number of successful deposits, withdrawals and transfers. */
+    long getTransactionCount();
+
+    /** Returns the statistics of deposits. */
+    OperationStatistics getDeposit();
+
+    /** Returns the statistics of withdrawals. */
+    OperationStatistics getWithdraw();
+
+    /** Returns the statistics of transfers. */
+    OperationStatistics getTransfer();
+
+    /** Returns the statistics of transaction history reads. */
+    OperationStatistics getTransactionHistory();
+
+    /** Returns the statistics of customer summaries. */
+    OperationStatistics getCustomerSummary();
+}
@@ -0,0 +1,595 @@
+package Bank;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Applies every mutation of a {@link CentralBank} on one writer thread, in the order the
+ * mutations were submitted.
+ * <p>
+ * Callers publish deposits, withdrawals, transfers, batches, account and customer changes
+ * into a pre-allocated ring of events and either wait for the result or pass a callback.
+ * The writer thread drains every published event at once, applies them in sequence order and
+ * commits the bank's journal once for the whole run before completing them, so the journal
+ * holds the mutations in exactly the order they were sequenced and concurrent callers share
+ * fsyncs. Since only the writer thread mutates the bank, its account locks are never contended.
+ * </p>
+ * <p>
+ * Callbacks run on the writer thread; they must return quickly and must not wait on the
+ * sequencer themselves. Reads such as account lookups and summaries go to the bank directly.
+ * </p>
+ */
+public class BankSequencer implements Transactable, Closeable {
+
+    private static final byte DEPOSIT = 0;
+    private static final byte WITHDRAW = 1;
+    private static final byte TRANSFER = 2;
+    private static final byte PROCESS = 3;
+    private static final byte CREATE_ACCOUNT = 4;
+    private static final byte CLOSE_ACCOUNT = 5;
+    private static final byte ADD_CUSTOMER = 6;
+    private static final byte REMOVE_CUSTOMER = 7;
+
+    /** Added to the next sequence on close, so that any later claim is recognised and refused. */
+    private static final long CLOSED = 1L << 62;
+
+    /** The number of times a waiting thread spins before parking. */
+    private static final int SPINS = 256;
+
+    private static final Logger LOGGER = Logger.getLogger(BankSequencer.class.getName());
+
+    private final CentralBank bank;
+    private final Event[] ring;
+    private final int mask;
+    private final Thread writer;
+    private final ThreadLocal<Waiter> waiters = ThreadLocal.withInitial(Waiter::new);
+
+    /** Arrays the writer resolves each batch's accounts into. */
+    private final CentralBank.BatchScratch scratch = new CentralBank.BatchScratch();
+
+    /** The next sequence to be claimed by a publisher. */
+    private final AtomicLong next = new AtomicLong();
+
+    /** The last sequence applied and completed by the writer, after which its slot may be reused. */
+    private volatile long completed = -1;
+
+    /** The first sequence refused after close, or -1 while the sequencer is open. */
+    private volatile long end = -1;
+
+    /** Whether the writer is parked waiting for events. */
+    private volatile boolean writerParked;
+
+    /**
+     * Starts a sequencer applying mutations to the given bank.
+     *
+     * @param bank The bank to mutate.
+     * @param ringSize The number of events that may be awaiting the writer; rounded up to a power of two.
+     */
+    public BankSequencer(CentralBank bank, int ringSize) {
+        if (ringSize <= 0 || ringSize > 1 << 30) {
+            throw new IllegalArgumentException("Ring size must be between 1 and 2^30: " + ringSize);
+        }
+        int capacity = 1;
+        while (capacity < ringSize) {
+            capacity <<= 1;
+        }
+        this.bank = bank;
+        this.ring = new Event[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Event();
+        }
+        this.mask = capacity - 1;
+        this.writer = new Thread(this::run, "bank-sequencer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Deposits a specified amount into a given account, waiting for the writer to apply it.
+     *
+     * @param account The account to deposit to.
+     * @param amount The amount to be deposited.
+     * @return true if deposit is successful, false otherwise.
+     */
+    @Override
+    public boolean deposit(Account account, double amount) {
+        return await(publish(DEPOSIT, account, null, null, null, amount, null)).succeeded;
+    }
+
+    /**
+     * Deposits a specified amount into a given account, reporting the result to a callback.
+     *
+     * @param account The account to deposit to.
+     * @param amount The amount to be deposited.
+     * @param onComplete Receives true if deposit is successful, false otherwise.
+     */
+    public void deposit(Account account, double amount, Consumer<Boolean> onComplete) {
+        Event event = publish(DEPOSIT, account, null, null, null, amount, null);
+        event.callback = onComplete;
+        release(event);
+    }
+
+    /**
+     * Deposits a specified amount into a given account once per idempotency key, waiting for
+     * the writer to apply it. A retry carrying the key of a request seen in the last day
+     * returns the original outcome.
+     *
+     * @param account The account to deposit to.
+     * @param amount The amount to be deposited.
+     * @param idempotencyKey The key identifying the request, the same for every retry.
+     * @return true if the deposit, now or originally, is successful, false otherwise.
+     * @throws IllegalArgumentException If the key was used for a different request.
+     */
+    @Override
+    public boolean deposit(Account account, double amount, long idempotencyKey) {
+        return awaitKeyed(publish(DEPOSIT, account, null, null, null, amount, null), idempotencyKey);
+    }
+
+    /**
+     * Withdraws a specified amount from a given account, waiting for the writer to apply it.
+     *
+     * @param account The account to withdraw from.
+     * @param amount The amount to be withdrawn.
+     * @return true if withdrawal is successful, false otherwise.
+     */
+    @Override
+    public boolean withdraw(Account account, double amount) {
+        return await(publish(WITHDRAW, account, null, null, null, amount, null)).succeeded;
+    }
+
+    /**
+     * Withdraws a specified amount from a given account, reporting the result to a callback.
+     *
+     * @param account The account to withdraw from.
+     * @param amount The amount to be withdrawn.
+     * @param onComplete Receives true if withdrawal is successful, false otherwise.
+     */
+    public void withdraw(Account account, double amount, Consumer<Boolean> onComplete) {
+        Event event = publish(WITHDRAW, account, null, null, null, amount, null);
+        event.callback = onComplete;
+        release(event);
+    }
+
+    /**
+     * Withdraws a specified amount from a given account once per idempotency key, waiting for
+     * the writer to apply it. A retry carrying the key of a request seen in the last day
+     * returns the original outcome.
+     *
+     * @param account The account to withdraw from.
+     * @param amount The amount to be withdrawn.
+     * @param idempotencyKey The key identifying the request, the same for every retry.
+     * @return true if the withdrawal, now or originally, is successful, false otherwise.
+     * @throws IllegalArgumentException If the key was used for a different request.
+     */
+    @Override
+    public boolean withdraw(Account account, double amount, long idempotencyKey) {
+        return awaitKeyed(publish(WITHDRAW, account, null, null, null, amount, null), idempotencyKey);
+    }
+
+    /**
+     * Transfers a specified amount from one account to another, waiting for the writer to apply it.
+     *
+     * @param fromAccount The account to transfer from.
+     * @param toAccount The account to transfer to.
+     * @param amount The amount to be transferred.
+     * @return true if transfer is successful, false otherwise.
+     */
+    @Override
+    public boolean transfer(Account fromAccount, Account toAccount, double amount) {
+        return await(publish(TRANSFER, fromAccount, toAccount, null, null, amount, null)).succeeded;
+    }
+
+    /**
+     * Transfers a specified amount from one account to another, reporting the result to a callback.
+     *
+     * @param fromAccount The account to transfer from.
+     * @param toAccount The account to transfer to.
+     * @param amount The amount to be transferred.
+     * @param onComplete Receives true if transfer is successful, false otherwise.
+     */
+    public void transfer(Account fromAccount, Account toAccount, double amount, Consumer<Boolean> onComplete) {
+        Event event = publish(TRANSFER, fromAccount, toAccount, null, null, amount, null);
+        event.callback = onComplete;
+        release(event);
+    }
+
+    /**
+     * Transfers a specified amount from one account to another once per idempotency key,
+     * waiting for the writer to apply it. A retry carrying the key of a request seen in the
+     * last day returns the original outcome.
+     *
+     * @param fromAccount The account to transfer from.
+     * @param toAccount The account to transfer to.
+     * @param amount The amount to be transferred.
+     * @param idempotencyKey The key identifying the request, the same for every retry.
+     * @return true if the transfer, now or originally, is successful, false otherwise.
+     * @throws IllegalArgumentException If the key was used for a different request.
+     */
+    @Override
+    public boolean transfer(Account fromAccount, Account toAccount, double amount, long idempotencyKey) {
+        return awaitKeyed(publish(TRANSFER, fromAccount, toAccount, null, null, amount, null), idempotencyKey);
+    }
+
+    /**
+     * Applies a batch of operations as one event, waiting for the writer to apply it. The batch
+     * is made durable by the same journal commit as the rest of the writer's run.
+     *
+     * @param batch The operations to apply.
+     * @return One {@link TransactionBatch} result code per operation, or null if the batch is null
+     *         or could not be applied or made durable.
+     */
+    @Override
+    public byte[] process(TransactionBatch batch) {
+        return await(publish(PROCESS, null, null, null, null, 0, batch)).results;
+    }
+
+    /**
+     * Creates a new account for a given customer and account type, waiting for the writer to apply it.
+     *
+     * @param customer The customer for whom the account should be created.
+     * @param accountType The type of account to be created.
+     * @return The new account, or null if account creation failed.
+     */
+    public Account createAccount(Customer customer, AccountType accountType) {
+        return await(publish(CREATE_ACCOUNT, null, null, customer, accountType, 0, null)).account;
+    }
+
+    /**
+     * Creates a new account for a given customer and account type, reporting the result to a callback.
+     *
+     * @param customer The customer for whom the account should be created.
+     * @param accountType The type of account to be created.
+     * @param onComplete Receives the new account, or null if account creation failed.
+     */
+    public void createAccount(Customer customer, AccountType accountType, Consumer<Account> onComplete) {
+        Event event = publish(CREATE_ACCOUNT, null, null, customer, accountType, 0, null);
+        event.accountCallback = onComplete;
+        release(event);
+    }
+
+    /**
+     * Closes an account associated with a given customer, waiting for the writer to apply it.
+     *
+     * @param customer The customer who owns the account.
+     * @param account The account to be closed.
+     * @return true if account closure is successful, false otherwise.
+     */
+    public boolean closeAccount(Customer customer, Account account) {
+        return await(publish(CLOSE_ACCOUNT, account, null, customer, null, 0, null)).succeeded;
+    }
+
+    /**
+     * Closes an account associated with a given customer, reporting the result to a callback.
+     *
+     * @param customer The customer who owns the account.
+     * @param account The account to be closed.
+     * @param onComplete Receives true if account closure is successful, false otherwise.
+     */
+    public void closeAccount(Customer customer, Account account, Consumer<Boolean> onComplete) {
+        Event event = publish(CLOSE_ACCOUNT, account, null, customer, null, 0, null);
+        event.callback = onComplete;
+        release(event);
+    }
+
+    /**
+     * Adds a new customer to the bank, waiting for the writer to apply it.
+     *
+     * @param customer The customer to be added.
+     * @return true if customer is added successfully, false otherwise.
+     */
+    public boolean addCustomer(Customer customer) {
+        return await(publish(ADD_CUSTOMER, null, null, customer, null, 0, null)).succeeded;
+    }
+
+    /**
+     * Adds a new customer to the bank, reporting the result to a callback.
+     *
+     * @param customer The customer to be added.
+     * @param onComplete Receives true if customer is added successfully, false otherwise.
+     */
+    public void addCustomer(Customer customer, Consumer<Boolean> onComplete) {
+        Event event = publish(ADD_CUSTOMER, null, null, customer, null, 0, null);
+        event.callback = onComplete;
+        release(event);
+    }
+
+    /**
+     * Removes an existing customer from the bank, waiting for the writer to apply it.
+     *
+     * @param customer The customer to be removed.
+     * @return true if customer is removed successfully, false otherwise.
+     */
+    public boolean removeCustomer(Customer customer) {
+        return await(publish(REMOVE_CUSTOMER, null, null, customer, null, 0, null)).succeeded;
+    }
+
+    /**
+     * Removes an existing customer from the bank, reporting the result to a callback.
+     *
+     * @param customer The customer to be removed.
+     * @param onComplete Receives true if customer is removed successfully, false otherwise.
+     */
+    public void removeCustomer(Customer customer, Consumer<Boolean> onComplete) {
+        Event event = publish(REMOVE_CUSTOMER, null, null, customer, null, 0, null);
+        event.callback = onComplete;
+        release(event);
+    }
+
+    /**
+     * Stops accepting mutations and waits for the writer to apply every mutation already submitted.
+     * The bank is left open.
+     */
+    @Override
+    public void close() {
+        long sequence = next.getAndAdd(CLOSED);
+        if (sequence < CLOSED) {
+            end = sequence;
+            LockSupport.unpark(writer);
+        }
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Claims the next slot of the ring and fills it. The caller then sets the completion and calls
+     * {@link #release(Event)}, which makes the event visible to the writer.
+     */
+    private Event publish(byte operation, Account account, Account toAccount, Customer customer,
+            AccountType accountType, double amount, TransactionBatch batch) {
+        long sequence = next.getAndIncrement();
+        if (sequence >= CLOSED) {
+            throw new IllegalStateException("The sequencer is closed");
+        }
+        int spins = 0;
+        while (sequence - completed > mask) {
+            if (++spins < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(1_000);
+            }
+        }
+        Event event = ring[(int) sequence & mask];
+        event.operation = operation;
+        event.account = account;
+        event.toAccount = toAccount;
+        event.customer = customer;
+        event.accountType = accountType;
+        event.amount = amount;
+        event.batch = batch;
+        event.sequence = sequence;
+        return event;
+    }
+
+    private void release(Event event) {
+        event.published = event.sequence;
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Marks a claimed event as carrying an idempotency key and waits for the writer to apply it.
+     * A key the writer rejected for having been used with a different request is rethrown here,
+     * as {@link CentralBank} throws it to its own callers.
+     */
+    private boolean awaitKeyed(Event event, long idempotencyKey) {
+        event.keyed = true;
+        event.idempotencyKey = idempotencyKey;
+        Waiter waiter = await(event);
+        if (waiter.rejection != null) {
+            IllegalArgumentException rejection = waiter.rejection;
+            waiter.rejection = null;
+            throw new IllegalArgumentException(rejection.getMessage(), rejection);
+        }
+        return waiter.succeeded;
+    }
+
+    private Waiter await(Event event) {
+        Waiter waiter = waiters.get();
+        waiter.done = false;
+        event.waiter = waiter;
+        release(event);
+        int spins = 0;
+        while (!waiter.done) {
+            if (++spins < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        return waiter;
+    }
+
+    private void run() {
+        long sequence = 0;
+        while (true) {
+            long last = sequence - 1;
+            while (ring[(int) (last + 1) & mask].published == last + 1) {
+                last++;
+            }
+            if (last >= sequence) {
+                apply(sequence, last);
+                completed = last;
+                sequence = last + 1;
+                continue;
+            }
+            long stop = end;
+            if (stop >= 0 && sequence >= stop) {
+                return;
+            }
+            // Publishers unpark the writer only when they see it parked, so the flag is raised
+            // before the slot is checked one last time.
+            writerParked = true;
+            if (ring[(int) sequence & mask].published != sequence) {
+                LockSupport.park(this);
+            }
+            writerParked = false;
+        }
+    }
+
+    /**
+     * Applies the published events in the given range, commits them with one journal flush
+     * and completes them.
+     */
+    private void apply(long first, long last) {
+        long lastTicket = 0;
+        for (long sequence = first; sequence <= last; sequence++) {
+            Event event = ring[(int) sequence & mask];
+            try {
+                event.ticket = apply(event);
+            } catch (RuntimeException e) {
+                if (event.keyed && e instanceof IllegalArgumentException) {
+                    // A reused idempotency key, which is the caller's to handle.
+                    event.rejection = (IllegalArgumentException) e;
+                } else {
+                    LOGGER.log(Level.WARNING, "Sequenced operation failed", e);
+                }
+                event.ticket = 0;
+            }
+            lastTicket = Math.max(lastTicket, event.ticket);
+        }
+        boolean durable = true;
+        if (lastTicket > 0) {
+            try {
+                durable = bank.commit(lastTicket);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Failed to commit sequenced operations", e);
+                durable = false;
+            }
+        }
+        for (long sequence = first; sequence <= last; sequence++) {
+            complete(ring[(int) sequence & mask], durable);
+        }
+    }
+
+    private long apply(Event event) {
+        if (event.keyed) {
+            return bank.applyOnce(event.idempotencyKey,
+                    IdempotencyCache.fingerprint(event.operation, event.account, event.toAccount, event.amount),
+                    () -> applyOperation(event));
+        }
+        return applyOperation(event);
+    }
+
+    private long applyOperation(Event event) {
+        switch (event.operation) {
+        case DEPOSIT:
+            return bank.applyDeposit(event.account, event.amount);
+        case WITHDRAW:
+            return bank.applyWithdraw(event.account, event.amount);
+        case TRANSFER:
+            return bank.applyTransfer(event.account, event.toAccount, event.amount);
+        case PROCESS:
+            if (event.batch == null) {
+                return 0;
+            }
+            event.results = new byte[event.batch.size()];
+            return bank.applyBatch(event.batch, event.results, scratch);
+        case CREATE_ACCOUNT:
+            if (event.customer == null || event.accountType == null) {
+                return 0;
+            }
+            event.opened = new Account(event.customer, event.accountType);
+            return bank.applyOpenAccount(event.opened);
+        case CLOSE_ACCOUNT:
+            return bank.applyCloseAccount(event.customer, event.account);
+        case ADD_CUSTOMER:
+            return bank.applyAddCustomer(event.customer);
+        default:
+            return bank.applyRemoveCustomer(event.customer);
+        }
+    }
+
+    private void complete(Event event, boolean durable) {
+        boolean succeeded = durable && event.ticket != 0;
+        Account opened = succeeded ? event.opened : null;
+        Waiter waiter = event.waiter;
+        Consumer<Boolean> callback = event.callback;
+        Consumer<Account> accountCallback = event.accountCallback;
+        byte[] results = succeeded ? event.results : null;
+        IllegalArgumentException rejection = event.rejection;
+        event.clear();
+        try {
+            if (waiter != null) {
+                waiter.succeeded = succeeded;
+                waiter.account = opened;
+                waiter.results = results;
+                waiter.rejection = rejection;
+                waiter.done = true;
+                LockSupport.unpark(waiter.thread);
+            } else if (callback != null) {
+                callback.accept(succeeded);
+            } else if (accountCallback != null) {
+                accountCallback.accept(opened);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Sequencer callback failed", e);
+        }
+    }
+
+    /**
+     * A slot of the ring. Its fields are written by the publisher that claimed it before
+     * {@link #published} is set, and read and cleared by the writer thread.
+     */
+    private static final class Event {
+        byte operation;
+        Account account;
+        Account toAccount;
+        Customer customer;
+        AccountType accountType;
+        double amount;
+        boolean keyed;
+        long idempotencyKey;
+        TransactionBatch batch;
+        Waiter waiter;
+        Consumer<Boolean> callback;
+        Consumer<Account> accountCallback;
+        long ticket;
+        Account opened;
+        byte[] results;
+        IllegalArgumentException rejection;
+        long sequence;
+        volatile long published = -1;
+
+        void clear() {
+            keyed = false;
+            account = null;
+            toAccount = null;
+            customer = null;
+            accountType = null;
+            batch = null;
+            waiter = null;
+            callback = null;
+            accountCallback = null;
+            opened = null;
+            results = null;
+            rejection = null;
+        }
+    }
+
+    /**
+     * Receives the result of the current thread's blocking call. Each thread has at most one
+     * blocking call in flight, so one waiter per thread is reused for all of them.
+     */
+    private static final class Waiter {
+        final Thread thread = Thread.currentThread();
+        boolean succeeded;
+        Account account;
+        byte[] results;
+        IllegalArgumentException rejection;
+        volatile boolean done;
+    }
+}
@@ -0,0 +1,401 @@
+package Bank;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A TCP server exposing the operations of the console application to many concurrent clients,
+ * all driving one {@link CentralBank}.
+ * <p>
+ * Clients send one request per line and receive one response line per request. Requests are:
+ * </p>
+ * <ul>
+ *     <li>ADD_CUSTOMER dd/MM/yyyy name|address &rarr; OK customerId</li>
+ *     <li>REMOVE_CUSTOMER customerId</li>
+ *     <li>DEPOSIT accountNumber amount</li>
+ *     <li>WITHDRAW accountNumber amount</li>
+ *     <li>CREATE_ACCOUNT customerId SAVINGS|CURRENT &rarr; OK accountNumber</li>
+ *     <li>CLOSE_ACCOUNT customerId accountNumber</li>
+ *     <li>TRANSFER fromAccountNumber toAccountNumber amount</li>
+ *     <li>HISTORY customerId [resumeToken [pageSize]] &rarr; OK count resumeToken hasMore,
+ *     followed by one "transactionId accountNumber type amount" line per transaction</li>
+ *     <li>SUMMARY customerId &rarr; OK lineCount, followed by the lines of the summary</li>
+ *     <li>QUIT</li>
+ * </ul>
+ * <p>
+ * An operation the bank refuses is answered with FAILED, and a malformed request with
+ * ERROR and a description. A line longer than {@value #MAX_LINE_LENGTH} characters is answered
+ * with ERROR without being read into memory past that length. A request the bank fails to apply,
+ * as when its journal can no longer be written, is also answered with ERROR, and the client
+ * cannot tell whether it was applied. Each connection is served on its own virtual thread when the
+ * runtime supports them, and on a pooled platform thread otherwise. Responses are flushed
+ * only once a client has no further requests buffered, so pipelined requests share writes.
+ * </p>
+ */
+public class BankServer implements Closeable {
+
+    /** The number of transactions in a history page when the client does not ask for a size. */
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    /** The largest history page a client may ask for. */
+    private static final int MAX_PAGE_SIZE = 10_000;
+
+    /** The longest request line, in characters, a client may send. */
+    static final int MAX_LINE_LENGTH = 4096;
+
+    private static final DateTimeFormatter DATE_OF_BIRTH = DateTimeFormatter.ofPattern("dd/MM/yyyy");
+
+    private static final Logger LOGGER = Logger.getLogger(BankServer.class.getName());
+
+    private final CentralBank bank;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections;
+    private final Set<Socket> openSockets = ConcurrentHashMap.newKeySet();
+    private final Thread acceptor;
+
+    /**
+     * Binds a server for the given bank to a port. The server accepts no connections until started.
+     *
+     * @param bank The bank the server operates on.
+     * @param port The port to listen on, or 0 to pick a free port.
+     * @throws IOException If the port cannot be bound.
+     */
+    public BankServer(CentralBank bank, int port) throws IOException {
+        this.bank = bank;
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress(port));
+        this.connections = newConnectionExecutor();
+        this.acceptor = new Thread(this::acceptConnections, "bank-server-acceptor");
+    }
+
+    /**
+     * Starts accepting connections on a background thread.
+     */
+    public void start() {
+        acceptor.start();
+    }
+
+    /**
+     * Returns the port the server is listening on.
+     *
+     * @return The local port.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Stops accepting connections and disconnects every client. The bank is left open.
+     *
+     * @throws IOException If the listening socket cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Socket socket : openSockets) {
+            closeQuietly(socket);
+        }
+        connections.shutdownNow();
+    }
+
+    /**
+     * Returns an executor starting a virtual thread per task when the runtime provides them,
+     * or a cached pool of daemon platform threads otherwise.
+     */
+    static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "bank-connection");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    LOGGER.log(Level.WARNING, "Failed to accept a connection", e);
+                }
+                continue;
+            }
+            openSockets.add(socket);
+            try {
+                connections.execute(() -> serve(socket));
+            } catch (RuntimeException e) {
+                openSockets.remove(socket);
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            socket.setTcpNoDelay(true);
+            StringBuilder buffer = new StringBuilder(128);
+            int length;
+            while ((length = readLine(in, buffer)) >= 0) {
+                String line = buffer.toString();
+                if (length > MAX_LINE_LENGTH) {
+                    out.write("ERROR Line longer than " + MAX_LINE_LENGTH + " characters\n");
+                } else if (line.trim().equalsIgnoreCase("QUIT")) {
+                    out.write("OK\n");
+                    break;
+                } else {
+                    handle(line, out);
+                }
+                if (!in.ready()) {
+                    out.flush();
+                }
+            }
+        } catch (SocketException e) {
+            // The client disconnected or the server is closing.
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Connection failed", e);
+        } finally {
+            openSockets.remove(socket);
+        }
+    }
+
+    /**
+     * Reads one line into the given buffer, without its terminating newline or a carriage return
+     * before it. Only the first {@value #MAX_LINE_LENGTH} characters are kept; the rest of a longer
+     * line is read and discarded, so a client cannot make the server hold an unbounded line.
+     *
+     * @param in The reader to read from.
+     * @param line Cleared, then receives the line, truncated to {@value #MAX_LINE_LENGTH} characters.
+     * @return The full length of the line, or -1 if the stream ended before any character was read.
+     * @throws IOException If the line cannot be read.
+     */
+    static int readLine(Reader in, StringBuilder line) throws IOException {
+        line.setLength(0);
+        int length = 0;
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            if (length++ < MAX_LINE_LENGTH) {
+                line.append((char) c);
+            }
+        }
+        if (c < 0 && length == 0) {
+            return -1;
+        }
+        if (length <= MAX_LINE_LENGTH && length > 0 && line.charAt(length - 1) == '\r') {
+            line.setLength(--length);
+        }
+        return length;
+    }
+
+    /**
+     * Executes one request line and writes its response.
+     *
+     * @param line The request.
+     * @param out Receives the response lines.
+     * @throws IOException If the response cannot be written.
+     */
+    void handle(String line, Writer out) throws IOException {
+        String[] words = line.trim().split("\\s+", 3);
+        String command = words[0].toUpperCase();
+        try {
+            switch (command) {
+            case "ADD_CUSTOMER":
+                addCustomer(argument(words, 1), argument(words, 2), out);
+                break;
+            case "REMOVE_CUSTOMER":
+                reply(out, bank.removeCustomer(customer(split(line, 2), 1)));
+                break;
+            case "DEPOSIT":
+                words = split(line, 3);
+                reply(out, bank.deposit(account(words, 1), amount(words, 2)));
+                break;
+            case "WITHDRAW":
+                words = split(line, 3);
+                reply(out, bank.withdraw(account(words, 1), amount(words, 2)));
+                break;
+            case "CREATE_ACCOUNT":
+                createAccount(split(line, 3), out);
+                break;
+            case "CLOSE_ACCOUNT":
+                words = split(line, 3);
+                reply(out, bank.closeAccount(customer(words, 1), account(words, 2)));
+                break;
+            case "TRANSFER":
+                words = split(line, 4);
+                reply(out, bank.transfer(account(words, 1), account(words, 2), amount(words, 3)));
+                break;
+            case "HISTORY":
+                history(line.trim().split("\\s+"), out);
+                break;
+            case "SUMMARY":
+                summary(customer(split(line, 2), 1), out);
+                break;
+            default:
+                out.write("ERROR Unknown command: " + words[0] + "\n");
+                break;
+            }
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            out.write("ERROR " + e.getMessage() + "\n");
+        } catch (UncheckedIOException e) {
+            LOGGER.log(Level.WARNING, "Failed to apply " + command, e);
+            out.write("ERROR Failed to apply " + command + "\n");
+        }
+    }
+
+    private void addCustomer(String dateOfBirth, String nameAndAddress, Writer out) throws IOException {
+        LocalDate date = LocalDate.parse(dateOfBirth, DATE_OF_BIRTH);
+        int separator = nameAndAddress.indexOf('|');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Expected name|address");
+        }
+        Customer customer = new Customer(nameAndAddress.substring(0, separator).trim(),
+                nameAndAddress.substring(separator + 1).trim(),
+                Date.from(date.atStartOfDay(ZoneId.systemDefault()).toInstant()));
+        if (bank.addCustomer(customer)) {
+            out.write("OK " + customer.getCustomerId() + "\n");
+        } else {
+            out.write("FAILED\n");
+        }
+    }
+
+    private void createAccount(String[] words, Writer out) throws IOException {
+        Customer customer = customer(words, 1);
+        AccountType accountType;
+        try {
+            accountType = AccountType.valueOf(argument(words, 2).toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown account type: " + words[2]);
+        }
+        Account account = bank.openAccount(customer, accountType);
+        if (account != null) {
+            out.write("OK " + account.getAccountNumber() + "\n");
+        } else {
+            out.write("FAILED\n");
+        }
+    }
+
+    private void history(String[] words, Writer out) throws IOException {
+        Customer customer = customer(words, 1);
+        if (words.length > 4) {
+            throw new IllegalArgumentException("Expected at most 3 arguments");
+        }
+        String resumeToken = words.length > 2 ? words[2] : TransactionPage.FIRST_PAGE;
+        int pageSize = words.length > 3 ? id(words[3]) : DEFAULT_PAGE_SIZE;
+        if (pageSize <= 0 || pageSize > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("Page size must be between 1 and " + MAX_PAGE_SIZE);
+        }
+        if (customer == null) {
+            out.write("FAILED\n");
+            return;
+        }
+        TransactionPage page = bank.getTransactionHistory(customer, resumeToken, pageSize);
+        out.write("OK " + page.getTransactions().size() + " " + page.getResumeToken() + " " + page.hasMore() + "\n");
+        for (TransactionLog log : page.getTransactions()) {
+            Report.appendNumber(out, log.getTransactionId()).append(' ');
+            Report.appendNumber(out, log.getAccountNumber()).append(' ');
+            out.append(String.valueOf(log.getTransactionType())).append(' ');
+            Report.appendAmount(out, Money.toMinorUnits(log.getAmount())).append('\n');
+        }
+    }
+
+    private void summary(Customer customer, Writer out) throws IOException {
+        String summary = bank.getCustomerSummary(customer);
+        if (summary == null) {
+            out.write("FAILED\n");
+            return;
+        }
+        String[] lines = summary.split("\n");
+        out.write("OK " + lines.length + "\n");
+        for (String line : lines) {
+            out.write(line);
+            out.write('\n');
+        }
+    }
+
+    private static void reply(Writer out, boolean succeeded) throws IOException {
+        out.write(succeeded ? "OK\n" : "FAILED\n");
+    }
+
+    private static String[] split(String line, int expectedWords) {
+        String[] words = line.trim().split("\\s+");
+        if (words.length != expectedWords) {
+            throw new IllegalArgumentException("Expected " + (expectedWords - 1) + " arguments");
+        }
+        return words;
+    }
+
+    private static String argument(String[] words, int index) {
+        if (index >= words.length) {
+            throw new IllegalArgumentException("Missing argument " + index);
+        }
+        return words[index];
+    }
+
+    private Customer customer(String[] words, int index) {
+        return bank.getCustomerByID(id(argument(words, index)));
+    }
+
+    private Account account(String[] words, int index) {
+        return bank.getAccountbyAccountID(id(argument(words, index)));
+    }
+
+    private static double amount(String[] words, int index) {
+        String amount = argument(words, index);
+        double value;
+        try {
+            value = Double.parseDouble(amount);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not an amount: " + amount);
+        }
+        if (!Double.isFinite(value)) {
+            throw new IllegalArgumentException("Not an amount: " + amount);
+        }
+        return value;
+    }
+
+    private static int id(String word) {
+        try {
+            return Integer.parseInt(word);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + word);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already disconnected.
+        }
+    }
+}
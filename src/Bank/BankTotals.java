@@ -0,0 +1,75 @@
+package Bank;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bank-wide totals maintained as accounts open, close and change balance: the sum of balances
+ * per {@link AccountType} and the number of open accounts.
+ * <p>
+ * Each total is a {@link LongAdder}, which spreads concurrent updates over striped cells, so
+ * deposits on different accounts do not contend on a shared counter. Reading a total sums the
+ * cells without blocking writers. An account reports to the totals of the bank it is open in
+ * through {@link Account#attach(BankTotals, Journal)}.
+ * </p>
+ */
+final class BankTotals {
+
+    private static final AccountType[] TYPES = AccountType.values();
+
+    private final LongAdder[] balances = new LongAdder[TYPES.length];
+    private final LongAdder accounts = new LongAdder();
+
+    BankTotals() {
+        for (int i = 0; i < balances.length; i++) {
+            balances[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records an account opening with the given balance.
+     */
+    void opened(AccountType type, long balanceMinorUnits) {
+        accounts.increment();
+        balances[type.ordinal()].add(balanceMinorUnits);
+    }
+
+    /**
+     * Records an account closing with the given balance.
+     */
+    void closed(AccountType type, long balanceMinorUnits) {
+        accounts.decrement();
+        balances[type.ordinal()].add(-balanceMinorUnits);
+    }
+
+    /**
+     * Records a change to the balance of an open account.
+     */
+    void add(AccountType type, long deltaMinorUnits) {
+        balances[type.ordinal()].add(deltaMinorUnits);
+    }
+
+    /**
+     * Returns the sum of the balances of open accounts of the given type, in minor units.
+     */
+    long balance(AccountType type) {
+        return balances[type.ordinal()].sum();
+    }
+
+    /**
+     * Returns the sum of the balances of all open accounts, in minor units.
+     */
+    long balance() {
+        long total = 0;
+        for (LongAdder balance : balances) {
+            total += balance.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of open accounts.
+     */
+    int accounts() {
+        return accounts.intValue();
+    }
+}
@@ -0,0 +1,399 @@
+package Bank;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A non-blocking server speaking a fixed-layout binary protocol for deposits, withdrawals,
+ * transfers and account lookups, for high-volume callers that pipeline many operations
+ * on one connection.
+ * <p>
+ * Every request is {@link #REQUEST_SIZE} bytes, big-endian:
+ * </p>
+ * <pre>
+ *  0  long  correlation ID, echoed in the response
+ *  8  byte  operation: DEPOSIT, WITHDRAW, TRANSFER or LOOKUP
+ *  9  3     padding
+ * 12  int   account number (the source account of a transfer)
+ * 16  int   destination account number of a transfer, ignored otherwise
+ * 20  long  amount in minor units, ignored by lookups
+ * </pre>
+ * <p>
+ * and every response is {@link #RESPONSE_SIZE} bytes:
+ * </p>
+ * <pre>
+ *  0  long  correlation ID of the request
+ *  8  byte  a {@link TransactionBatch} result code, or UNKNOWN_OPERATION
+ *  9  byte  account type ordinal of a found lookup, -1 otherwise
+ * 10  2     padding
+ * 12  int   owner's customer ID of a found lookup, 0 otherwise
+ * 16  long  balance in minor units of a found lookup, 0 otherwise
+ * </pre>
+ * <p>
+ * Clients may send any number of requests without waiting for responses; responses come back
+ * in request order. Connections are spread over a fixed number of selector threads. Each thread
+ * decodes the complete requests of a read straight from a direct buffer into a reused
+ * {@link TransactionBatch}, so runs of mutations are applied as one batch, with the results,
+ * resolved accounts and lock stripes held in arrays the thread reuses, and nothing is allocated
+ * per request. A client that stops reading responses stops having its requests read.
+ * </p>
+ * <p>
+ * On a journaled bank a batch is acknowledged only once it is durable, and the selector thread
+ * waits for that group commit itself, so every connection served by the thread waits for the
+ * fsync too. Batches from the other selector threads join the same group commit, so throughput
+ * comes from running several selector threads rather than from the thread never blocking.
+ * A request the bank fails to apply, as when its journal can no longer be written, disconnects
+ * only the client that sent it, since the client cannot tell which of its pipelined requests were applied.
+ * </p>
+ */
+public class BinaryBankServer implements Closeable {
+
+    /** The size in bytes of every request. */
+    public static final int REQUEST_SIZE = 28;
+
+    /** The size in bytes of every response. */
+    public static final int RESPONSE_SIZE = 24;
+
+    /** Operation code of a deposit. */
+    public static final byte DEPOSIT = TransactionBatch.DEPOSIT;
+
+    /** Operation code of a withdrawal. */
+    public static final byte WITHDRAW = TransactionBatch.WITHDRAW;
+
+    /** Operation code of a transfer. */
+    public static final byte TRANSFER = TransactionBatch.TRANSFER;
+
+    /** Operation code of an account lookup. */
+    public static final byte LOOKUP = 3;
+
+    /** Result code of a request whose operation code is not recognised. */
+    public static final byte UNKNOWN_OPERATION = 4;
+
+    /** The size of each connection's read and write buffers. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The most requests decoded from one connection at a time. */
+    private static final int MAX_FRAMES = BUFFER_SIZE / REQUEST_SIZE;
+
+    /** The longest pause between attempts to accept after repeated failures, in milliseconds. */
+    private static final long MAX_ACCEPT_BACKOFF_MILLIS = 1000;
+
+    private static final Logger LOGGER = Logger.getLogger(BinaryBankServer.class.getName());
+
+    private final CentralBank bank;
+    private final ServerSocketChannel serverChannel;
+    private final Reactor[] reactors;
+    private final Thread acceptor;
+    private volatile boolean running = true;
+
+    /**
+     * Binds a server for the given bank to a port. The server accepts no connections until started.
+     *
+     * @param bank The bank the server operates on.
+     * @param port The port to listen on, or 0 to pick a free port.
+     * @param selectorThreads The number of threads serving connections.
+     * @throws IOException If the port cannot be bound.
+     */
+    public BinaryBankServer(CentralBank bank, int port, int selectorThreads) throws IOException {
+        if (selectorThreads <= 0) {
+            throw new IllegalArgumentException("At least one selector thread is required: " + selectorThreads);
+        }
+        this.bank = bank;
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        this.serverChannel.bind(new InetSocketAddress(port));
+        this.reactors = new Reactor[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++) {
+            reactors[i] = new Reactor(i);
+        }
+        this.acceptor = new Thread(this::acceptConnections, "bank-binary-acceptor");
+    }
+
+    /**
+     * Starts accepting and serving connections on background threads.
+     */
+    public void start() {
+        for (Reactor reactor : reactors) {
+            reactor.thread.start();
+        }
+        acceptor.start();
+    }
+
+    /**
+     * Returns the port the server is listening on.
+     *
+     * @return The local port.
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Stops accepting connections, disconnects every client and waits for the selector threads
+     * to finish. The bank is left open.
+     *
+     * @throws IOException If the listening channel cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverChannel.close();
+        for (Reactor reactor : reactors) {
+            reactor.selector.wakeup();
+        }
+        try {
+            for (Reactor reactor : reactors) {
+                reactor.thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Accepts connections and hands them to the live selector threads in turn. Repeated accept
+     * failures, such as running out of file descriptors, are retried after a growing pause.
+     */
+    private void acceptConnections() {
+        int next = 0;
+        long backoffMillis = 0;
+        while (running) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+                backoffMillis = 0;
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to accept a connection", e);
+                backoffMillis = Math.min(MAX_ACCEPT_BACKOFF_MILLIS, Math.max(1, backoffMillis * 2));
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                continue;
+            }
+            Reactor reactor = null;
+            for (int i = 0; i < reactors.length && reactor == null; i++) {
+                Reactor candidate = reactors[(next + i) % reactors.length];
+                if (candidate.alive) {
+                    reactor = candidate;
+                    next = (next + i + 1) % reactors.length;
+                }
+            }
+            if (reactor == null) {
+                LOGGER.severe("No selector thread is left to serve connections");
+                closeQuietly(channel);
+                continue;
+            }
+            reactor.register(channel);
+        }
+    }
+
+    /**
+     * The state of one client connection: its channel and the direct buffers its requests are
+     * read into and its responses are written from. Both buffers are kept in fill mode.
+     */
+    private static final class Connection {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        SelectionKey key;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * A selector thread serving a share of the connections.
+     */
+    private final class Reactor implements Consumer<SelectionKey> {
+        final Selector selector;
+        final Thread thread;
+        final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+
+        /** Whether the thread is still serving connections; cleared when it stops for any reason. */
+        volatile boolean alive = true;
+
+        /** Scratch state reused for every run of mutations decoded on this thread. */
+        final TransactionBatch batch = new TransactionBatch(MAX_FRAMES);
+        final long[] correlationIds = new long[MAX_FRAMES];
+        final byte[] results = new byte[MAX_FRAMES];
+        final CentralBank.BatchScratch scratch = new CentralBank.BatchScratch();
+
+        Reactor(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this::run, "bank-binary-selector-" + index);
+        }
+
+        void register(SocketChannel channel) {
+            accepted.add(channel);
+            selector.wakeup();
+            if (!alive) {
+                // The thread stopped after being chosen and may already have drained its queue.
+                closeAccepted();
+            }
+        }
+
+        private void run() {
+            try {
+                while (running) {
+                    selector.select(this);
+                    SocketChannel channel;
+                    while ((channel = accepted.poll()) != null) {
+                        open(channel);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Selector failed", e);
+            } finally {
+                alive = false;
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly(((Connection) key.attachment()).channel);
+                }
+                closeAccepted();
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to close selector", e);
+                }
+            }
+        }
+
+        private void closeAccepted() {
+            SocketChannel channel;
+            while ((channel = accepted.poll()) != null) {
+                closeQuietly(channel);
+            }
+        }
+
+        private void open(SocketChannel channel) {
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Connection connection = new Connection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException | RuntimeException e) {
+                closeQuietly(channel);
+            }
+        }
+
+        @Override
+        public void accept(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isWritable()) {
+                    flush(connection);
+                    if (connection.out.position() == 0) {
+                        serve(connection);
+                    }
+                } else if (key.isReadable()) {
+                    if (connection.channel.read(connection.in) < 0) {
+                        close(connection);
+                        return;
+                    }
+                    serve(connection);
+                }
+            } catch (IOException e) {
+                close(connection);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to serve a connection", e);
+                close(connection);
+            }
+        }
+
+        /**
+         * Answers as many buffered requests as the write buffer has room for, then writes the responses.
+         */
+        private void serve(Connection connection) throws IOException {
+            ByteBuffer in = connection.in;
+            ByteBuffer out = connection.out;
+            in.flip();
+            int frames = Math.min(in.remaining() / REQUEST_SIZE, out.remaining() / RESPONSE_SIZE);
+            int frame = 0;
+            while (frame < frames) {
+                batch.clear();
+                while (frame < frames) {
+                    int position = in.position();
+                    byte operation = in.get(position + 8);
+                    if (operation != DEPOSIT && operation != WITHDRAW && operation != TRANSFER) {
+                        break;
+                    }
+                    correlationIds[batch.size()] = in.getLong(position);
+                    int from = in.getInt(position + 12);
+                    batch.add(operation, from, operation == TRANSFER ? in.getInt(position + 16) : from,
+                            in.getLong(position + 20));
+                    in.position(position + REQUEST_SIZE);
+                    frame++;
+                }
+                if (batch.size() > 0) {
+                    bank.process(batch, results, scratch);
+                    for (int i = 0; i < batch.size(); i++) {
+                        out.putLong(correlationIds[i]).put(results[i]).put((byte) -1).putShort((short) 0).putInt(0).putLong(0);
+                    }
+                }
+                if (frame < frames) {
+                    int position = in.position();
+                    long correlationId = in.getLong(position);
+                    if (in.get(position + 8) == LOOKUP) {
+                        Account account = bank.getAccountbyAccountID(in.getInt(position + 12));
+                        if (account == null || account.isClosed()) {
+                            out.putLong(correlationId).put(TransactionBatch.ACCOUNT_NOT_FOUND).put((byte) -1)
+                                    .putShort((short) 0).putInt(0).putLong(0);
+                        } else {
+                            out.putLong(correlationId).put(TransactionBatch.OK).put((byte) account.getAccountType().ordinal())
+                                    .putShort((short) 0).putInt(account.getOwner().getCustomerId())
+                                    .putLong(account.getBalanceMinorUnits());
+                        }
+                    } else {
+                        out.putLong(correlationId).put(UNKNOWN_OPERATION).put((byte) -1).putShort((short) 0).putInt(0).putLong(0);
+                    }
+                    in.position(position + REQUEST_SIZE);
+                    frame++;
+                }
+            }
+            in.compact();
+            flush(connection);
+        }
+
+        /**
+         * Writes buffered responses, reading further requests only once every response has been sent.
+         */
+        private void flush(Connection connection) throws IOException {
+            ByteBuffer out = connection.out;
+            out.flip();
+            connection.channel.write(out);
+            out.compact();
+            connection.key.interestOps(out.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private void close(Connection connection) {
+            connection.key.cancel();
+            closeQuietly(connection.channel);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already disconnected.
+        }
+    }
+}
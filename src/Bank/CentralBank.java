@@ -3,28 +3,407 @@
  */
 package Bank;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Represents a central bank that manages customers and their respective accounts.
  * Implements the functionalities provided by Transactable and Searchable interfaces.
+ * <p>
+ * The bank is safe for concurrent use. Lookups read the customer and account indexes
+ * optimistically. Deposits and withdrawals take no lock beyond the compare-and-set on
+ * the balance and the short lock on the account's history, and transfers lock only the
+ * stripes of the two accounts involved, so operations on unrelated accounts proceed in
+ * parallel.
+ * </p>
+ * <p>
+ * A bank opened with {@link #open(Path)} records every mutation in a {@link Journal}
+ * and only reports success once the mutation is durable. Checkpoints write the whole
+ * bank to a snapshot next to the journal, so that a restart only replays the journal
+ * records appended since the last checkpoint.
+ * </p>
+ * <p>
+ * Mutations are applied in memory before they are written, so if the journal cannot be
+ * written, a mutation whose caller gets an {@link java.io.UncheckedIOException} instead of a
+ * result may already show in balances and histories, along with any other mutation waiting
+ * on the same write. The journal then refuses every further mutation. The bank must be closed
+ * and reopened, which restores exactly the records that reached the disk and so settles the
+ * outcome of the failed mutations.
+ * </p>
  */
-public class CentralBank implements Transactable, Searchable {
+public class CentralBank implements Transactable, Searchable, Closeable {
 
-	 /** List of customers registered with the central bank. */
-    private ArrayList<Customer> Customers;
+	 /** Customers registered with the central bank, indexed by customer ID. */
+    private IntIndex<Customer> Customers;
     
-    /** List of accounts associated with the central bank. */
-    private ArrayList<Account> Accounts;
+    /** Accounts associated with the central bank, indexed by account number. */
+    private IntIndex<Account> Accounts;
+
+    /** Guards structural changes to the customer and account indexes. */
+    private final StampedLock indexLock;
+
+    /** Per-account locks making transfers and account closure atomic. */
+    private final StripedLock accountLocks;
+
+    /** Recently generated customer summaries, reused until the customer next changes. */
+    private final SummaryCache summaryCache;
+
+    /** Indexes the registered customers by name, address and date of birth. */
+    private final CustomerIndex customerIndex;
+
+    /** The balances and number of the open accounts, maintained as they change. */
+    private final BankTotals totals;
+
+    /** Times and counts the bank's operations. */
+    private final BankMetrics metrics;
+
+    /** The outcomes of recent requests carrying an idempotency key. */
+    private final IdempotencyCache idempotencyCache;
+
+    /** The number of idempotency keys remembered at most. */
+    static final int IDEMPOTENCY_CAPACITY = 1 << 21;
+
+    /** How long an idempotency key is remembered, in milliseconds. */
+    static final long IDEMPOTENCY_TTL_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    /** The number of customer summaries kept in the cache. */
+    private static final int SUMMARY_CACHE_SIZE = 10_000;
+
+    /** The number of batch operations applied under one acquisition of their account locks. */
+    private static final int BATCH_CHUNK_SIZE = 256;
+
+    /** The operation counted in the metrics for each {@link TransactionBatch} operation code. */
+    private static final BankMetrics.Operation[] BATCH_OPERATIONS = {
+        BankMetrics.Operation.DEPOSIT, BankMetrics.Operation.WITHDRAW, BankMetrics.Operation.TRANSFER
+    };
+
+    private static final Logger LOGGER = Logger.getLogger(CentralBank.class.getName());
+
+    /** The journal recording every mutation, or null if the bank is not durable. */
+    private final Journal journal;
+
+    /** The snapshot file written by checkpoints, or null if the bank is not durable. */
+    private final Path snapshotFile;
+
+    /** Keeps the identifier high-water marks next to the journal, or null if the bank is not durable. */
+    private final Closeable idMarks;
+
+    /**
+     * The ticket of a mutation applied by a bank without a journal, which needs no commit.
+     * Journaled mutations are identified by their journal sequence number, failed ones by 0.
+     */
+    static final long APPLIED = -1;
+
+    /** Runs periodic checkpoints once they have been scheduled. */
+    private ScheduledExecutorService checkpointScheduler;
+
+    /** Holds the sealed older transaction history once archiving is enabled. Guarded by this. */
+    private HistoryArchive historyArchive;
+
+    /** The number of archived transactions kept decoded in memory for queries that reach them. */
+    private static final int HISTORY_CACHE_ROWS = 1 << 20;
     
     /**
-     * Initializes an instance of the CentralBank with empty lists of customers and accounts.
+     * Initializes an instance of the CentralBank with empty indexes of customers and accounts,
+     * sized for the number of available processors.
      */
     public CentralBank () {
-    	
-        this.Customers = new ArrayList<>();
-        this.Accounts = new ArrayList<>();
+    	this(Runtime.getRuntime().availableProcessors() * 16);
+    }
+
+    /**
+     * Initializes an instance of the CentralBank with empty indexes of customers and accounts.
+     *
+     * @param concurrencyLevel The minimum number of account lock stripes.
+     */
+    public CentralBank (int concurrencyLevel) {
+        this(concurrencyLevel, null, null, null);
+    }
+
+    private CentralBank (int concurrencyLevel, Journal journal, Path snapshotFile, Closeable idMarks) {
+        this.Customers = new IntIndex<>();
+        this.Accounts = new IntIndex<>();
+        this.indexLock = new StampedLock();
+        this.accountLocks = new StripedLock(concurrencyLevel);
+        this.summaryCache = new SummaryCache(SUMMARY_CACHE_SIZE);
+        this.customerIndex = new CustomerIndex(journal);
+        this.totals = new BankTotals();
+        this.metrics = new BankMetrics(totals);
+        this.idempotencyCache = new IdempotencyCache(IDEMPOTENCY_CAPACITY, IDEMPOTENCY_TTL_MILLIS);
+        this.journal = journal;
+        this.snapshotFile = snapshotFile;
+        this.idMarks = idMarks;
+    }
+
+    /**
+     * Opens a durable bank backed by the journal at the given path.
+     * The latest snapshot, if any, is loaded and the journal records appended after it are
+     * replayed to restore the customers, accounts and balances, and every subsequent mutation
+     * is appended to the journal. The snapshot lives next to the journal, with a ".snapshot" suffix,
+     * and so do the high-water marks of the account, customer and transaction IDs, with an ".ids"
+     * suffix, so IDs assigned after a restart never repeat earlier ones.
+     *
+     * @param journalFile The journal file, created if it does not exist.
+     * @return The restored bank.
+     * @throws IOException If the snapshot or journal cannot be read or the journal opened for writing.
+     */
+    public static CentralBank open(Path journalFile) throws IOException {
+        Path snapshotFile = journalFile.resolveSibling(journalFile.getFileName() + ".snapshot");
+        Closeable idMarks = IdAllocator.persistTo(journalFile.resolveSibling(journalFile.getFileName() + ".ids"));
+        Journal journal;
+        try {
+            journal = Journal.open(journalFile);
+        } catch (IOException | RuntimeException e) {
+            idMarks.close();
+            throw e;
+        }
+        CentralBank bank = new CentralBank(Runtime.getRuntime().availableProcessors() * 16, journal, snapshotFile, idMarks);
+        try {
+            IntIndex<Customer> restoredCustomers = new IntIndex<>();
+            long journalOffset = Snapshot.load(snapshotFile, bank, restoredCustomers);
+            journal.replay(bank, journalOffset, restoredCustomers);
+        } catch (IOException | RuntimeException e) {
+            journal.close();
+            idMarks.close();
+            throw e;
+        }
+        return bank;
+    }
+
+    /**
+     * Writes every customer, account, balance and transaction to the bank's snapshot file.
+     * Archived transactions are recorded by reference to their segment files. Once the snapshot
+     * is durable, the journal records it covers are trimmed from the journal. Mutations are paused only while the state is captured in memory, not while it is written.
+     *
+     * @throws IOException If the snapshot cannot be written.
+     * @throws IllegalStateException If the bank was not opened with a journal.
+     */
+    public void checkpoint() throws IOException {
+        if (journal == null) {
+            throw new IllegalStateException("Only a bank opened with a journal can be checkpointed");
+        }
+        Snapshot snapshot = new Snapshot();
+        synchronized (this) {
+            if (historyArchive != null) {
+                snapshot.setArchiveDirectory(historyArchive.directory());
+            }
+        }
+        long journalOffset = journal.quiesce(() -> {
+            forEachCustomer(snapshot::addCustomer);
+            forEachAccount(snapshot::addAccount);
+        });
+        snapshot.write(snapshotFile, journalOffset);
+        journal.trim(journalOffset);
+    }
+
+    /**
+     * Starts writing a checkpoint at a fixed interval on a background thread.
+     *
+     * @param period The interval between checkpoints.
+     * @param unit The unit of the interval.
+     * @throws IllegalStateException If the bank was not opened with a journal or checkpoints are already scheduled.
+     */
+    public synchronized void scheduleCheckpoints(long period, TimeUnit unit) {
+        if (journal == null) {
+            throw new IllegalStateException("Only a bank opened with a journal can be checkpointed");
+        }
+        if (checkpointScheduler != null) {
+            throw new IllegalStateException("Checkpoints are already scheduled");
+        }
+        checkpointScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bank-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                checkpoint();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Checkpoint failed", e);
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Enables moving older transaction history out of memory into compressed segment files
+     * with {@link #archiveHistory(Date)}. The files are kept when the bank is closed, and
+     * checkpoints refer to them instead of copying the sealed transactions, so a bank opened
+     * from a snapshot that archived history has archiving enabled on the same directory already.
+     *
+     * @param directory The directory to write the segment files to, created if needed.
+     * @throws IOException If the directory cannot be created or listed.
+     * @throws IllegalStateException If archiving is already enabled on another directory.
+     */
+    public void enableHistoryArchive(Path directory) throws IOException {
+        openHistoryArchive(directory);
+    }
+
+    /**
+     * Enables history archiving on the given directory, as {@link #enableHistoryArchive(Path)} does.
+     *
+     * @return The bank's history archive.
+     */
+    synchronized HistoryArchive openHistoryArchive(Path directory) throws IOException {
+        if (historyArchive != null) {
+            if (!historyArchive.directory().toAbsolutePath().normalize().equals(directory.toAbsolutePath().normalize())) {
+                throw new IllegalStateException("History archiving is already enabled on " + historyArchive.directory());
+            }
+            return historyArchive;
+        }
+        historyArchive = new HistoryArchive(directory, HISTORY_CACHE_ROWS);
+        return historyArchive;
+    }
+
+    /**
+     * Seals every open account's transactions made before the given time into compressed,
+     * immutable segment files, one file per range of {@value HistoryArchive#ACCOUNTS_PER_FILE}
+     * account numbers, and drops them from memory. History queries, balance queries, snapshots
+     * and exports read the sealed transactions back from the files when they reach them.
+     *
+     * @param before The time before which transactions are sealed.
+     * @return The number of transactions sealed.
+     * @throws IOException If a segment file cannot be written; transactions not yet sealed stay in memory.
+     * @throws IllegalArgumentException If the time is null.
+     * @throws IllegalStateException If archiving has not been enabled.
+     */
+    public synchronized long archiveHistory(Date before) throws IOException {
+        if (before == null) {
+            throw new IllegalArgumentException("Time must not be null");
+        }
+        if (historyArchive == null) {
+            throw new IllegalStateException("History archiving is not enabled");
+        }
+        List<Account> accounts = new ArrayList<>();
+        forEachAccount(accounts::add);
+        accounts.sort(Comparator.comparingInt(Account::getAccountNumber));
+        long sealed = 0;
+        int next = 0;
+        while (next < accounts.size()) {
+            int firstAccountNumber = accounts.get(next).getAccountNumber() / HistoryArchive.ACCOUNTS_PER_FILE
+                    * HistoryArchive.ACCOUNTS_PER_FILE;
+            List<TransactionColumns> columns = new ArrayList<>();
+            List<HistoryArchive.Segment> segments = new ArrayList<>();
+            Path file = null;
+            FileChannel channel = null;
+            try {
+                for (; next < accounts.size()
+                        && accounts.get(next).getAccountNumber() - firstAccountNumber < HistoryArchive.ACCOUNTS_PER_FILE; next++) {
+                    TransactionColumns history = accounts.get(next).getTransactionColumns();
+                    int firstRow = history.sealedRows();
+                    HistoryArchive.Rows rows = history.rowsBefore(before.getTime());
+                    if (rows == null) {
+                        continue;
+                    }
+                    if (channel == null) {
+                        file = historyArchive.newFile(firstAccountNumber);
+                        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                    }
+                    columns.add(history);
+                    segments.add(historyArchive.write(file, channel, rows, firstRow));
+                }
+                if (channel != null) {
+                    channel.force(false);
+                }
+            } finally {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+            // Only drop the rows from memory once their file is durable.
+            for (int i = 0; i < columns.size(); i++) {
+                columns.get(i).sealed(historyArchive, segments.get(i));
+                sealed += segments.get(i).rows;
+            }
+        }
+        return sealed;
+    }
+
+    /**
+     * Stops any scheduled checkpoints and metrics logging and closes the bank's journal, if it has one,
+     * after flushing any buffered records, and its identifier high-water marks. The history archive's
+     * files are kept for the snapshot that refers to them.
+     *
+     * @throws IOException If the journal cannot be written or closed.
+     */
+    @Override
+    public void close() throws IOException {
+        metrics.close();
+        synchronized (this) {
+            if (checkpointScheduler != null) {
+                checkpointScheduler.shutdownNow();
+                checkpointScheduler = null;
+            }
+        }
+        try {
+            if (journal != null) {
+                journal.close();
+            }
+        } finally {
+            try {
+                if (idMarks != null) {
+                    idMarks.close();
+                }
+            } finally {
+                synchronized (this) {
+                    if (historyArchive != null) {
+                        historyArchive.close();
+                        historyArchive = null;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until the mutation with the given ticket is durable. Committing a ticket also
+     * commits every mutation that was applied before it.
+     *
+     * @param ticket The ticket returned when the mutation was applied.
+     * @return true if the mutation was applied, false if the ticket is 0.
+     */
+    boolean commit(long ticket) {
+        return ticket == APPLIED || (ticket != 0 && journal.commit(ticket));
+    }
+
+    /**
+     * Passes every registered customer to the given action under a read of the index lock.
+     */
+    void forEachCustomer(Consumer<Customer> action) {
+        long stamp = indexLock.readLock();
+        try {
+            Customers.forEach(action);
+        } finally {
+            indexLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Passes every open account to the given action under a read of the index lock.
+     */
+    void forEachAccount(Consumer<Account> action) {
+        long stamp = indexLock.readLock();
+        try {
+            Accounts.forEach(action);
+        } finally {
+            indexLock.unlockRead(stamp);
+        }
     }
     
     /**
@@ -34,16 +413,38 @@ public class CentralBank implements Transactable, Searchable {
      * @return true if customer is added successfully, false otherwise (e.g., customer already exists).
      */
     public boolean addCustomer(Customer customer) {
+        return commit(applyAddCustomer(customer));
+    }
+
+    /**
+     * Adds a new customer without waiting for the addition to become durable.
+     *
+     * @return The ticket to pass to {@link #commit(long)}, or 0 if the customer was not added.
+     */
+    long applyAddCustomer(Customer customer) {
         if (customer == null) {
-            return false;
+            return 0;
         }
-        for (Customer existingCustomer : Customers) {
-            if (existingCustomer.getCustomerId() == customer.getCustomerId()) {
+        if (journal == null) {
+            return insertCustomer(customer) ? APPLIED : 0;
+        }
+        return journal.logCustomerAdded(customer, () -> insertCustomer(customer));
+    }
+
+    /**
+     * Adds a customer to the customer index without journaling it.
+     */
+    boolean insertCustomer(Customer customer) {
+        long stamp = indexLock.writeLock();
+        try {
+            if (!Customers.putIfAbsent(customer.getCustomerId(), customer)) {
                 return false;
             }
+            customer.addTo(customerIndex);
+            return true;
+        } finally {
+            indexLock.unlockWrite(stamp);
         }
-        Customers.add(customer);
-        return true;
     }
 
     /**
@@ -53,21 +454,39 @@ public class CentralBank implements Transactable, Searchable {
      * @return true if customer is removed successfully, false otherwise.
      */
     public boolean removeCustomer(Customer customer) {
+        return commit(applyRemoveCustomer(customer));
+    }
+
+    /**
+     * Removes an existing customer without waiting for the removal to become durable.
+     *
+     * @return The ticket to pass to {@link #commit(long)}, or 0 if the customer was not removed.
+     */
+    long applyRemoveCustomer(Customer customer) {
         if (customer == null) {
-            return false;
+            return 0;
         }
-        Customer removingCustomer = null;
-        for(Customer doesExist: Customers) {
-            if(doesExist.getCustomerId() == customer.getCustomerId()) {
-                removingCustomer = doesExist;
-                break;
-            }
+        int customerId = customer.getCustomerId();
+        if (journal == null) {
+            return deleteCustomer(customerId) ? APPLIED : 0;
         }
-        if (removingCustomer != null) {
-            Customers.remove(removingCustomer);
+        return journal.log(Journal.CUSTOMER_REMOVED, customerId, customerId, 0, () -> deleteCustomer(customerId));
+    }
+
+    /**
+     * Removes a customer from the customer index without journaling it.
+     */
+    boolean deleteCustomer(int customerId) {
+        long stamp = indexLock.writeLock();
+        try {
+            Customer removed = Customers.remove(customerId);
+            if (removed == null) {
+                return false;
+            }
+            removed.removeFrom(customerIndex);
             return true;
-        } else {
-            return false;
+        } finally {
+            indexLock.unlockWrite(stamp);
         }
     }
 
@@ -78,12 +497,17 @@ public class CentralBank implements Transactable, Searchable {
      * @return Customer if found, null otherwise.
      */
     public Customer getCustomerByID(int customerID) {
-        for (Customer c: Customers) {
-            if(c.getCustomerId() == customerID) {
-                return c;
+        long stamp = indexLock.tryOptimisticRead();
+        Customer customer = Customers.get(customerID);
+        if (!indexLock.validate(stamp)) {
+            stamp = indexLock.readLock();
+            try {
+                customer = Customers.get(customerID);
+            } finally {
+                indexLock.unlockRead(stamp);
             }
         }
-        return null;
+        return customer;
     }
 
     /**
@@ -94,16 +518,53 @@ public class CentralBank implements Transactable, Searchable {
      * @return true if deposit is successful, false otherwise.
      */
     public boolean deposit(Account account, double amount) {
-        if (account == null || amount <= 0) {
-            return false;
+        long start = System.nanoTime();
+        boolean deposited = commit(applyDeposit(account, amount));
+        metrics.record(BankMetrics.Operation.DEPOSIT, start,
+                deposited ? TransactionBatch.OK : failureReason(account, account, amount, false));
+        return deposited;
+    }
+
+    /**
+     * Deposits a specified amount into a given account once per idempotency key.
+     * A retry carrying the key of a request seen in the last day is not applied again and
+     * returns the original outcome, once that outcome is durable.
+     *
+     * @param account The account to deposit to.
+     * @param amount The amount to be deposited.
+     * @param idempotencyKey The key identifying the request, the same for every retry.
+     * @return true if the deposit, now or originally, is successful, false otherwise.
+     * @throws IllegalArgumentException If the key was used for a different request.
+     */
+    public boolean deposit(Account account, double amount, long idempotencyKey) {
+        return once(TransactionBatch.DEPOSIT, idempotencyKey, account, account, amount,
+                () -> applyDeposit(account, amount));
+    }
+
+    /**
+     * Deposits into an account without waiting for the deposit to become durable.
+     * Takes no account lock: the account refuses the deposit in the same compare-and-set
+     * as the balance update if it has been closed.
+     *
+     * @return The ticket to pass to {@link #commit(long)}, or 0 if the deposit failed.
+     */
+    long applyDeposit(Account account, double amount) {
+        if (account == null || amount <= 0 || Money.toMinorUnits(amount) <= 0) {
+            return 0;
         }
-        for(Account existingAccount: Accounts) {
-            if(existingAccount.getAccountNumber() == account.getAccountNumber()) {
-                existingAccount.deposit(amount);
-                return true;
-            }
+        Account existingAccount = getAccountbyAccountID(account.getAccountNumber());
+        if (existingAccount == null) {
+            return 0;
         }
-        return false;
+        long amountMinorUnits = Money.toMinorUnits(amount);
+        int accountNumber = existingAccount.getAccountNumber();
+        long timestamp = System.currentTimeMillis();
+        long transactionId = TransactionLog.nextTransactionId();
+        if (journal == null) {
+            return existingAccount.depositMinorUnits(amountMinorUnits, timestamp, transactionId) ? APPLIED : 0;
+        }
+        return journal.log(Journal.DEPOSIT, accountNumber, accountNumber, amountMinorUnits, timestamp, transactionId,
+                transactionId, () -> existingAccount.depositMinorUnits(amountMinorUnits, timestamp, transactionId));
     }
 
     /**
@@ -113,12 +574,65 @@ public class CentralBank implements Transactable, Searchable {
      * @return Account if found, null otherwise.
      */
     public Account getAccountbyAccountID(int accountNumber) {
-        for(Account a: Accounts) {
-            if(a.getAccountNumber() == accountNumber) {
-                return a;
+        long stamp = indexLock.tryOptimisticRead();
+        Account account = Accounts.get(accountNumber);
+        if (!indexLock.validate(stamp)) {
+            stamp = indexLock.readLock();
+            try {
+                account = Accounts.get(accountNumber);
+            } finally {
+                indexLock.unlockRead(stamp);
             }
         }
-        return null;
+        return account;
+    }
+
+    /**
+     * Returns the latency histograms and outcome counters of this bank's operations.
+     *
+     * @return The bank's metrics.
+     */
+    public BankMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the sum of the balances of the open accounts of a given type.
+     * The total is maintained as balances change, so this does not scan the accounts.
+     *
+     * @param accountType The account type.
+     * @return The total balance of accounts of that type.
+     */
+    public double getTotalDeposits(AccountType accountType) {
+        return Money.toMajorUnits(totals.balance(accountType));
+    }
+
+    /**
+     * Returns the sum of the balances of all open accounts in minor units.
+     *
+     * @return The total balance in minor units.
+     */
+    public long getTotalDepositsMinorUnits() {
+        return totals.balance();
+    }
+
+    /**
+     * Returns the sum of the balances of the open accounts of a given type in minor units.
+     *
+     * @param accountType The account type.
+     * @return The total balance of accounts of that type in minor units.
+     */
+    public long getTotalDepositsMinorUnits(AccountType accountType) {
+        return totals.balance(accountType);
+    }
+
+    /**
+     * Returns the number of open accounts.
+     *
+     * @return The number of accounts.
+     */
+    public int getAccountCount() {
+        return totals.accounts();
     }
 
     /**
@@ -129,16 +643,53 @@ public class CentralBank implements Transactable, Searchable {
      * @return true if withdrawal is successful, false otherwise.
      */
     public boolean withdraw(Account account, double amount) {
-        if(account == null || amount <= 0) {
-            return false;
+        long start = System.nanoTime();
+        boolean withdrawn = commit(applyWithdraw(account, amount));
+        metrics.record(BankMetrics.Operation.WITHDRAW, start,
+                withdrawn ? TransactionBatch.OK : failureReason(account, account, amount, true));
+        return withdrawn;
+    }
+
+    /**
+     * Withdraws a specified amount from a given account once per idempotency key.
+     * A retry carrying the key of a request seen in the last day is not applied again and
+     * returns the original outcome, once that outcome is durable.
+     *
+     * @param account The account to withdraw from.
+     * @param amount The amount to be withdrawn.
+     * @param idempotencyKey The key identifying the request, the same for every retry.
+     * @return true if the withdrawal, now or originally, is successful, false otherwise.
+     * @throws IllegalArgumentException If the key was used for a different request.
+     */
+    public boolean withdraw(Account account, double amount, long idempotencyKey) {
+        return once(TransactionBatch.WITHDRAW, idempotencyKey, account, account, amount,
+                () -> applyWithdraw(account, amount));
+    }
+
+    /**
+     * Withdraws from an account without waiting for the withdrawal to become durable.
+     * Takes no account lock: the account refuses the withdrawal in the same compare-and-set
+     * as the balance update if it has been closed.
+     *
+     * @return The ticket to pass to {@link #commit(long)}, or 0 if the withdrawal failed.
+     */
+    long applyWithdraw(Account account, double amount) {
+        if(account == null || amount <= 0 || Money.toMinorUnits(amount) <= 0) {
+            return 0;
         }
-        for(Account existingAccount: Accounts) {
-            if(existingAccount.getAccountNumber() == account.getAccountNumber()) {
-                existingAccount.withdraw(amount);
-                return true;
-            }
+        Account existingAccount = getAccountbyAccountID(account.getAccountNumber());
+        if (existingAccount == null) {
+            return 0;
+        }
+        long amountMinorUnits = Money.toMinorUnits(amount);
+        int accountNumber = existingAccount.getAccountNumber();
+        long timestamp = System.currentTimeMillis();
+        long transactionId = TransactionLog.nextTransactionId();
+        if (journal == null) {
+            return existingAccount.withdrawMinorUnits(amountMinorUnits, timestamp, transactionId) ? APPLIED : 0;
         }
-        return false;
+        return journal.log(Journal.WITHDRAW, accountNumber, accountNumber, amountMinorUnits, timestamp, transactionId,
+                transactionId, () -> existingAccount.withdrawMinorUnits(amountMinorUnits, timestamp, transactionId));
     }
 
     /**
@@ -149,13 +700,51 @@ public class CentralBank implements Transactable, Searchable {
      * @return true if account creation is successful, false otherwise.
      */
     public boolean createAccount(Customer customer, AccountType accountType) {
+        return openAccount(customer, accountType) != null;
+    }
+
+    /**
+     * Creates a new account for a given customer and account type.
+     *
+     * @return The new account, or null if account creation failed.
+     */
+    Account openAccount(Customer customer, AccountType accountType) {
         if(customer == null || accountType == null) {
-            return false;
-        } else {
-            Account newAccount = new Account(customer, accountType);
-            customer.getAccounts().add(newAccount);
-            Accounts.add(newAccount);
+            return null;
+        }
+        Account newAccount = new Account(customer, accountType);
+        return commit(applyOpenAccount(newAccount)) ? newAccount : null;
+    }
+
+    /**
+     * Adds a newly constructed account to the bank without waiting for the addition to become durable.
+     *
+     * @return The ticket to pass to {@link #commit(long)}, or 0 if the account was not added.
+     */
+    long applyOpenAccount(Account newAccount) {
+        if (journal == null) {
+            return insertAccount(newAccount) ? APPLIED : 0;
+        }
+        return journal.log(Journal.ACCOUNT_OPENED, newAccount.getAccountNumber(), newAccount.getOwner().getCustomerId(),
+                newAccount.getAccountType().ordinal(), () -> insertAccount(newAccount));
+    }
+
+    /**
+     * Adds an account to the account index and then to its owner without journaling it.
+     * An account whose number is already taken is added to neither.
+     */
+    boolean insertAccount(Account account) {
+        long stamp = indexLock.writeLock();
+        try {
+            if (!Accounts.putIfAbsent(account.getAccountNumber(), account)) {
+                return false;
+            }
+            account.attach(totals, journal);
+            account.getOwner().getAccounts().add(account);
+            account.getOwner().changed();
             return true;
+        } finally {
+            indexLock.unlockWrite(stamp);
         }
     }
 
@@ -167,17 +756,52 @@ public class CentralBank implements Transactable, Searchable {
      * @return true if account closure is successful, false otherwise.
      */
     public boolean closeAccount (Customer customer, Account account) {
+        return commit(applyCloseAccount(customer, account));
+    }
+
+    /**
+     * Closes an account without waiting for the closure to become durable.
+     *
+     * @return The ticket to pass to {@link #commit(long)}, or 0 if the account was not closed.
+     */
+    long applyCloseAccount(Customer customer, Account account) {
         if(customer == null || account == null) {
-            return false;
+            return 0;
         }
-        boolean customerExists = Customers.stream().anyMatch(existingCustomer -> existingCustomer.getCustomerId() == customer.getCustomerId());
-        if(customerExists) {
-            Accounts.remove(account);
-            customer.getAccounts().remove(account);
-            return true;
-        } else {
-            return false;
+        if(getCustomerByID(customer.getCustomerId()) == null) {
+            return 0;
+        }
+        int accountNumber = account.getAccountNumber();
+        accountLocks.lock(accountNumber);
+        try {
+            if (journal == null) {
+                return deleteAccount(customer, account) ? APPLIED : 0;
+            }
+            return journal.log(Journal.ACCOUNT_CLOSED, accountNumber, customer.getCustomerId(), 0,
+                    () -> deleteAccount(customer, account));
+        } finally {
+            accountLocks.unlock(accountNumber);
+        }
+    }
+
+    /**
+     * Closes an account and removes it from the account index and from the given customer
+     * without journaling it. Must be called while holding the account's lock, which keeps
+     * transfers out; deposits and withdrawals are refused by the account itself once closed.
+     */
+    boolean deleteAccount(Customer customer, Account account) {
+        long closingBalance = account.close();
+        long stamp = indexLock.writeLock();
+        try {
+            if (Accounts.remove(account.getAccountNumber()) == account) {
+                account.detach(closingBalance);
+            }
+        } finally {
+            indexLock.unlockWrite(stamp);
         }
+        customer.getAccounts().remove(account);
+        customer.changed();
+        return true;
     }
 
     /**
@@ -189,35 +813,408 @@ public class CentralBank implements Transactable, Searchable {
      * @return true if transfer is successful, false otherwise.
      */
     public boolean transfer (Account fromAccount, Account toAccount, double amount) {
-        if(fromAccount == null || toAccount == null || amount <= 0) {
-            return false;
+        long start = System.nanoTime();
+        boolean transferred = commit(applyTransfer(fromAccount, toAccount, amount));
+        metrics.record(BankMetrics.Operation.TRANSFER, start,
+                transferred ? TransactionBatch.OK : failureReason(fromAccount, toAccount, amount, true));
+        return transferred;
+    }
+
+    /**
+     * Transfers a specified amount from one account to another once per idempotency key.
+     * A retry carrying the key of a request seen in the last day is not applied again and
+     * returns the original outcome, once that outcome is durable.
+     *
+     * @param fromAccount The account to transfer from.
+     * @param toAccount The account to transfer to.
+     * @param amount The amount to be transferred.
+     * @param idempotencyKey The key identifying the request, the same for every retry.
+     * @return true if the transfer, now or originally, is successful, false otherwise.
+     * @throws IllegalArgumentException If the key was used for a different request.
+     */
+    public boolean transfer (Account fromAccount, Account toAccount, double amount, long idempotencyKey) {
+        return once(TransactionBatch.TRANSFER, idempotencyKey, fromAccount, toAccount, amount,
+                () -> applyTransfer(fromAccount, toAccount, amount));
+    }
+
+    /**
+     * Applies and commits a deposit, withdrawal or transfer unless its idempotency key has been
+     * seen, recording it in the metrics only if it is applied now rather than deduplicated.
+     */
+    private boolean once(byte operation, long idempotencyKey, Account account, Account otherAccount, double amount,
+            LongSupplier mutation) {
+        long start = System.nanoTime();
+        boolean[] applied = new boolean[1];
+        boolean succeeded = commit(applyOnce(idempotencyKey, IdempotencyCache.fingerprint(operation, account, otherAccount, amount),
+                () -> {
+                    applied[0] = true;
+                    return mutation.getAsLong();
+                }));
+        if (applied[0]) {
+            metrics.record(BATCH_OPERATIONS[operation], start, succeeded ? TransactionBatch.OK
+                    : failureReason(account, otherAccount, amount, operation != TransactionBatch.DEPOSIT));
         }
-        Account actualFromAccount = null;
-        Account actualToAccount = null;
-        for(Account doesItExist: Accounts) {
-            if(doesItExist.getAccountNumber() == fromAccount.getAccountNumber()) {
-                actualFromAccount = doesItExist;
+        return succeeded;
+    }
+
+    /**
+     * Applies a mutation unless a request with the same idempotency key has been seen in the last day.
+     *
+     * @param idempotencyKey The key identifying the request.
+     * @param fingerprint The fingerprint of the request, from {@link IdempotencyCache#fingerprint(byte, int, int, long)}.
+     * @param mutation Applies the request, returning its ticket.
+     * @return The ticket of the mutation, now or when the key was first seen, to pass to {@link #commit(long)}.
+     * @throws IllegalArgumentException If the key was seen with a different request.
+     */
+    long applyOnce(long idempotencyKey, long fingerprint, LongSupplier mutation) {
+        return idempotencyCache.execute(idempotencyKey, fingerprint, mutation);
+    }
+
+    /**
+     * Works out why a deposit, withdrawal or transfer failed, for the metrics.
+     * Only called after a failure, so the extra lookups stay off the successful path.
+     */
+    private byte failureReason(Account account, Account otherAccount, double amount, boolean debit) {
+        if (account == null || otherAccount == null) {
+            return TransactionBatch.ACCOUNT_NOT_FOUND;
+        }
+        if (!(amount > 0) || Money.toMinorUnits(amount) <= 0) {
+            return TransactionBatch.INVALID_AMOUNT;
+        }
+        Account existing = getAccountbyAccountID(account.getAccountNumber());
+        Account otherExisting = getAccountbyAccountID(otherAccount.getAccountNumber());
+        if (existing == null || existing.isClosed() || otherExisting == null || otherExisting.isClosed()) {
+            return TransactionBatch.ACCOUNT_NOT_FOUND;
+        }
+        return debit ? TransactionBatch.INSUFFICIENT_FUNDS : TransactionBatch.INVALID_AMOUNT;
+    }
+
+    /**
+     * Transfers between accounts without waiting for the transfer to become durable.
+     *
+     * @return The ticket to pass to {@link #commit(long)}, or 0 if the transfer failed.
+     */
+    long applyTransfer(Account fromAccount, Account toAccount, double amount) {
+        if(fromAccount == null || toAccount == null || amount <= 0 || Money.toMinorUnits(amount) <= 0) {
+            return 0;
+        }
+        Account actualFromAccount = getAccountbyAccountID(fromAccount.getAccountNumber());
+        Account actualToAccount = getAccountbyAccountID(toAccount.getAccountNumber());
+        if(actualFromAccount == null || actualToAccount == null) {
+            return 0;
+        }
+        long amountMinorUnits = Money.toMinorUnits(amount);
+        int fromNumber = actualFromAccount.getAccountNumber();
+        int toNumber = actualToAccount.getAccountNumber();
+        long outId = TransactionLog.nextTransactionId();
+        long inId = TransactionLog.nextTransactionId();
+        accountLocks.lockPair(fromNumber, toNumber);
+        try {
+            long timestamp = System.currentTimeMillis();
+            if (journal == null) {
+                return moveFunds(actualFromAccount, actualToAccount, amountMinorUnits, timestamp, outId, inId) ? APPLIED : 0;
             }
-            if(doesItExist.getAccountNumber() == toAccount.getAccountNumber()) {
-                actualToAccount = doesItExist;
+            return journal.log(Journal.TRANSFER, fromNumber, toNumber, amountMinorUnits, timestamp, outId, inId,
+                    () -> moveFunds(actualFromAccount, actualToAccount, amountMinorUnits, timestamp, outId, inId));
+        } finally {
+            accountLocks.unlockPair(fromNumber, toNumber);
+        }
+    }
+
+    /**
+     * Debits an account for a transfer to an account owned by another bank, as in the first
+     * phase of a transfer between shards, without waiting for the debit to become durable.
+     * The debit is journaled and applied under the account's lock like any other.
+     *
+     * @param fromAccount The account to debit, which must belong to this bank and be open.
+     * @param toAccountNumber The number of the account the funds are destined for, for the journal.
+     * @param amountMinorUnits The amount in minor units.
+     * @param timestamp The time of the transfer in milliseconds since the epoch.
+     * @return The ticket to pass to {@link #commit(long)}, or 0 if the account is missing or closed
+     *         or its balance does not cover the amount.
+     */
+    long applyTransferOut(Account fromAccount, int toAccountNumber, long amountMinorUnits, long timestamp) {
+        if (fromAccount == null || amountMinorUnits <= 0) {
+            return 0;
+        }
+        Account existingAccount = getAccountbyAccountID(fromAccount.getAccountNumber());
+        if (existingAccount == null) {
+            return 0;
+        }
+        int accountNumber = existingAccount.getAccountNumber();
+        long transactionId = TransactionLog.nextTransactionId();
+        accountLocks.lock(accountNumber);
+        try {
+            if (journal == null) {
+                return existingAccount.transferOutMinorUnits(amountMinorUnits, timestamp, transactionId) ? APPLIED : 0;
             }
-            if(actualFromAccount != null && actualToAccount != null) {
-                break;
+            return journal.log(Journal.TRANSFER_OUT, accountNumber, toAccountNumber, amountMinorUnits, timestamp,
+                    transactionId, transactionId,
+                    () -> existingAccount.transferOutMinorUnits(amountMinorUnits, timestamp, transactionId));
+        } finally {
+            accountLocks.unlock(accountNumber);
+        }
+    }
+
+    /**
+     * Credits an account with a transfer from an account owned by another bank, as in the second
+     * phase of a transfer between shards or the refund of its first, without waiting for the
+     * credit to become durable. The credit is journaled and applied under the account's lock.
+     *
+     * @param toAccount The account to credit.
+     * @param fromAccountNumber The number of the account the funds come from, for the journal.
+     * @param amountMinorUnits The amount in minor units.
+     * @param timestamp The time of the transfer in milliseconds since the epoch.
+     * @param evenIfClosed Whether to credit the account even if it has been closed, as a refund does.
+     * @return The ticket to pass to {@link #commit(long)}, or 0 if the account is closed and
+     *         not credited regardless.
+     */
+    long applyTransferIn(Account toAccount, int fromAccountNumber, long amountMinorUnits, long timestamp,
+            boolean evenIfClosed) {
+        int accountNumber = toAccount.getAccountNumber();
+        long transactionId = TransactionLog.nextTransactionId();
+        accountLocks.lock(accountNumber);
+        try {
+            if (journal == null) {
+                return creditTransfer(toAccount, amountMinorUnits, timestamp, transactionId, evenIfClosed) ? APPLIED : 0;
             }
+            return journal.log(Journal.TRANSFER_IN, accountNumber, fromAccountNumber, amountMinorUnits, timestamp,
+                    transactionId, transactionId,
+                    () -> creditTransfer(toAccount, amountMinorUnits, timestamp, transactionId, evenIfClosed));
+        } finally {
+            accountLocks.unlock(accountNumber);
         }
-        if(actualFromAccount == null || actualToAccount == null) {
+    }
+
+    private static boolean creditTransfer(Account to, long amountMinorUnits, long timestamp, long transactionId,
+            boolean evenIfClosed) {
+        if (to.isClosed() && !evenIfClosed) {
             return false;
         }
-        if(actualFromAccount.getBalance() < amount) {
+        to.transferInMinorUnits(amountMinorUnits, timestamp, transactionId);
+        return true;
+    }
+
+    /**
+     * Moves funds between two open accounts if the source balance covers the amount, recording
+     * the transfer in both histories at the given time under the given IDs.
+     * Must be called while holding the locks of both accounts.
+     */
+    private boolean moveFunds(Account from, Account to, long amountMinorUnits, long timestamp, long outId, long inId) {
+        if(from.isClosed() || to.isClosed() || !from.transferOutMinorUnits(amountMinorUnits, timestamp, outId)) {
             return false;
-        } else {
-            double balanceFrom = actualFromAccount.getBalance();
-            double balanceTo = actualToAccount.getBalance();
-            balanceFrom -= amount;
-            actualFromAccount.setBalance(balanceFrom);
-            balanceTo += amount;
-            actualToAccount.setBalance(balanceTo);
-            return true;
+        }
+        to.transferInMinorUnits(amountMinorUnits, timestamp, inId);
+        return true;
+    }
+
+    /**
+     * Applies a batch of deposits, withdrawals and transfers in the order they were added.
+     * All accounts are resolved in a single pass over the account index, and the account
+     * locks of every operation are taken once per chunk of operations rather than per operation.
+     *
+     * @param batch The operations to apply.
+     * @return One {@link TransactionBatch} result code per operation, or null if the batch is null.
+     */
+    public byte[] process(TransactionBatch batch) {
+        if(batch == null) {
+            return null;
+        }
+        byte[] results = new byte[batch.size()];
+        commit(applyBatch(batch, results));
+        return results;
+    }
+
+    /**
+     * Applies a batch as {@link #process(TransactionBatch)} does, writing the result codes into
+     * the given array and resolving accounts into the given scratch arrays, so a caller applying
+     * many batches from one thread allocates nothing per batch.
+     *
+     * @param batch The operations to apply.
+     * @param results Receives one {@link TransactionBatch} result code per operation, from index 0.
+     * @param scratch Arrays reused across batches by the calling thread.
+     * @throws java.io.UncheckedIOException If the journal cannot be written.
+     */
+    void process(TransactionBatch batch, byte[] results, BatchScratch scratch) {
+        commit(applyBatch(batch, results, scratch));
+    }
+
+    /**
+     * Applies a batch as {@link #process(TransactionBatch)} does, without waiting for it to become durable.
+     *
+     * @param batch The operations to apply.
+     * @param results Receives one {@link TransactionBatch} result code per operation.
+     * @return The ticket to pass to {@link #commit(long)} before the results are reported.
+     */
+    long applyBatch(TransactionBatch batch, byte[] results) {
+        return applyBatch(batch, results, new BatchScratch());
+    }
+
+    /**
+     * Applies a batch without waiting for it to become durable, resolving accounts into the given scratch arrays.
+     *
+     * @param batch The operations to apply.
+     * @param results Receives one {@link TransactionBatch} result code per operation.
+     * @param scratch Arrays reused across batches by the calling thread.
+     * @return The ticket to pass to {@link #commit(long)} before the results are reported.
+     */
+    long applyBatch(TransactionBatch batch, byte[] results, BatchScratch scratch) {
+        int size = batch.size();
+        scratch.ensureCapacity(size);
+        Account[] fromAccounts = scratch.fromAccounts;
+        Account[] toAccounts = scratch.toAccounts;
+        try {
+            return applyResolvedBatch(batch, results, fromAccounts, toAccounts, scratch.stripes);
+        } finally {
+            Arrays.fill(fromAccounts, 0, size, null);
+            Arrays.fill(toAccounts, 0, size, null);
+        }
+    }
+
+    /**
+     * Resolves the accounts of a batch into the given arrays and applies it chunk by chunk.
+     */
+    private long applyResolvedBatch(TransactionBatch batch, byte[] results, Account[] fromAccounts, Account[] toAccounts,
+            int[] stripes) {
+        int size = batch.size();
+        long stamp = indexLock.tryOptimisticRead();
+        resolveBatchAccounts(batch, fromAccounts, toAccounts);
+        if (!indexLock.validate(stamp)) {
+            stamp = indexLock.readLock();
+            try {
+                resolveBatchAccounts(batch, fromAccounts, toAccounts);
+            } finally {
+                indexLock.unlockRead(stamp);
+            }
+        }
+
+        long lastSequence = 0;
+        for (int start = 0; start < size; start += BATCH_CHUNK_SIZE) {
+            int end = Math.min(start + BATCH_CHUNK_SIZE, size);
+            int lockCount = 0;
+            for (int i = start; i < end; i++) {
+                if (fromAccounts[i] != null && toAccounts[i] != null) {
+                    stripes[lockCount++] = accountLocks.stripeFor(batch.fromAccount(i));
+                    if (batch.operation(i) == TransactionBatch.TRANSFER) {
+                        stripes[lockCount++] = accountLocks.stripeFor(batch.toAccount(i));
+                    }
+                }
+            }
+            Arrays.sort(stripes, 0, lockCount);
+            int distinct = 0;
+            for (int i = 0; i < lockCount; i++) {
+                if (distinct == 0 || stripes[distinct - 1] != stripes[i]) {
+                    stripes[distinct++] = stripes[i];
+                }
+            }
+            for (int i = 0; i < distinct; i++) {
+                accountLocks.lockStripe(stripes[i]);
+            }
+            try {
+                long timestamp = System.currentTimeMillis();
+                for (int i = start; i < end; i++) {
+                    if (journal == null) {
+                        results[i] = applyBatchOperation(batch, i, fromAccounts[i], toAccounts[i], timestamp,
+                                TransactionLog.nextTransactionId(), TransactionLog.nextTransactionId());
+                    } else {
+                        long sequence = logBatchOperation(batch, i, fromAccounts[i], toAccounts[i], timestamp, results);
+                        lastSequence = Math.max(lastSequence, sequence);
+                    }
+                }
+            } finally {
+                for (int i = distinct - 1; i >= 0; i--) {
+                    accountLocks.unlockStripe(stripes[i]);
+                }
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            metrics.count(BATCH_OPERATIONS[batch.operation(i)], results[i]);
+        }
+        return lastSequence > 0 ? lastSequence : APPLIED;
+    }
+
+    /**
+     * Arrays a batch's accounts are resolved into and its lock stripes sorted in, kept by a
+     * thread that applies many batches so that they are allocated once rather than per batch.
+     * Not safe for use by several threads at once.
+     */
+    static final class BatchScratch {
+        private Account[] fromAccounts = new Account[0];
+        private Account[] toAccounts = new Account[0];
+        private final int[] stripes = new int[2 * BATCH_CHUNK_SIZE];
+
+        /**
+         * Grows the account arrays to hold a batch of the given size.
+         */
+        void ensureCapacity(int size) {
+            if (fromAccounts.length < size) {
+                fromAccounts = new Account[size];
+                toAccounts = new Account[size];
+            }
+        }
+    }
+
+    /**
+     * Applies one batch operation under the journal, storing its result code.
+     * The caller commits the batch's last record once, so the whole batch shares its fsyncs.
+     */
+    private long logBatchOperation(TransactionBatch batch, int index, Account from, Account to, long timestamp,
+            byte[] results) {
+        byte type;
+        switch (batch.operation(index)) {
+        case TransactionBatch.DEPOSIT:
+            type = Journal.DEPOSIT;
+            break;
+        case TransactionBatch.WITHDRAW:
+            type = Journal.WITHDRAW;
+            break;
+        default:
+            type = Journal.TRANSFER;
+            break;
+        }
+        long outId = TransactionLog.nextTransactionId();
+        long inId = type == Journal.TRANSFER ? TransactionLog.nextTransactionId() : outId;
+        return journal.log(type, batch.fromAccount(index), batch.toAccount(index), batch.amountMinorUnits(index),
+                timestamp, outId, inId,
+                () -> (results[index] = applyBatchOperation(batch, index, from, to, timestamp, outId, inId)) == TransactionBatch.OK);
+    }
+
+    /**
+     * Looks up the source and destination account of every batch operation.
+     * Must be called under a read of the index lock.
+     */
+    private void resolveBatchAccounts(TransactionBatch batch, Account[] fromAccounts, Account[] toAccounts) {
+        for (int i = 0; i < batch.size(); i++) {
+            fromAccounts[i] = Accounts.get(batch.fromAccount(i));
+            toAccounts[i] = batch.toAccount(i) == batch.fromAccount(i) ? fromAccounts[i] : Accounts.get(batch.toAccount(i));
+        }
+    }
+
+    /**
+     * Applies one batch operation to its resolved accounts, holding the locks of its accounts,
+     * and records it at the given time under the given IDs, the second being used only by a transfer.
+     */
+    private byte applyBatchOperation(TransactionBatch batch, int index, Account from, Account to, long timestamp,
+            long outId, long inId) {
+        long amountMinorUnits = batch.amountMinorUnits(index);
+        if (amountMinorUnits <= 0) {
+            return TransactionBatch.INVALID_AMOUNT;
+        }
+        if (from == null || to == null || from.isClosed() || to.isClosed()) {
+            return TransactionBatch.ACCOUNT_NOT_FOUND;
+        }
+        switch (batch.operation(index)) {
+        case TransactionBatch.DEPOSIT:
+            from.depositMinorUnits(amountMinorUnits, timestamp, outId);
+            return TransactionBatch.OK;
+        case TransactionBatch.WITHDRAW:
+            return from.withdrawMinorUnits(amountMinorUnits, timestamp, outId) ? TransactionBatch.OK : TransactionBatch.INSUFFICIENT_FUNDS;
+        default:
+            if (!from.transferOutMinorUnits(amountMinorUnits, timestamp, outId)) {
+                return TransactionBatch.INSUFFICIENT_FUNDS;
+            }
+            to.transferInMinorUnits(amountMinorUnits, timestamp, inId);
+            return TransactionBatch.OK;
         }
     }
 
@@ -228,36 +1225,206 @@ public class CentralBank implements Transactable, Searchable {
      * @return A list of transaction logs for the customer.
      */
     public List<TransactionLog> getTransactionHistory(Customer customer) {
+        long start = System.nanoTime();
         if(customer == null) {
+            metrics.record(BankMetrics.Operation.TRANSACTION_HISTORY, start, TransactionBatch.ACCOUNT_NOT_FOUND);
             return null;
         }
         ArrayList<TransactionLog> customerTransactionHistory = new ArrayList<>();
         for(Account findingCustomerAccount: customer.getAccounts()) {
-            List<TransactionLog> accountTransactionHistory = findingCustomerAccount.getTransactionHistory();
-            customerTransactionHistory.addAll(accountTransactionHistory);
+            findingCustomerAccount.getTransactionColumns().materializeInto(findingCustomerAccount, customerTransactionHistory);
         }
+        metrics.record(BankMetrics.Operation.TRANSACTION_HISTORY, start, TransactionBatch.OK);
         return customerTransactionHistory;
     }
 
+    /**
+     * Retrieves one page of a customer's transaction history, merged across all their accounts
+     * in time order. Pass {@link TransactionPage#FIRST_PAGE} to read the first page and the
+     * returned page's resume token to read each following page.
+     *
+     * @param customer The customer whose transaction history should be retrieved.
+     * @param resumeToken The resume token, which records where each account's history was left off.
+     * @param pageSize The maximum number of transactions to return.
+     * @return The page of transactions, or null if the customer is null.
+     * @throws IllegalArgumentException If the page size is not positive or the resume token is malformed.
+     */
+    public TransactionPage getTransactionHistory(Customer customer, String resumeToken, int pageSize) {
+        long start = System.nanoTime();
+        if(customer == null) {
+            metrics.record(BankMetrics.Operation.TRANSACTION_HISTORY, start, TransactionBatch.ACCOUNT_NOT_FOUND);
+            return null;
+        }
+        if(pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+        }
+        TransactionPage page = TransactionPage.read(customer.getAccounts(), resumeToken, pageSize);
+        metrics.record(BankMetrics.Operation.TRANSACTION_HISTORY, start, TransactionBatch.OK);
+        return page;
+    }
+
+    /**
+     * Retrieves a customer's transactions made at or after {@code from} and before {@code to},
+     * merged across all their accounts in time order. Each account's range is found by
+     * binary search over its time-ordered history, so the cost grows with the number of matching
+     * transactions rather than with the length of the history.
+     *
+     * @param customer The customer whose transaction history should be retrieved.
+     * @param from The start of the range, inclusive.
+     * @param to The end of the range, exclusive.
+     * @return A list of transaction logs, or null if the customer is null.
+     * @throws IllegalArgumentException If either end of the range is null.
+     */
+    public List<TransactionLog> getTransactionHistory(Customer customer, Date from, Date to) {
+        long start = System.nanoTime();
+        if(customer == null) {
+            metrics.record(BankMetrics.Operation.TRANSACTION_HISTORY, start, TransactionBatch.ACCOUNT_NOT_FOUND);
+            return null;
+        }
+        if(from == null || to == null) {
+            throw new IllegalArgumentException("Range must not be null");
+        }
+        List<TransactionLog> transactions = TransactionPage.readBetween(customer.getAccounts(), from.getTime(), to.getTime());
+        metrics.record(BankMetrics.Operation.TRANSACTION_HISTORY, start, TransactionBatch.OK);
+        return transactions;
+    }
+
+    /**
+     * Reconstructs the balance of an account as of a given time, for disputes and reports.
+     * The balance is the sum of the deposits, withdrawals and transfers recorded on the account at
+     * or before that time; it is replayed from the nearest balance checkpoint in the account's
+     * history, so the cost does not grow with the age of the account. Closed accounts can still be queried.
+     *
+     * @param account The account.
+     * @param when The time to reconstruct the balance at.
+     * @return The balance at that time.
+     * @throws IllegalArgumentException If the account or time is null.
+     */
+    public double getBalanceAsOf(Account account, Date when) {
+        return Money.toMajorUnits(getBalanceMinorUnitsAsOf(account, when));
+    }
+
+    /**
+     * Reconstructs the balance of an account as of a given time in minor units.
+     *
+     * @param account The account.
+     * @param when The time to reconstruct the balance at.
+     * @return The balance at that time, in minor units.
+     * @throws IllegalArgumentException If the account or time is null.
+     */
+    public long getBalanceMinorUnitsAsOf(Account account, Date when) {
+        if (account == null || when == null) {
+            throw new IllegalArgumentException("Account and time must not be null");
+        }
+        return account.getBalanceMinorUnitsAsOf(when);
+    }
+
+    /**
+     * Finds registered customers whose name starts with the given prefix, ignoring case.
+     *
+     * @param prefix The start of the name.
+     * @param limit The maximum number of customers to return.
+     * @return The matching customers in name order.
+     * @throws IllegalArgumentException If the limit is not positive.
+     */
+    public List<Customer> findCustomersByNamePrefix(String prefix, int limit) {
+        return customerIndex.findByNamePrefix(prefix, limit);
+    }
+
+    /**
+     * Finds registered customers whose address equals the given address, ignoring case.
+     *
+     * @param address The address.
+     * @param limit The maximum number of customers to return.
+     * @return The matching customers.
+     * @throws IllegalArgumentException If the limit is not positive.
+     */
+    public List<Customer> findCustomersByAddress(String address, int limit) {
+        return customerIndex.findByAddress(address, limit);
+    }
+
+    /**
+     * Finds registered customers whose address starts with the given prefix, ignoring case.
+     *
+     * @param prefix The start of the address.
+     * @param limit The maximum number of customers to return.
+     * @return The matching customers in address order.
+     * @throws IllegalArgumentException If the limit is not positive.
+     */
+    public List<Customer> findCustomersByAddressPrefix(String prefix, int limit) {
+        return customerIndex.findByAddressPrefix(prefix, limit);
+    }
+
+    /**
+     * Finds registered customers born at or after {@code from} and before {@code to}.
+     *
+     * @param from The earliest date of birth, inclusive.
+     * @param to The latest date of birth, exclusive.
+     * @param limit The maximum number of customers to return.
+     * @return The matching customers, oldest first.
+     * @throws IllegalArgumentException If the limit is not positive.
+     */
+    public List<Customer> findCustomersBornBetween(Date from, Date to, int limit) {
+        return customerIndex.findByDateOfBirth(from, to, limit);
+    }
+
     /**
      * Generates a summary for a given customer including their details and account information.
+     * The summary is cached and reused until the customer's details, accounts or balances next change.
      *
      * @param customer The customer whose summary should be generated.
      * @return A formatted string representation of the customer's details and accounts.
      */
     public String getCustomerSummary(Customer customer) {
+        long start = System.nanoTime();
         if(customer == null) {
+            metrics.record(BankMetrics.Operation.CUSTOMER_SUMMARY, start, TransactionBatch.ACCOUNT_NOT_FOUND);
             return null;
         }
-        String summary = "Customer Summary for " + customer.getName() + "\n" + customer.getAddress() + "\n";
-        List<Account> accounts = customer.getAccounts();
-        for(Account account: accounts) {
-            summary += "Account No: " + account.getAccountNumber() + "\n" +
-                       "Account type: " + account.getAccountType() + "\n" + "Balance: " + account.getBalance() + "\n";
-        }
-        summary += "Total Accounts: " + accounts.size();
+        String summary = summaryCache.get(customer, this::renderCustomerSummary);
+        metrics.record(BankMetrics.Operation.CUSTOMER_SUMMARY, start, TransactionBatch.OK);
         return summary;
     }
+
+    /**
+     * Writes the summary of a customer from their current details and accounts to the given
+     * destination, without building intermediate strings or consulting the summary cache.
+     *
+     * @param customer The customer whose summary should be written.
+     * @param out The destination.
+     * @throws IOException If the destination cannot be written.
+     */
+    public void appendCustomerSummary(Customer customer, Appendable out) throws IOException {
+        out.append("Customer Summary for ").append(customer.getName()).append('\n');
+        out.append(customer.getAddress()).append('\n');
+        int count = 0;
+        for(Account account: customer.getAccounts()) {
+            Report.appendNumber(out.append("Account No: "), account.getAccountNumber()).append('\n');
+            out.append("Account type: ").append(String.valueOf(account.getAccountType())).append('\n');
+            Report.appendAmount(out.append("Balance: "), account.getBalanceMinorUnits()).append('\n');
+            count++;
+        }
+        Report.appendNumber(out.append("Total Accounts: "), count);
+    }
+
+    /**
+     * Writes the summary of a customer to the given buffer as UTF-8.
+     *
+     * @param customer The customer whose summary should be written.
+     * @param buffer The destination buffer.
+     * @return The buffer.
+     * @throws java.nio.BufferOverflowException If the summary does not fit in the buffer.
+     */
+    public ByteBuffer appendCustomerSummary(Customer customer, ByteBuffer buffer) {
+        return Report.render(out -> appendCustomerSummary(customer, out), buffer);
+    }
+
+    /**
+     * Builds the summary of a customer from their current details and accounts.
+     */
+    private String renderCustomerSummary(Customer customer) {
+        return Report.render(out -> appendCustomerSummary(customer, out));
+    }
 }
 
 
@@ -2,8 +2,34 @@ package Bank;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
 
 import org.junit.jupiter.api.Test;
 
@@ -110,5 +136,972 @@ public class CentralBankAppTest {
         assertFalse(centralBank.transfer(fromAccount, toAccount, 1500)); // Balance after previous transaction is 500
     }
 
+    /**
+     * Test that balances are kept in exact minor units.
+     * Validates that repeated fractional deposits do not accumulate rounding errors.
+     */
+    @Test
+    public void testFixedPointBalance() {
+        centralBank.addCustomer(customer);
+        centralBank.createAccount(customer, AccountType.SAVINGS);
+        account = customer.getAccounts().get(0);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(centralBank.deposit(account, 0.1));
+        }
+        assertEquals(100, account.getBalanceMinorUnits());
+        assertTrue(centralBank.withdraw(account, 1.0));
+        assertEquals(0, account.getBalanceMinorUnits());
+        assertFalse(account.tryDebit(1)); // Conditional debit must not overdraw
+        centralBank.createAccount(customer, AccountType.CURRENT);
+        Account other = customer.getAccounts().get(1);
+        assertFalse(centralBank.withdraw(account, 0.001)); // Rounds to zero minor units
+        assertFalse(centralBank.transfer(account, other, 0.001));
+        assertEquals(11, account.getTransactionHistory().size());
+        assertEquals(0, other.getTransactionHistory().size());
+    }
+
+    /**
+     * Test the batch operation of the CentralBank.
+     * Validates that each operation in a batch reports its own result code.
+     */
+    @Test
+    public void testProcessBatch() {
+        centralBank.addCustomer(customer);
+        centralBank.createAccount(customer, AccountType.SAVINGS);
+        centralBank.createAccount(customer, AccountType.CURRENT);
+        int first = customer.getAccounts().get(0).getAccountNumber();
+        int second = customer.getAccounts().get(1).getAccountNumber();
+        TransactionBatch batch = new TransactionBatch()
+                .addDeposit(first, 100)
+                .addTransfer(first, second, 40)
+                .addWithdraw(second, 50)
+                .addDeposit(first, -5)
+                .addDeposit(-1, 10);
+        byte[] results = centralBank.process(batch);
+        assertArrayEquals(new byte[] {TransactionBatch.OK, TransactionBatch.OK, TransactionBatch.INSUFFICIENT_FUNDS,
+                TransactionBatch.INVALID_AMOUNT, TransactionBatch.ACCOUNT_NOT_FOUND}, results);
+        assertEquals(60, centralBank.getAccountbyAccountID(first).getBalance());
+        assertEquals(40, centralBank.getAccountbyAccountID(second).getBalance());
+    }
+
+    /**
+     * Test that closing an account removes it from account lookups.
+     * Validates that an account whose number is taken is added nowhere, and that a closed
+     * account can no longer be found or deposited into.
+     */
+    @Test
+    public void testCloseAccountRemovesLookup() {
+        centralBank.addCustomer(customer);
+        centralBank.createAccount(customer, AccountType.CURRENT);
+        Account opened = customer.getAccounts().get(0);
+        assertSame(opened, centralBank.getAccountbyAccountID(opened.getAccountNumber()));
+        assertFalse(centralBank.insertAccount(new Account(opened.getAccountNumber(), customer, AccountType.SAVINGS)));
+        assertEquals(List.of(opened), customer.getAccounts()); // The duplicate is not added to the owner
+        assertTrue(centralBank.closeAccount(customer, opened));
+        assertNull(centralBank.getAccountbyAccountID(opened.getAccountNumber()));
+        assertFalse(centralBank.deposit(opened, 100)); // Closed accounts no longer accept deposits
+    }
+
+    /**
+     * Test that customer summaries are reused until the customer changes.
+     * Validates that balance changes and renames are reflected in the next summary.
+     */
+    @Test
+    public void testCustomerSummaryCache() {
+        centralBank.addCustomer(customer);
+        centralBank.createAccount(customer, AccountType.SAVINGS);
+        account = customer.getAccounts().get(0);
+        String summary = centralBank.getCustomerSummary(customer);
+        assertSame(summary, centralBank.getCustomerSummary(customer));
+        assertTrue(centralBank.deposit(account, 25));
+        assertTrue(centralBank.getCustomerSummary(customer).contains("Balance: 25.0"));
+        customer.setName("Jane Doe");
+        assertTrue(centralBank.getCustomerSummary(customer).startsWith("Customer Summary for Jane Doe"));
+    }
+
+    /**
+     * Test the customer search indexes of the CentralBank.
+     * Validates that searches follow renames and customer removals.
+     */
+    @Test
+    public void testFindCustomers() {
+        Customer customer2 = new Customer("Johnny Smith", "456 Elm St", new Date(0));
+        centralBank.addCustomer(customer);
+        centralBank.addCustomer(customer2);
+        assertEquals(List.of(customer, customer2), centralBank.findCustomersByNamePrefix("john", 10));
+        assertEquals(List.of(customer2), centralBank.findCustomersByAddress("456 ELM ST", 10));
+        assertEquals(List.of(customer2), centralBank.findCustomersBornBetween(new Date(0), new Date(1), 10));
+        customer.setName("Jane Doe");
+        assertEquals(List.of(customer2), centralBank.findCustomersByNamePrefix("john", 10));
+        assertTrue(centralBank.removeCustomer(customer2));
+        assertTrue(centralBank.findCustomersByNamePrefix("john", 10).isEmpty());
+    }
+
+    /**
+     * Test the bank-wide totals of the CentralBank.
+     * Validates that totals and net worth follow deposits, transfers and account closures.
+     */
+    @Test
+    public void testTotals() {
+        centralBank.addCustomer(customer);
+        centralBank.createAccount(customer, AccountType.SAVINGS);
+        centralBank.createAccount(customer, AccountType.CURRENT);
+        Account savings = customer.getAccounts().get(0);
+        Account current = customer.getAccounts().get(1);
+        assertTrue(centralBank.deposit(savings, 100));
+        assertTrue(centralBank.transfer(savings, current, 30));
+        assertEquals(70, centralBank.getTotalDeposits(AccountType.SAVINGS));
+        assertEquals(30, centralBank.getTotalDeposits(AccountType.CURRENT));
+        assertEquals(2, centralBank.getAccountCount());
+        assertEquals(100, customer.getNetWorth());
+        assertTrue(centralBank.closeAccount(customer, current));
+        assertEquals(0, centralBank.getTotalDeposits(AccountType.CURRENT));
+        assertEquals(1, centralBank.getAccountCount());
+        assertEquals(70, customer.getNetWorth());
+    }
+
+    /**
+     * Test the bank totals while accounts are closed during concurrent deposits.
+     * Validates that the totals and net worth match the open accounts afterwards,
+     * although deposits take no account lock.
+     */
+    @Test
+    public void testTotalsWithConcurrentClose() throws InterruptedException {
+        centralBank.addCustomer(customer);
+        for (int i = 0; i < 200; i++) {
+            centralBank.createAccount(customer, AccountType.SAVINGS);
+        }
+        List<Account> accounts = List.copyOf(customer.getAccounts());
+        Thread depositor = new Thread(() -> {
+            for (int round = 0; round < 50; round++) {
+                for (Account target : accounts) {
+                    centralBank.deposit(target, 1);
+                }
+            }
+        });
+        depositor.start();
+        for (int i = 0; i < accounts.size(); i += 2) {
+            assertTrue(centralBank.closeAccount(customer, accounts.get(i)));
+        }
+        depositor.join();
+        long open = 0;
+        for (Account remaining : customer.getAccounts()) {
+            open += remaining.getBalanceMinorUnits();
+        }
+        assertEquals(open, centralBank.getTotalDepositsMinorUnits());
+        assertEquals(open, customer.getNetWorthMinorUnits());
+        assertEquals(100, centralBank.getAccountCount());
+        Account closed = accounts.get(0);
+        long closingBalance = closed.getBalanceMinorUnits();
+        assertFalse(closed.depositMinorUnits(1)); // A closed account refuses deposits itself
+        assertEquals(closingBalance, closed.getBalanceMinorUnits());
+    }
+
+    /**
+     * Test the point-in-time balance query of the CentralBank.
+     * Validates balances reconstructed across several checkpoint intervals and after transfers.
+     */
+    @Test
+    public void testBalanceAsOf() {
+        centralBank.addCustomer(customer);
+        centralBank.createAccount(customer, AccountType.SAVINGS);
+        centralBank.createAccount(customer, AccountType.CURRENT);
+        account = customer.getAccounts().get(0);
+        Account other = customer.getAccounts().get(1);
+        for (int i = 1; i <= 200; i++) {
+            assertTrue(account.depositMinorUnits(100, i * 1000L));
+        }
+        assertEquals(0, centralBank.getBalanceAsOf(account, new Date(999)));
+        assertEquals(1, centralBank.getBalanceAsOf(account, new Date(1000)));
+        assertEquals(130, centralBank.getBalanceAsOf(account, new Date(130500)));
+        assertTrue(centralBank.transfer(account, other, 50));
+        assertEquals(200, centralBank.getBalanceAsOf(account, new Date(200000)));
+        assertEquals(150, centralBank.getBalanceAsOf(account, new Date()));
+        assertEquals(50, centralBank.getBalanceAsOf(other, new Date()));
+    }
+
+    /**
+     * Test reading a customer's transactions between two times.
+     * Validates that the range is start-inclusive and end-exclusive across accounts, and that a
+     * missing end of the range is rejected.
+     */
+    @Test
+    public void testTransactionHistoryBetween() {
+        centralBank.addCustomer(customer);
+        centralBank.createAccount(customer, AccountType.SAVINGS);
+        centralBank.createAccount(customer, AccountType.CURRENT);
+        account = customer.getAccounts().get(0);
+        Account other = customer.getAccounts().get(1);
+        for (int i = 1; i <= 10; i++) {
+            assertTrue(account.depositMinorUnits(100, i * 1000L));
+            assertTrue(other.depositMinorUnits(100, i * 1000L + 500));
+        }
+        List<TransactionLog> between = centralBank.getTransactionHistory(customer, new Date(3000), new Date(6000));
+        assertEquals(6, between.size());
+        assertEquals(3000, between.get(0).getTimestamp());
+        assertEquals(5500, between.get(5).getTimestamp());
+        assertThrows(IllegalArgumentException.class, () -> centralBank.getTransactionHistory(customer, null, new Date()));
+        assertThrows(IllegalArgumentException.class, () -> centralBank.getTransactionHistory(customer, new Date(), null));
+        assertThrows(IllegalArgumentException.class, () -> account.getTransactionHistory(null, null));
+    }
+
+    /**
+     * Test deposits, withdrawals and transfers carrying an idempotency key.
+     * Validates that a retried request returns its original outcome without moving money again.
+     */
+    @Test
+    public void testIdempotencyKeys() {
+        centralBank.addCustomer(customer);
+        centralBank.createAccount(customer, AccountType.SAVINGS);
+        centralBank.createAccount(customer, AccountType.CURRENT);
+        account = customer.getAccounts().get(0);
+        Account other = customer.getAccounts().get(1);
+        assertTrue(centralBank.deposit(account, 100, 1L));
+        assertTrue(centralBank.deposit(account, 100, 1L)); // Retry is not applied again
+        assertFalse(centralBank.withdraw(account, 150, 2L));
+        assertTrue(centralBank.deposit(account, 100, 3L));
+        assertFalse(centralBank.withdraw(account, 150, 2L)); // Retry keeps the original failure
+        assertTrue(centralBank.transfer(account, other, 50, 4L));
+        assertTrue(centralBank.transfer(account, other, 50, 4L));
+        assertEquals(150, account.getBalance());
+        assertEquals(50, other.getBalance());
+        assertThrows(IllegalArgumentException.class, () -> centralBank.withdraw(account, 100, 1L)); // Key reused
+        assertEquals(150, account.getBalance());
+        assertEquals(2, centralBank.getMetrics().getDeposit().getCount()); // Retries are not counted again
+    }
+
+    /**
+     * Test the IdempotencyCache directly with a given clock.
+     * Validates expiry after the time to live, that a request which threw is not remembered,
+     * eviction of the oldest key at capacity and growth.
+     */
+    @Test
+    public void testIdempotencyCacheExpiryAndEviction() {
+        IdempotencyCache cache = new IdempotencyCache(64 * 64, 1000);
+        int[] runs = new int[1];
+        LongSupplier operation = () -> ++runs[0];
+        assertEquals(1, cache.execute(7, 1, operation, 0));
+        assertEquals(1, cache.execute(7, 1, operation, 999)); // Still remembered
+        assertEquals(2, cache.execute(7, 1, operation, 1000)); // Expired, so applied again
+        assertThrows(IllegalArgumentException.class, () -> cache.execute(7, 2, operation, 1000));
+        assertThrows(IllegalStateException.class, () -> cache.execute(8, 1, () -> {
+            throw new IllegalStateException("Failed");
+        }, 1000));
+        assertEquals(3, cache.execute(8, 1, operation, 1000)); // A request that threw is not remembered
+
+        // Far more keys than the initial segment size, so every segment grows to its capacity.
+        for (long key = 100; key < 100 + 64 * 64 * 4; key++) {
+            assertEquals(runs[0] + 1, cache.execute(key, 1, operation, 2000));
+        }
+        assertEquals(64 * 64, cache.size());
+        int before = runs[0];
+        long newest = 100 + 64 * 64 * 4 - 1;
+        assertEquals(before, cache.execute(newest, 1, operation, 2000)); // Newest key is remembered
+        assertEquals(before + 1, cache.execute(100, 1, operation, 2000)); // Oldest key was evicted
+    }
+
+    /**
+     * Test paging through a customer's history while several threads write to two accounts.
+     * Validates that every transaction is paged exactly once and each account's transactions
+     * arrive in the order they were recorded, even those recorded after a page passed them by.
+     */
+    @Test
+    public void testConcurrentHistoryPages() throws InterruptedException {
+        centralBank.addCustomer(customer);
+        centralBank.createAccount(customer, AccountType.SAVINGS);
+        centralBank.createAccount(customer, AccountType.CURRENT);
+        List<Account> accounts = List.copyOf(customer.getAccounts());
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            Account target = accounts.get(t % 2);
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    assertTrue(centralBank.deposit(target, 1));
+                }
+            });
+            threads[t].start();
+        }
+        Set<Long> paged = new HashSet<>();
+        int[] rowsPaged = new int[accounts.size()];
+        String token = TransactionPage.FIRST_PAGE;
+        boolean writing;
+        TransactionPage page;
+        do {
+            writing = false;
+            for (Thread thread : threads) {
+                writing |= thread.isAlive();
+            }
+            page = centralBank.getTransactionHistory(customer, token, 7);
+            for (TransactionLog log : page.getTransactions()) {
+                assertTrue(paged.add(log.getTransactionId())); // No transaction is paged twice
+                int index = log.getAccountNumber() == accounts.get(0).getAccountNumber() ? 0 : 1;
+                assertEquals(accounts.get(index).getTransactionHistory().get(rowsPaged[index]++).getTransactionId(),
+                        log.getTransactionId());
+            }
+            token = page.getResumeToken();
+        } while (writing || page.hasMore());
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(2000, paged.size());
+        assertThrows(IllegalArgumentException.class, () -> centralBank.getTransactionHistory(customer, "1:x", 7));
+    }
+
+    /**
+     * Test reopening a bank from its journal.
+     * Validates that account numbers and transaction IDs assigned after the restart never repeat earlier ones.
+     */
+    @Test
+    public void testIdsAfterReopen() throws IOException {
+        Path directory = Files.createTempDirectory("bank");
+        Path journalFile = directory.resolve("bank.journal");
+        try {
+            int firstAccount;
+            long firstTransaction;
+            try (CentralBank bank = CentralBank.open(journalFile)) {
+                assertTrue(bank.addCustomer(customer));
+                assertTrue(bank.createAccount(customer, AccountType.SAVINGS));
+                account = customer.getAccounts().get(0);
+                assertTrue(bank.deposit(account, 100));
+                firstAccount = account.getAccountNumber();
+                firstTransaction = account.getTransactionHistory().get(0).getTransactionId();
+            }
+            try (CentralBank reopened = CentralBank.open(journalFile)) {
+                Customer restored = reopened.getCustomerByID(customer.getCustomerId());
+                assertEquals(100, restored.getAccounts().get(0).getBalance());
+                assertTrue(reopened.createAccount(restored, AccountType.CURRENT));
+                Account second = restored.getAccounts().get(1);
+                assertTrue(reopened.deposit(second, 50));
+                assertNotEquals(firstAccount, second.getAccountNumber());
+                assertTrue(second.getTransactionHistory().get(0).getTransactionId() > firstTransaction);
+            }
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Test the BinaryBankServer with a client pipelining requests.
+     * Validates responses to deposits and lookups, and that a request the bank fails to apply
+     * disconnects only its client while the selector thread keeps serving new connections.
+     */
+    @Test
+    public void testBinaryServer() throws IOException {
+        AtomicBoolean failing = new AtomicBoolean();
+        CentralBank bank = new CentralBank() {
+            @Override
+            void process(TransactionBatch batch, byte[] results, BatchScratch scratch) {
+                if (failing.get()) {
+                    throw new UncheckedIOException(new IOException("Journal failed"));
+                }
+                super.process(batch, results, scratch);
+            }
+        };
+        bank.addCustomer(customer);
+        bank.createAccount(customer, AccountType.SAVINGS);
+        int accountNumber = customer.getAccounts().get(0).getAccountNumber();
+        try (BinaryBankServer server = new BinaryBankServer(bank, 0, 1)) {
+            server.start();
+            try (SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", server.getPort()))) {
+                ByteBuffer requests = ByteBuffer.allocate(2 * BinaryBankServer.REQUEST_SIZE);
+                requests.putLong(1).put(BinaryBankServer.DEPOSIT).put(new byte[3]).putInt(accountNumber).putInt(0).putLong(250);
+                requests.putLong(2).put(BinaryBankServer.LOOKUP).put(new byte[3]).putInt(accountNumber).putInt(0).putLong(0);
+                client.write(requests.flip());
+                ByteBuffer responses = ByteBuffer.allocate(2 * BinaryBankServer.RESPONSE_SIZE);
+                while (responses.hasRemaining()) {
+                    assertTrue(client.read(responses) >= 0);
+                }
+                responses.flip();
+                assertEquals(1, responses.getLong(0));
+                assertEquals(TransactionBatch.OK, responses.get(8));
+                assertEquals(2, responses.getLong(24));
+                assertEquals(TransactionBatch.OK, responses.get(32));
+                assertEquals(250, responses.getLong(40));
+
+                failing.set(true);
+                requests.clear().putLong(3).put(BinaryBankServer.DEPOSIT).put(new byte[3]).putInt(accountNumber).putInt(0)
+                        .putLong(250);
+                client.write(requests.flip());
+                assertEquals(-1, client.read(ByteBuffer.allocate(BinaryBankServer.RESPONSE_SIZE)));
+            }
+            failing.set(false);
+            try (SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", server.getPort()))) {
+                ByteBuffer request = ByteBuffer.allocate(BinaryBankServer.REQUEST_SIZE);
+                request.putLong(4).put(BinaryBankServer.LOOKUP).put(new byte[3]).putInt(accountNumber).putInt(0).putLong(0);
+                client.write(request.flip());
+                ByteBuffer response = ByteBuffer.allocate(BinaryBankServer.RESPONSE_SIZE);
+                while (response.hasRemaining()) {
+                    assertTrue(client.read(response) >= 0);
+                }
+                assertEquals(4, response.getLong(0));
+                assertEquals(250, response.getLong(16));
+            }
+        }
+    }
+
+    /**
+     * Test the line-based BankServer.
+     * Validates that an overlong line is answered with an error without ending the connection,
+     * and that a request the bank fails to apply is answered with an error.
+     */
+    @Test
+    public void testBankServer() throws IOException {
+        AtomicBoolean failing = new AtomicBoolean();
+        CentralBank bank = new CentralBank() {
+            @Override
+            public boolean deposit(Account account, double amount) {
+                if (failing.get()) {
+                    throw new UncheckedIOException(new IOException("Journal failed"));
+                }
+                return super.deposit(account, amount);
+            }
+        };
+        bank.addCustomer(customer);
+        bank.createAccount(customer, AccountType.SAVINGS);
+        int accountNumber = customer.getAccounts().get(0).getAccountNumber();
+        try (BankServer server = new BankServer(bank, 0)) {
+            server.start();
+            try (Socket client = new Socket("localhost", server.getPort())) {
+                OutputStream out = client.getOutputStream();
+                BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+                out.write(("DEPOSIT " + accountNumber + " " + "9".repeat(BankServer.MAX_LINE_LENGTH) + "\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                out.write(("DEPOSIT " + accountNumber + " 250\r\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                assertEquals("ERROR Line longer than " + BankServer.MAX_LINE_LENGTH + " characters", in.readLine());
+                assertEquals("OK", in.readLine());
+
+                failing.set(true);
+                out.write(("DEPOSIT " + accountNumber + " 250\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                assertEquals("ERROR Failed to apply DEPOSIT", in.readLine());
+                failing.set(false);
+                out.write("QUIT\n".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                assertEquals("OK", in.readLine());
+            }
+        }
+        assertEquals(250, bank.getAccountbyAccountID(accountNumber).getBalance());
+    }
+
+    /**
+     * Test the off-heap MappedLedger.
+     * Validates transfers between ledger accounts and that balances survive reopening the ledger.
+     */
+    @Test
+    public void testMappedLedger() throws IOException {
+        Path file = Files.createTempFile("ledger", ".bin");
+        Files.delete(file);
+        try (MappedLedger ledger = MappedLedger.open(file, 10, id -> null)) {
+            int first = ledger.openAccount(1, AccountType.SAVINGS);
+            int second = ledger.openAccount(2, AccountType.CURRENT);
+            assertTrue(ledger.deposit(ledger.getAccount(first), 100));
+            assertTrue(ledger.transfer(ledger.getAccount(first), ledger.getAccount(second), 40));
+            assertFalse(ledger.withdraw(ledger.getAccount(first), 100)); // Insufficient funds
+            assertTrue(ledger.closeAccount(second));
+            assertNull(ledger.getAccount(second));
+        }
+        try (MappedLedger reopened = MappedLedger.open(file, 10, id -> null)) {
+            assertEquals(2, reopened.getAccountCount());
+            assertEquals(60, reopened.getAccount(0).getBalance());
+            assertEquals(4000, reopened.getBalanceMinorUnits(1));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Test reopening a MappedLedger after a crash in the middle of a transfer.
+     * Validates that the transfer's undo record restores both balances.
+     */
+    @Test
+    public void testMappedLedgerUndoesInterruptedTransfer() throws IOException {
+        Path file = Files.createTempFile("ledger", ".bin");
+        Files.delete(file);
+        try {
+            try (MappedLedger ledger = MappedLedger.open(file, 10, id -> null)) {
+                ledger.openAccount(1, AccountType.SAVINGS);
+                ledger.openAccount(2, AccountType.CURRENT);
+                assertEquals(TransactionBatch.OK, ledger.depositMinorUnits(0, 10000));
+            }
+            // Debit 4000 from the first account and crash before crediting the second.
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ByteBuffer balance = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.nativeOrder()).putLong(6000);
+                channel.write(balance.flip(), MappedLedger.RECORD_SIZE);
+                ByteBuffer undo = ByteBuffer.allocate(MappedLedger.UNDO_RECORD_SIZE).order(ByteOrder.nativeOrder());
+                undo.putInt(1).putInt(0).putInt(1).putInt(0).putLong(10000).putLong(0);
+                channel.write(undo.flip(), 11L * MappedLedger.RECORD_SIZE);
+            }
+            try (MappedLedger reopened = MappedLedger.open(file, 10, id -> null)) {
+                assertEquals(10000, reopened.getBalanceMinorUnits(0));
+                assertEquals(0, reopened.getBalanceMinorUnits(1));
+                assertEquals(TransactionBatch.OK, reopened.transferMinorUnits(0, 1, 4000));
+            }
+            try (MappedLedger reopened = MappedLedger.open(file, 10, id -> null)) {
+                assertEquals(6000, reopened.getBalanceMinorUnits(0));
+                assertEquals(4000, reopened.getBalanceMinorUnits(1));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Test archiving older transaction history into segment files.
+     * Validates that history and balance queries read archived transactions back unchanged.
+     */
+    @Test
+    public void testArchiveHistory() throws IOException {
+        centralBank.addCustomer(customer);
+        centralBank.createAccount(customer, AccountType.SAVINGS);
+        account = customer.getAccounts().get(0);
+        for (int i = 1; i <= 200; i++) {
+            assertTrue(account.depositMinorUnits(100, i * 1000L));
+        }
+        List<TransactionLog> history = List.copyOf(account.getTransactionHistory());
+        Path directory = Files.createTempDirectory("history");
+        try {
+            centralBank.enableHistoryArchive(directory);
+            assertEquals(150, centralBank.archiveHistory(new Date(150500)));
+            assertEquals(0, centralBank.archiveHistory(new Date(150500)));
+            assertEquals(50, account.getTransactionColumns().size() - account.getTransactionColumns().sealedRows());
+            assertEquals(history.size(), account.getTransactionHistory().size());
+            for (int i = 0; i < history.size(); i++) {
+                assertEquals(history.get(i).getTransactionId(), account.getTransactionHistory().get(i).getTransactionId());
+            }
+            assertEquals(10, centralBank.getTransactionHistory(customer, new Date(10500), new Date(20500)).size());
+            assertEquals(130, centralBank.getBalanceAsOf(account, new Date(130500)));
+        } finally {
+            centralBank.close();
+            deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * Test a checkpoint of a bank with archived history.
+     * Validates that the reopened bank reads the sealed transactions from the kept segment files,
+     * that rows recorded after archiving follow them, and that archiving again adds new files.
+     */
+    @Test
+    public void testArchivedHistorySnapshot() throws IOException {
+        Path directory = Files.createTempDirectory("bank");
+        Path journalFile = directory.resolve("bank.journal");
+        Path archiveDirectory = directory.resolve("history");
+        try {
+            List<Long> transactionIds = new ArrayList<>();
+            try (CentralBank bank = CentralBank.open(journalFile)) {
+                assertTrue(bank.addCustomer(customer));
+                assertTrue(bank.createAccount(customer, AccountType.SAVINGS));
+                account = customer.getAccounts().get(0);
+                for (int i = 0; i < 100; i++) {
+                    assertTrue(bank.deposit(account, 1));
+                }
+                bank.enableHistoryArchive(archiveDirectory);
+                assertEquals(100, bank.archiveHistory(new Date(Long.MAX_VALUE)));
+                assertTrue(bank.withdraw(account, 30));
+                for (TransactionLog transaction : account.getTransactionHistory()) {
+                    transactionIds.add(transaction.getTransactionId());
+                }
+                bank.checkpoint();
+            }
+            try (CentralBank reopened = CentralBank.open(journalFile)) {
+                Account restored = reopened.getCustomerByID(customer.getCustomerId()).getAccounts().get(0);
+                assertEquals(100, restored.getTransactionColumns().sealedRows());
+                assertEquals(70, restored.getBalance());
+                List<TransactionLog> history = restored.getTransactionHistory();
+                assertEquals(transactionIds.size(), history.size());
+                for (int i = 0; i < history.size(); i++) {
+                    assertEquals((long) transactionIds.get(i), history.get(i).getTransactionId());
+                }
+                assertEquals(100, reopened.getBalanceAsOf(restored, new Date(history.get(99).getTimestamp())), 0.001);
+                reopened.enableHistoryArchive(archiveDirectory);
+                assertThrows(IllegalStateException.class, () -> reopened.enableHistoryArchive(directory));
+                assertTrue(reopened.deposit(restored, 5));
+                assertEquals(2, reopened.archiveHistory(new Date(Long.MAX_VALUE)));
+                assertEquals(102, restored.getTransactionColumns().sealedRows());
+                try (Stream<Path> files = Files.list(archiveDirectory)) {
+                    assertEquals(2, files.count());
+                }
+            }
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * Test a BankSequencer in front of a journaled bank.
+     * Validates blocking and callback mutations from several threads, batch results, a reused
+     * idempotency key being rejected as it is by the bank, and that batches applied by the
+     * writer are durable once their results are returned.
+     */
+    @Test
+    public void testSequencer() throws Exception {
+        Path directory = Files.createTempDirectory("bank");
+        Path journalFile = directory.resolve("bank.journal");
+        try {
+            int firstNumber;
+            int secondNumber;
+            AtomicLong callbacks = new AtomicLong();
+            try (CentralBank bank = CentralBank.open(journalFile)) {
+                BankSequencer sequencer = new BankSequencer(bank, 64);
+                try {
+                    assertTrue(sequencer.addCustomer(customer));
+                    Account first = sequencer.createAccount(customer, AccountType.SAVINGS);
+                    Account second = sequencer.createAccount(customer, AccountType.CURRENT);
+                    firstNumber = first.getAccountNumber();
+                    secondNumber = second.getAccountNumber();
+                    Thread[] threads = new Thread[4];
+                    for (int t = 0; t < threads.length; t++) {
+                        threads[t] = new Thread(() -> {
+                            for (int i = 0; i < 250; i++) {
+                                assertTrue(sequencer.deposit(first, 1));
+                                sequencer.deposit(second, 1, deposited -> {
+                                    if (deposited) {
+                                        callbacks.incrementAndGet();
+                                    }
+                                });
+                            }
+                        });
+                        threads[t].start();
+                    }
+                    for (Thread thread : threads) {
+                        thread.join();
+                    }
+                    TransactionBatch batch = new TransactionBatch()
+                            .addTransfer(firstNumber, secondNumber, 400)
+                            .addWithdraw(secondNumber, 5000) // Insufficient funds
+                            .addDeposit(-1, 10);
+                    assertArrayEquals(new byte[] {TransactionBatch.OK, TransactionBatch.INSUFFICIENT_FUNDS,
+                            TransactionBatch.ACCOUNT_NOT_FOUND}, sequencer.process(batch));
+                    assertNull(sequencer.process(null));
+                    assertTrue(sequencer.deposit(first, 10, 7L));
+                    assertTrue(sequencer.deposit(first, 10, 7L)); // Retry is not applied again
+                    assertThrows(IllegalArgumentException.class, () -> sequencer.withdraw(first, 10, 7L)); // Key reused
+                    assertTrue(sequencer.withdraw(first, 10, 8L));
+                } finally {
+                    sequencer.close();
+                }
+                assertEquals(1000, callbacks.get());
+                assertEquals(600, bank.getAccountbyAccountID(firstNumber).getBalance());
+                assertEquals(1400, bank.getAccountbyAccountID(secondNumber).getBalance());
+            }
+            try (CentralBank reopened = CentralBank.open(journalFile)) {
+                assertEquals(600, reopened.getAccountbyAccountID(firstNumber).getBalance());
+                assertEquals(1400, reopened.getAccountbyAccountID(secondNumber).getBalance());
+            }
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * Test CSV and binary exports read back row by row.
+     * Validates that every row is exported once with its account, owner, type, amount and time,
+     * including negative amounts, and that no account is split across partitions.
+     */
+    @Test
+    public void testExportRoundTrip() throws IOException {
+        centralBank.addCustomer(customer);
+        int[] deposits = {5, 0, 1, 7};
+        Set<String> expected = new HashSet<>();
+        for (int deposit : deposits) {
+            Account exported = centralBank.openAccount(customer, AccountType.SAVINGS);
+            for (int i = 0; i < deposit; i++) {
+                assertTrue(centralBank.deposit(exported, 10.25 + i));
+            }
+            if (deposit == 1) {
+                // Restored rows are not validated, so they can exercise the sign of the encoding.
+                exported.getTransactionColumns().restore(TransactionLog.nextTransactionId(), -5, TransactionType.WITHDRAW, 1L);
+                exported.getTransactionColumns().restore(TransactionLog.nextTransactionId(), -1234, TransactionType.DEPOSIT, 2L);
+            }
+            exported.getTransactionColumns().visit(0, Integer.MAX_VALUE, (transactionId, amountMinorUnits, type, timestamp) ->
+                    expected.add(transactionId + "," + exported.getAccountNumber() + "," + customer.getCustomerId()
+                            + "," + type + "," + amountMinorUnits + "," + timestamp));
+        }
+        Path directory = Files.createTempDirectory("export");
+        try {
+            TransactionExporter exporter = new TransactionExporter(centralBank);
+            for (int partitions : new int[] {1, 3, 6}) {
+                assertEquals(expected.size(), exporter.export(directory, TransactionExporter.Format.CSV, partitions).getRows());
+                assertEquals(expected.size(), exporter.export(directory, TransactionExporter.Format.BINARY, partitions).getRows());
+                Set<String> csvRows = new HashSet<>();
+                Set<String> binaryRows = new HashSet<>();
+                Map<String, Integer> partitionOfAccount = new HashMap<>();
+                for (int p = 0; p < partitions; p++) {
+                    List<String> lines = Files.readAllLines(directory.resolve("transactions-" + p + ".csv"));
+                    assertEquals("transaction_id,account_number,customer_id,type,amount,timestamp", lines.get(0));
+                    for (String line : lines.subList(1, lines.size())) {
+                        String[] fields = line.split(",");
+                        long amount = new BigDecimal(fields[4]).movePointRight(2).longValueExact();
+                        assertTrue(csvRows.add(fields[0] + "," + fields[1] + "," + fields[2] + "," + fields[3] + ","
+                                + amount + "," + fields[5]));
+                        assertEquals(p, (int) partitionOfAccount.merge(fields[1], p, (first, next) -> first));
+                    }
+                    ByteBuffer binary = ByteBuffer.wrap(Files.readAllBytes(directory.resolve("transactions-" + p + ".bin")));
+                    assertEquals(TransactionExporter.BINARY_MAGIC, binary.getInt());
+                    assertEquals(TransactionExporter.BINARY_VERSION, binary.getInt());
+                    assertEquals(0, binary.remaining() % TransactionExporter.BINARY_ROW_SIZE);
+                    while (binary.hasRemaining()) {
+                        long transactionId = binary.getLong();
+                        int accountNumber = binary.getInt();
+                        int customerId = binary.getInt();
+                        TransactionType type = TransactionType.values()[binary.get()];
+                        assertTrue(binaryRows.add(transactionId + "," + accountNumber + "," + customerId + "," + type + ","
+                                + binary.getLong() + "," + binary.getLong()));
+                    }
+                }
+                assertEquals(expected, csvRows);
+                assertEquals(expected, binaryRows);
+            }
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * Test replaying a journal.
+     * Validates that balances, amounts, times, transaction IDs, customer details and balances
+     * set directly come back, that a torn record at the end is truncated, and that replay stops
+     * at a record whose checksum does not match.
+     */
+    @Test
+    public void testJournalReplay() throws IOException {
+        Path directory = Files.createTempDirectory("bank");
+        Path journalFile = directory.resolve("bank.journal");
+        try {
+            List<TransactionLog> history;
+            int number;
+            int setNumber;
+            try (CentralBank bank = CentralBank.open(journalFile)) {
+                assertTrue(bank.addCustomer(customer));
+                Account first = bank.openAccount(customer, AccountType.SAVINGS);
+                Account second = bank.openAccount(customer, AccountType.CURRENT);
+                Account third = bank.openAccount(customer, AccountType.SAVINGS);
+                assertTrue(bank.deposit(first, 100));
+                assertTrue(bank.withdraw(first, 20.5));
+                assertTrue(bank.transfer(first, second, 30));
+                assertTrue(bank.closeAccount(customer, second));
+                third.setBalance(12.25);
+                customer.setName("Jane Doe");
+                customer.setAddress("2 Other Street");
+                number = first.getAccountNumber();
+                setNumber = third.getAccountNumber();
+                history = List.copyOf(first.getTransactionHistory());
+            }
+            long length = Files.size(journalFile);
+            try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.APPEND)) {
+                channel.write(ByteBuffer.wrap(new byte[] {0, 0, 0, 24, 5, 1, 2})); // A record cut short
+            }
+            try (CentralBank reopened = CentralBank.open(journalFile)) {
+                assertEquals(length, Files.size(journalFile));
+                Account restored = reopened.getAccountbyAccountID(number);
+                assertEquals(49.5, restored.getBalance(), 0.001);
+                assertEquals(12.25, reopened.getAccountbyAccountID(setNumber).getBalance(), 0.001);
+                assertEquals(2, reopened.getAccountCount());
+                Customer restoredCustomer = reopened.getCustomerByID(customer.getCustomerId());
+                assertEquals("Jane Doe", restoredCustomer.getName());
+                assertEquals("2 Other Street", restoredCustomer.getAddress());
+                assertEquals(1, reopened.findCustomersByNamePrefix("Jane", 10).size());
+                assertEquals(history.size(), restored.getTransactionHistory().size());
+                for (int i = 0; i < history.size(); i++) {
+                    assertEquals(history.get(i).getTransactionId(), restored.getTransactionHistory().get(i).getTransactionId());
+                    assertEquals(history.get(i).getAmount(), restored.getTransactionHistory().get(i).getAmount(), 0.001);
+                    assertEquals(history.get(i).getTimestamp(), restored.getTransactionHistory().get(i).getTimestamp());
+                    assertEquals(history.get(i).getTransactionType(), restored.getTransactionHistory().get(i).getTransactionType());
+                }
+                assertTrue(reopened.deposit(restored, 1));
+                assertTrue(reopened.deposit(restored, 2));
+            }
+            long withDeposits = Files.size(journalFile);
+            try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // Flip a bit of the amount of the last deposit, leaving its checksum stale.
+                ByteBuffer amount = ByteBuffer.allocate(1);
+                channel.read(amount, withDeposits - 29);
+                amount.put(0, (byte) (amount.get(0) ^ 1)).rewind();
+                channel.write(amount, withDeposits - 29);
+            }
+            try (CentralBank reopened = CentralBank.open(journalFile)) {
+                assertEquals(50.5, reopened.getAccountbyAccountID(number).getBalance(), 0.001);
+                assertTrue(Files.size(journalFile) < withDeposits);
+            }
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * Test checkpointing a journaled bank and reopening it from the snapshot.
+     * Validates that customers, accounts, balances, totals and histories come back with their
+     * transaction IDs, that each checkpoint trims the journal to the records after it, and that
+     * a trimmed journal without its snapshot is refused.
+     */
+    @Test
+    public void testSnapshotRoundTrip() throws IOException {
+        Path directory = Files.createTempDirectory("bank");
+        Path journalFile = directory.resolve("bank.journal");
+        Customer other = new Customer("Jane Roe", null, null);
+        try {
+            List<TransactionLog> history;
+            int firstNumber;
+            int secondNumber;
+            try (CentralBank bank = CentralBank.open(journalFile)) {
+                assertTrue(bank.addCustomer(customer));
+                assertTrue(bank.addCustomer(other));
+                Account first = bank.openAccount(customer, AccountType.SAVINGS);
+                Account second = bank.openAccount(other, AccountType.CURRENT);
+                Account closed = bank.openAccount(customer, AccountType.CURRENT);
+                assertTrue(bank.deposit(first, 100));
+                assertTrue(bank.transfer(first, second, 25.25));
+                assertTrue(bank.deposit(closed, 5));
+                assertTrue(bank.closeAccount(customer, closed));
+                long untrimmed = Files.size(journalFile);
+                bank.checkpoint();
+                assertTrue(Files.size(journalFile) < untrimmed);
+                assertTrue(bank.withdraw(second, 0.25));
+                bank.checkpoint();
+                assertTrue(bank.deposit(first, 1));
+                firstNumber = first.getAccountNumber();
+                secondNumber = second.getAccountNumber();
+                history = List.copyOf(first.getTransactionHistory());
+            }
+            for (int reopening = 0; reopening < 2; reopening++) {
+                try (CentralBank reopened = CentralBank.open(journalFile)) {
+                    Customer restored = reopened.getCustomerByID(customer.getCustomerId());
+                    assertEquals("John Doe", restored.getName());
+                    assertNull(reopened.getCustomerByID(other.getCustomerId()).getAddress());
+                    assertEquals(1, restored.getAccounts().size());
+                    Account first = reopened.getAccountbyAccountID(firstNumber);
+                    assertEquals(75.75, first.getBalance(), 0.001);
+                    assertEquals(25, reopened.getAccountbyAccountID(secondNumber).getBalance(), 0.001);
+                    assertEquals(2, reopened.getAccountCount());
+                    assertEquals(75.75, reopened.getTotalDeposits(AccountType.SAVINGS), 0.001);
+                    assertEquals(history.size(), first.getTransactionHistory().size());
+                    for (int i = 0; i < history.size() - 1; i++) { // The last deposit was replayed from the journal
+                        assertEquals(history.get(i).getTransactionId(), first.getTransactionHistory().get(i).getTransactionId());
+                    }
+                    reopened.checkpoint();
+                }
+            }
+            Files.delete(directory.resolve("bank.journal.snapshot"));
+            assertThrows(IOException.class, () -> CentralBank.open(journalFile).close());
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * Test LatencyHistogram buckets and percentiles.
+     * Validates exact values below 32, the bucket boundaries at 32, 63 and 64, the overflow
+     * bucket, percentile ranks and the bound on the reported error.
+     */
+    @Test
+    public void testLatencyHistogram() {
+        assertEquals(0, new LatencyHistogram().percentile(0.5));
+        long[][] upperBounds = {{31, 31}, {32, 32}, {63, 63}, {64, 65}, {65, 65}, {66, 67}};
+        for (long[] upperBound : upperBounds) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(upperBound[0]);
+            histogram.record(1000);
+            assertEquals(upperBound[1], histogram.percentile(0.5), "Bucket of " + upperBound[0]);
+            assertEquals(1000, histogram.percentile(1));
+        }
+
+        LatencyHistogram overflow = new LatencyHistogram();
+        overflow.record((1L << 38) - 1);
+        overflow.record(1L << 39);
+        overflow.record(1L << 40);
+        assertEquals((1L << 38) - 1, overflow.percentile(0.3));
+        assertEquals(1L << 40, overflow.percentile(0.5)); // Overflow is reported as the maximum
+        assertEquals(1L << 40, overflow.max());
+
+        LatencyHistogram ranks = new LatencyHistogram();
+        ranks.record(-5); // Recorded as 0
+        for (int i = 1; i < 20; i++) {
+            ranks.record(i);
+        }
+        assertEquals(20, ranks.count());
+        assertEquals(0, ranks.percentile(0));
+        assertEquals(0, ranks.percentile(0.05));
+        assertEquals(1, ranks.percentile(0.051));
+        assertEquals(9, ranks.percentile(0.5));
+        assertEquals(18, ranks.percentile(0.95));
+        assertEquals(19, ranks.percentile(1));
+
+        for (long value = 100; value < 1L << 37; value = value * 3 + 1) {
+            LatencyHistogram single = new LatencyHistogram();
+            single.record(value);
+            single.record(Long.MAX_VALUE);
+            long reported = single.percentile(0.5);
+            assertTrue(reported >= value && reported <= value + value / 32, "Reported " + reported + " for " + value);
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Test transfers between accounts owned by different shards of a ShardedCentralBank.
+     * Validates that failed transfers leave both balances untouched.
+     */
+    @Test
+    public void testShardedTransfer() throws IOException {
+        try (ShardedCentralBank shardedBank = new ShardedCentralBank(2)) {
+            assertTrue(shardedBank.addCustomer(customer));
+            Account first = shardedBank.createAccount(customer, AccountType.SAVINGS);
+            Account second = shardedBank.createAccount(customer, AccountType.CURRENT);
+            assertNotEquals(shardedBank.shardFor(first.getAccountNumber()), shardedBank.shardFor(second.getAccountNumber()));
+            assertTrue(shardedBank.deposit(first, 100));
+            assertTrue(shardedBank.transfer(first, second, 40));
+            assertFalse(shardedBank.transfer(first, second, 100)); // Insufficient funds
+            assertTrue(shardedBank.closeAccount(customer, second));
+            assertFalse(shardedBank.transfer(first, second, 10)); // Closed destination
+            assertEquals(60, first.getBalance());
+            assertEquals(40, second.getBalance());
+            assertEquals(2, first.getTransactionHistory().size()); // Failed transfers leave no debit behind
+        }
+    }
+
+    /**
+     * Test the legs of a transfer between shards on a journaled bank.
+     * Validates that each leg is journaled and replayed, and that only a refund credits a closed account.
+     */
+    @Test
+    public void testTransferLegsReplay() throws IOException {
+        Path directory = Files.createTempDirectory("bank");
+        Path journalFile = directory.resolve("bank.journal");
+        try {
+            try (CentralBank bank = CentralBank.open(journalFile)) {
+                assertTrue(bank.addCustomer(customer));
+                Account first = bank.openAccount(customer, AccountType.SAVINGS);
+                Account second = bank.openAccount(customer, AccountType.CURRENT);
+                assertTrue(bank.deposit(first, 100));
+                long timestamp = System.currentTimeMillis();
+                assertTrue(bank.commit(bank.applyTransferOut(first, 99, 4000, timestamp)));
+                assertFalse(bank.commit(bank.applyTransferOut(first, 99, 7000, timestamp))); // Insufficient funds
+                assertTrue(bank.commit(bank.applyTransferIn(second, 99, 1500, timestamp, false)));
+                assertTrue(bank.closeAccount(customer, second));
+                assertFalse(bank.commit(bank.applyTransferIn(second, 99, 500, timestamp, false)));
+            }
+            try (CentralBank reopened = CentralBank.open(journalFile)) {
+                Account restored = reopened.getCustomerByID(customer.getCustomerId()).getAccounts().get(0);
+                assertEquals(60, restored.getBalance());
+                assertEquals(2, restored.getTransactionHistory().size());
+                assertEquals(60, reopened.getTotalDeposits(AccountType.SAVINGS));
+            }
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
     
 }
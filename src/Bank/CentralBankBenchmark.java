@@ -0,0 +1,247 @@
+package Bank;
+
+import java.util.Date;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks for the hot paths of the CentralBank class.
+ *
+ * <p>The following operations are measured:</p>
+ * <ul>
+ *     <li>Looking up an account by number</li>
+ *     <li>Deposit</li>
+ *     <li>Withdraw</li>
+ *     <li>Transfer between accounts</li>
+ *     <li>Get transaction history</li>
+ *     <li>Get customer summary</li>
+ * </ul>
+ * <p>
+ * Each operation is measured on banks of 1K to 10M accounts, with accounts chosen either
+ * uniformly or with a Zipfian skew towards a few hot accounts, on a single thread and on
+ * every available processor. Deposits and withdrawals record history, so long runs on the
+ * largest books need a correspondingly large heap.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CentralBankBenchmark {
+
+    /** The number of accounts owned by each customer in the benchmark bank. */
+    private static final int ACCOUNTS_PER_CUSTOMER = 4;
+
+    /** The number of deposits recorded on each account before measuring. */
+    private static final int HISTORY_PER_ACCOUNT = 4;
+
+    /** The number of pre-drawn account indexes each thread cycles through. */
+    private static final int SAMPLES = 1 << 16;
+
+    /**
+     * The bank under test, shared by all benchmark threads.
+     */
+    @State(Scope.Benchmark)
+    public static class BankState {
+
+        @Param({"1000", "100000", "1000000", "10000000"})
+        public int bookSize;
+
+        @Param({"UNIFORM", "ZIPFIAN"})
+        public String skew;
+
+        CentralBank bank;
+        Account[] accounts;
+        Customer[] customers;
+        ZipfianSampler zipfian;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            bank = new CentralBank();
+            accounts = new Account[bookSize];
+            customers = new Customer[(bookSize + ACCOUNTS_PER_CUSTOMER - 1) / ACCOUNTS_PER_CUSTOMER];
+            Date dob = new Date();
+            for (int i = 0; i < customers.length; i++) {
+                customers[i] = new Customer("Customer " + i, i + " Main St", dob);
+                bank.addCustomer(customers[i]);
+            }
+            for (int i = 0; i < bookSize; i++) {
+                Customer owner = customers[i / ACCOUNTS_PER_CUSTOMER];
+                bank.createAccount(owner, AccountType.SAVINGS);
+                List<Account> owned = owner.getAccounts();
+                accounts[i] = owned.get(owned.size() - 1);
+                for (int j = 0; j < HISTORY_PER_ACCOUNT; j++) {
+                    bank.deposit(accounts[i], 1_000_000);
+                }
+            }
+            if ("ZIPFIAN".equals(skew)) {
+                zipfian = new ZipfianSampler(bookSize, 0.99);
+            }
+        }
+    }
+
+    /**
+     * Account and customer indexes pre-drawn for one benchmark thread, so that drawing
+     * random numbers is not part of the measurement.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        int[] samples;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(BankState state) {
+            SplittableRandom random = new SplittableRandom(Thread.currentThread().getId());
+            samples = new int[SAMPLES];
+            for (int i = 0; i < SAMPLES; i++) {
+                samples[i] = state.zipfian != null ? state.zipfian.next(random) : random.nextInt(state.bookSize);
+            }
+        }
+
+        int nextIndex() {
+            int index = samples[next];
+            next = (next + 1) & (SAMPLES - 1);
+            return index;
+        }
+    }
+
+    @Benchmark
+    public Account getAccountbyAccountID(BankState state, ThreadState thread) {
+        return state.bank.getAccountbyAccountID(state.accounts[thread.nextIndex()].getAccountNumber());
+    }
+
+    @Benchmark
+    public boolean deposit(BankState state, ThreadState thread) {
+        return state.bank.deposit(state.accounts[thread.nextIndex()], 1);
+    }
+
+    @Benchmark
+    public boolean withdraw(BankState state, ThreadState thread) {
+        return state.bank.withdraw(state.accounts[thread.nextIndex()], 1);
+    }
+
+    @Benchmark
+    public boolean transfer(BankState state, ThreadState thread) {
+        return state.bank.transfer(state.accounts[thread.nextIndex()], state.accounts[thread.nextIndex()], 1);
+    }
+
+    @Benchmark
+    public List<TransactionLog> getTransactionHistory(BankState state, ThreadState thread) {
+        return state.bank.getTransactionHistory(state.customers[thread.nextIndex() / ACCOUNTS_PER_CUSTOMER]);
+    }
+
+    @Benchmark
+    public String getCustomerSummary(BankState state, ThreadState thread) {
+        return state.bank.getCustomerSummary(state.customers[thread.nextIndex() / ACCOUNTS_PER_CUSTOMER]);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Account getAccountbyAccountIDContended(BankState state, ThreadState thread) {
+        return getAccountbyAccountID(state, thread);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean depositContended(BankState state, ThreadState thread) {
+        return deposit(state, thread);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean withdrawContended(BankState state, ThreadState thread) {
+        return withdraw(state, thread);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean transferContended(BankState state, ThreadState thread) {
+        return transfer(state, thread);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public List<TransactionLog> getTransactionHistoryContended(BankState state, ThreadState thread) {
+        return getTransactionHistory(state, thread);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String getCustomerSummaryContended(BankState state, ThreadState thread) {
+        return getCustomerSummary(state, thread);
+    }
+
+    /**
+     * Draws indexes in [0, n) following a Zipfian distribution, using the approximation of
+     * Gray et al., "Quickly Generating Billion-Record Synthetic Databases". Ranks are scattered
+     * over the index range by a multiplicative hash so that hot accounts are not adjacent.
+     */
+    static final class ZipfianSampler {
+        private final int n;
+        private final double theta;
+        private final double alpha;
+        private final double zetaN;
+        private final double eta;
+
+        ZipfianSampler(int n, double theta) {
+            this.n = n;
+            this.theta = theta;
+            this.alpha = 1 / (1 - theta);
+            this.zetaN = zeta(n, theta);
+            double zeta2 = zeta(2, theta);
+            this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetaN);
+        }
+
+        int next(SplittableRandom random) {
+            double u = random.nextDouble();
+            double uz = u * zetaN;
+            long rank;
+            if (uz < 1) {
+                rank = 0;
+            } else if (uz < 1 + Math.pow(0.5, theta)) {
+                rank = 1;
+            } else {
+                rank = (long) (n * Math.pow(eta * u - eta + 1, alpha));
+            }
+            return (int) Math.floorMod(Math.min(rank, n - 1) * 0x9E3779B97F4A7C15L, (long) n);
+        }
+
+        private static double zeta(long n, double theta) {
+            double sum = 0;
+            for (long i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Runs every benchmark in this class.
+     *
+     * @param args Command line arguments (not used).
+     * @throws RunnerException If a benchmark fails.
+     */
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CentralBankBenchmark.class.getSimpleName()).build()).run();
+    }
+}
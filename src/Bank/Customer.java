@@ -1,9 +1,13 @@
 package Bank;
 
-import java.util.ArrayList;
-
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 
 /**
@@ -12,13 +16,49 @@ import java.util.List;
  * Each customer can have multiple associated bank accounts.
  */
 public class Customer {
+
+    /**
+     * Atomic access to {@link #version}.
+     */
+    private static final VarHandle VERSION;
+
+    /**
+     * Atomic access to {@link #netWorth}.
+     */
+    private static final VarHandle NET_WORTH;
+
+    static {
+        try {
+            VERSION = MethodHandles.lookup().findVarHandle(Customer.class, "version", long.class);
+            NET_WORTH = MethodHandles.lookup().findVarHandle(Customer.class, "netWorth", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
     
-    private static int customerIdCounter = 0;
     private int customerID;
     private String Name;
     private String Address;
     private Date DateOfBirth;
     private List<Account> Accounts;
+
+    private static final CustomerIndex[] NO_INDEXES = new CustomerIndex[0];
+
+    /**
+     * The search indexes of the banks this customer is registered with. Replaced, never modified,
+     * under the customer's lock.
+     */
+    private volatile CustomerIndex[] indexes = NO_INDEXES;
+
+    /**
+     * Incremented after every change to the customer's details, accounts or balances.
+     */
+    private volatile long version;
+
+    /**
+     * The sum of the balances of the customer's open accounts, in minor units.
+     */
+    private volatile long netWorth;
     
     /**
      * Constructs a new Customer with the specified name, address, and date of birth.
@@ -29,20 +69,40 @@ public class Customer {
      * @param DateOfBirth The date of birth of the customer.
      */
     public Customer(String Name, String Address, Date DateOfBirth) {
+        this(IdAllocator.CUSTOMERS.nextInt(), Name, Address, DateOfBirth);
+    }
+
+    /**
+     * Constructs a Customer with a known customer ID, as when restoring a bank.
+     * Ensures the given ID is never assigned to a new customer.
+     * 
+     * @param customerID  The customer ID.
+     * @param Name        The name of the customer.
+     * @param Address     The address of the customer.
+     * @param DateOfBirth The date of birth of the customer.
+     */
+    Customer(int customerID, String Name, String Address, Date DateOfBirth) {
+        IdAllocator.CUSTOMERS.advancePast(customerID);
         this.Name = Name;
         this.Address = Address;
         this.DateOfBirth = DateOfBirth;
-        this.Accounts = new ArrayList<>();
-        this.customerID = customerIdCounter++;
+        this.Accounts = new CopyOnWriteArrayList<>();
+        this.customerID = customerID;
     }
 
     /**
-     * Sets the name of the customer.
+     * Sets the name of the customer. In a journaled bank, returns once the change is durable.
      * 
      * @param Name The new name for the customer.
+     * @throws java.io.UncheckedIOException If a bank's journal cannot be written.
      */
     public void setName(String Name) {
-        this.Name = Name;
+        synchronized (this) {
+            unindex();
+            this.Name = Name;
+            reindex();
+        }
+        detailsChanged();
     }
 
     /**
@@ -55,12 +115,18 @@ public class Customer {
     }
 
     /**
-     * Sets the address of the customer.
+     * Sets the address of the customer. In a journaled bank, returns once the change is durable.
      * 
      * @param Address The new address for the customer.
+     * @throws java.io.UncheckedIOException If a bank's journal cannot be written.
      */
     public void setAddress(String Address) {
-        this.Address = Address;
+        synchronized (this) {
+            unindex();
+            this.Address = Address;
+            reindex();
+        }
+        detailsChanged();
     }
 
     /**
@@ -73,12 +139,18 @@ public class Customer {
     }
 
     /**
-     * Sets the date of birth of the customer.
+     * Sets the date of birth of the customer. In a journaled bank, returns once the change is durable.
      * 
      * @param DateOfBirth The new date of birth for the customer.
+     * @throws java.io.UncheckedIOException If a bank's journal cannot be written.
      */
     public void setDateOfBirth(Date DateOfBirth) {
-        this.DateOfBirth = DateOfBirth;
+        synchronized (this) {
+            unindex();
+            this.DateOfBirth = DateOfBirth;
+            reindex();
+        }
+        detailsChanged();
     }
 
     /**
@@ -101,6 +173,7 @@ public class Customer {
 
     /**
      * Returns the list of bank accounts associated with the customer.
+     * The list is safe to iterate while accounts are being opened or closed concurrently.
      * 
      * @return A list of accounts.
      */
@@ -108,6 +181,152 @@ public class Customer {
         return this.Accounts;
     }
 
+    /**
+     * Returns the sum of the balances of the customer's open accounts, maintained as balances change.
+     * 
+     * @return The net worth.
+     */
+    public double getNetWorth() {
+        return Money.toMajorUnits(this.netWorth);
+    }
+
+    /**
+     * Returns the sum of the balances of the customer's open accounts in minor units.
+     * 
+     * @return The net worth in minor units.
+     */
+    public long getNetWorthMinorUnits() {
+        return this.netWorth;
+    }
+
+    /**
+     * Adds a change in one of the customer's open balances to the net worth.
+     */
+    void addNetWorth(long deltaMinorUnits) {
+        NET_WORTH.getAndAdd(this, deltaMinorUnits);
+    }
+
+    /**
+     * Adds this customer to a bank's search index, and keeps the index up to date as the
+     * customer's details change until {@link #removeFrom(CustomerIndex)} is called.
+     */
+    synchronized void addTo(CustomerIndex index) {
+        CustomerIndex[] current = this.indexes;
+        CustomerIndex[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = index;
+        index.add(this);
+        this.indexes = updated;
+    }
+
+    /**
+     * Removes this customer from a bank's search index.
+     */
+    synchronized void removeFrom(CustomerIndex index) {
+        CustomerIndex[] current = this.indexes;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == index) {
+                CustomerIndex[] updated = Arrays.copyOf(current, current.length - 1);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                index.remove(this);
+                this.indexes = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the customer's current details from every index. Called with the customer's lock held.
+     */
+    private void unindex() {
+        for (CustomerIndex index : indexes) {
+            index.remove(this);
+        }
+    }
+
+    /**
+     * Indexes the customer's current details in every index. Called with the customer's lock held.
+     */
+    private void reindex() {
+        for (CustomerIndex index : indexes) {
+            index.add(this);
+        }
+    }
+
+    /**
+     * Replaces the customer's details without journaling them, as when replaying a journal.
+     */
+    void restoreDetails(String Name, String Address, Date DateOfBirth) {
+        synchronized (this) {
+            unindex();
+            this.Name = Name;
+            this.Address = Address;
+            this.DateOfBirth = DateOfBirth;
+            reindex();
+        }
+        changed();
+    }
+
+    /**
+     * Records a change to the customer's details and journals the new details in every bank
+     * the customer is registered with.
+     */
+    private void detailsChanged() {
+        changed();
+        for (CustomerIndex index : indexes) {
+            index.journalDetails(this);
+        }
+    }
+
+    /**
+     * Returns the customer's version, which changes whenever the customer's details change,
+     * an account is opened or closed through a bank, or one of the account balances changes.
+     */
+    long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Records a change to the customer's details, accounts or balances.
+     */
+    void changed() {
+        VERSION.getAndAdd(this, 1L);
+    }
+
+    /**
+     * Writes the customer's ID, name, address, date of birth and accounts to the given destination.
+     * Only the date of birth is formatted through an intermediate string.
+     * 
+     * @param out The destination.
+     * @throws IOException If the destination cannot be written.
+     */
+    public void appendTo(Appendable out) throws IOException {
+        Report.appendNumber(out.append("Customer ID: "), getCustomerId()).append('\n');
+        out.append("Name: ").append(getName()).append('\n');
+        out.append("Address: ").append(getAddress()).append('\n');
+        out.append("Date of birth: ").append(String.valueOf(getDateOfBirth())).append('\n');
+        out.append("Accounts: [");
+        boolean first = true;
+        for (Account account : getAccounts()) {
+            if (!first) {
+                out.append(", ");
+            }
+            account.appendTo(out);
+            first = false;
+        }
+        out.append("]\n");
+    }
+
+    /**
+     * Writes the customer's details to the given buffer as UTF-8.
+     * 
+     * @param buffer The destination buffer.
+     * @return The buffer.
+     * @throws java.nio.BufferOverflowException If the details do not fit in the buffer.
+     */
+    public ByteBuffer appendTo(ByteBuffer buffer) {
+        return Report.render(this::appendTo, buffer);
+    }
+
     /**
      * Provides a string representation of the customer, 
      * including their ID, name, address, date of birth, and associated accounts.
@@ -116,12 +335,6 @@ public class Customer {
      */
     @Override
     public String toString() {
-        String details = "";
-        details += "Customer ID: " + getCustomerId() + "\n";
-        details += "Name: "+ getName() + "\n";
-        details += "Address: "+getAddress() + "\n";
-        details += "Date of birth: "+getDateOfBirth() + "\n";
-        details += "Accounts: "+getAccounts() + "\n";
-        return details;
+        return Report.render(this::appendTo);
     }
 }
@@ -0,0 +1,171 @@
+package Bank;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Sorted indexes of a bank's customers by name, address and date of birth, for searches that
+ * would otherwise scan every customer.
+ * <p>
+ * Each index is a concurrent skip list keyed by the indexed value and the customer ID, so a
+ * search is a logarithmic seek followed by a walk over the matching entries only, and readers
+ * never block. Names and addresses are ordered case-insensitively, which keeps every value with
+ * a given prefix contiguous. A customer is indexed when added to a bank and re-indexed by its
+ * own setters, which hold the customer's lock while they move it between entries; a concurrent
+ * search may briefly miss a customer whose details are being changed. The setters also journal
+ * the new details through the index, in the journal of the bank it belongs to.
+ * </p>
+ */
+final class CustomerIndex {
+
+    /** The journal of the bank the index belongs to, or null if the bank is not journaled. */
+    private final Journal journal;
+
+    private final ConcurrentSkipListMap<Key, Customer> byName = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<Key, Customer> byAddress = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<Key, Customer> byDateOfBirth = new ConcurrentSkipListMap<>();
+
+    /**
+     * Constructs empty indexes for a bank.
+     *
+     * @param journal The bank's journal, or null if the bank is not journaled.
+     */
+    CustomerIndex(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Journals a customer's current details after they have changed, and waits until the record
+     * is durable. Does nothing if the bank is not journaled. Called without the customer's lock,
+     * which the journal takes while it reads the details.
+     *
+     * @param customer The customer whose details changed.
+     * @throws java.io.UncheckedIOException If the journal cannot be written.
+     */
+    void journalDetails(Customer customer) {
+        if (journal != null) {
+            journal.commit(journal.logCustomerUpdated(customer));
+        }
+    }
+
+    /**
+     * Indexes a customer's current details. Called with the customer's lock held.
+     */
+    void add(Customer customer) {
+        int id = customer.getCustomerId();
+        if (customer.getName() != null) {
+            byName.put(new Key(customer.getName(), 0, id), customer);
+        }
+        if (customer.getAddress() != null) {
+            byAddress.put(new Key(customer.getAddress(), 0, id), customer);
+        }
+        if (customer.getDateOfBirth() != null) {
+            byDateOfBirth.put(new Key(null, customer.getDateOfBirth().getTime(), id), customer);
+        }
+    }
+
+    /**
+     * Removes a customer's current details from the index. Called with the customer's lock held.
+     */
+    void remove(Customer customer) {
+        int id = customer.getCustomerId();
+        if (customer.getName() != null) {
+            byName.remove(new Key(customer.getName(), 0, id));
+        }
+        if (customer.getAddress() != null) {
+            byAddress.remove(new Key(customer.getAddress(), 0, id));
+        }
+        if (customer.getDateOfBirth() != null) {
+            byDateOfBirth.remove(new Key(null, customer.getDateOfBirth().getTime(), id));
+        }
+    }
+
+    /**
+     * Returns customers whose name starts with the given prefix, ignoring case, in name order.
+     */
+    List<Customer> findByNamePrefix(String prefix, int limit) {
+        return startingWith(byName, prefix, false, limit);
+    }
+
+    /**
+     * Returns customers whose address equals the given address, ignoring case.
+     */
+    List<Customer> findByAddress(String address, int limit) {
+        return startingWith(byAddress, address, true, limit);
+    }
+
+    /**
+     * Returns customers whose address starts with the given prefix, ignoring case, in address order.
+     */
+    List<Customer> findByAddressPrefix(String prefix, int limit) {
+        return startingWith(byAddress, prefix, false, limit);
+    }
+
+    /**
+     * Returns customers born at or after {@code from} and before {@code to}, oldest first.
+     */
+    List<Customer> findByDateOfBirth(Date from, Date to, int limit) {
+        checkLimit(limit);
+        List<Customer> found = new ArrayList<>(Math.min(limit, 16));
+        Key start = new Key(null, from.getTime(), Integer.MIN_VALUE);
+        Key end = new Key(null, to.getTime(), Integer.MIN_VALUE);
+        if (start.compareTo(end) >= 0) {
+            return found;
+        }
+        for (Customer customer : byDateOfBirth.subMap(start, end).values()) {
+            if (found.size() == limit) {
+                break;
+            }
+            found.add(customer);
+        }
+        return found;
+    }
+
+    private static List<Customer> startingWith(ConcurrentSkipListMap<Key, Customer> index, String text,
+            boolean exact, int limit) {
+        checkLimit(limit);
+        List<Customer> found = new ArrayList<>(Math.min(limit, 16));
+        for (Map.Entry<Key, Customer> entry : index.tailMap(new Key(text, 0, Integer.MIN_VALUE)).entrySet()) {
+            String value = entry.getKey().text;
+            boolean matches = exact
+                    ? value.equalsIgnoreCase(text)
+                    : value.regionMatches(true, 0, text, 0, text.length());
+            if (!matches || found.size() == limit) {
+                break;
+            }
+            found.add(entry.getValue());
+        }
+        return found;
+    }
+
+    private static void checkLimit(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+    }
+
+    /**
+     * An index entry: a name or address compared ignoring case, or a date of birth, followed by
+     * the customer ID to tell apart customers with the same value.
+     */
+    private static final class Key implements Comparable<Key> {
+        final String text;
+        final long time;
+        final int customerId;
+
+        Key(String text, long time, int customerId) {
+            this.text = text;
+            this.time = time;
+            this.customerId = customerId;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            int order = text == null ? Long.compare(time, other.time) : String.CASE_INSENSITIVE_ORDER.compare(text, other.text);
+            return order != 0 ? order : Integer.compare(customerId, other.customerId);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package Bank;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The cold tier of a bank's transaction history: older rows sealed into compressed, immutable
+ * segment files on disk, and paged back into memory only when a query reaches them.
+ * <p>
+ * Each archiving run writes one file per range of {@value #ACCOUNTS_PER_FILE} account numbers,
+ * holding one independently compressed segment per account. Within a segment the transaction IDs
+ * and timestamps are delta-encoded and every field is a variable-length integer before deflating,
+ * so a row typically takes a few bytes. The accounts keep only a small descriptor per segment
+ * (its place in the file, its row count, the lowest and highest transaction ID in it and its
+ * first and last timestamp), so
+ * their heap use is bounded by the rows not yet archived. Decoded segments are kept in a shared
+ * least-recently-used cache bounded by a number of rows.
+ * </p>
+ * <p>
+ * Segment files are never deleted: a snapshot records the descriptors of the segments sealed
+ * when it was taken, and a bank loaded from it reads them from the same directory. Opening an
+ * archive on a directory holding earlier files numbers its new files after them.
+ * </p>
+ */
+final class HistoryArchive implements Closeable {
+
+    /** The number of consecutive account numbers whose segments share a file. */
+    static final int ACCOUNTS_PER_FILE = 4096;
+
+    private static final String FILE_PREFIX = "history-";
+    private static final String FILE_SUFFIX = ".seg";
+
+    private final Path directory;
+    private final int cachedRows;
+    private final AtomicLong fileCount = new AtomicLong();
+
+    /** Decoded segments, least recently used first. Guarded by itself. */
+    private final LinkedHashMap<Segment, Rows> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cacheSize;
+
+    /**
+     * Constructs an archive writing its files to the given directory, which is created if needed.
+     *
+     * @param directory The directory holding the segment files.
+     * @param cachedRows The number of decoded rows kept in memory at most.
+     * @throws IOException If the directory cannot be created or listed.
+     */
+    HistoryArchive(Path directory, int cachedRows) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.cachedRows = cachedRows;
+        try (DirectoryStream<Path> existing = Files.newDirectoryStream(this.directory, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+            for (Path file : existing) {
+                String name = file.getFileName().toString();
+                String number = name.substring(name.lastIndexOf('-') + 1, name.length() - FILE_SUFFIX.length());
+                try {
+                    fileCount.accumulateAndGet(Long.parseLong(number) + 1, Math::max);
+                } catch (NumberFormatException e) {
+                    // Not one of ours; it cannot collide with the names we generate.
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the directory holding the segment files.
+     */
+    Path directory() {
+        return directory;
+    }
+
+    /**
+     * Returns the file the segments of the given account range are written to in a new archiving run.
+     */
+    Path newFile(int firstAccountNumber) {
+        return directory.resolve(FILE_PREFIX + firstAccountNumber + "-" + fileCount.getAndIncrement() + FILE_SUFFIX);
+    }
+
+    /**
+     * Compresses rows into a segment appended to an open segment file.
+     *
+     * @param file The segment file.
+     * @param channel The open segment file, positioned at its end.
+     * @param rows The rows to seal.
+     * @param firstRow The row number of the first of them in the account's history.
+     * @return The descriptor of the new segment.
+     * @throws IOException If the file cannot be written.
+     */
+    Segment write(Path file, FileChannel channel, Rows rows, int firstRow) throws IOException {
+        byte[] compressed = compress(encode(rows));
+        long offset = channel.position();
+        ByteBuffer buffer = ByteBuffer.wrap(compressed);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        long lowestId = Long.MAX_VALUE;
+        long highestId = Long.MIN_VALUE;
+        for (int i = 0; i < rows.size; i++) {
+            lowestId = Math.min(lowestId, rows.transactionIds[i]);
+            highestId = Math.max(highestId, rows.transactionIds[i]);
+        }
+        int last = rows.size - 1;
+        return new Segment(file, offset, compressed.length, firstRow, rows.size, lowestId, highestId,
+                rows.timestamps[0], rows.timestamps[last]);
+    }
+
+    /**
+     * Returns the rows of a segment, reading and decompressing them unless they are cached.
+     *
+     * @throws UncheckedIOException If the segment file cannot be read.
+     */
+    Rows read(Segment segment) {
+        synchronized (cache) {
+            Rows rows = cache.get(segment);
+            if (rows != null) {
+                return rows;
+            }
+        }
+        Rows rows;
+        try (FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(segment.length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, segment.offset + buffer.position()) < 0) {
+                    throw new IOException("Truncated history segment in " + segment.file);
+                }
+            }
+            rows = decode(decompress(buffer.array(), segment.rows), segment.rows);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read archived history", e);
+        }
+        synchronized (cache) {
+            if (cache.put(segment, rows) == null) {
+                cacheSize += rows.size;
+            }
+            Iterator<Map.Entry<Segment, Rows>> eldest = cache.entrySet().iterator();
+            while (cacheSize > cachedRows && eldest.hasNext()) {
+                Map.Entry<Segment, Rows> entry = eldest.next();
+                if (entry.getKey() == segment) {
+                    break;
+                }
+                cacheSize -= entry.getValue().size;
+                eldest.remove();
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Drops the cached rows. The segment files are kept for snapshots that refer to them.
+     */
+    @Override
+    public void close() {
+        synchronized (cache) {
+            cache.clear();
+            cacheSize = 0;
+        }
+    }
+
+    private static byte[] encode(Rows rows) {
+        ByteBuffer out = ByteBuffer.allocate(rows.size * 31);
+        long previousId = 0;
+        long previousTimestamp = 0;
+        for (int i = 0; i < rows.size; i++) {
+            putVarLong(out, zigZag(rows.transactionIds[i] - previousId));
+            putVarLong(out, zigZag(rows.timestamps[i] - previousTimestamp));
+            putVarLong(out, zigZag(rows.amounts[i]));
+            out.put(rows.types[i]);
+            previousId = rows.transactionIds[i];
+            previousTimestamp = rows.timestamps[i];
+        }
+        byte[] encoded = new byte[out.position()];
+        out.flip().get(encoded);
+        return encoded;
+    }
+
+    private static Rows decode(ByteBuffer in, int size) {
+        Rows rows = new Rows(size);
+        long id = 0;
+        long timestamp = 0;
+        for (int i = 0; i < size; i++) {
+            id += unZigZag(getVarLong(in));
+            timestamp += unZigZag(getVarLong(in));
+            rows.add(id, unZigZag(getVarLong(in)), in.get(), timestamp);
+        }
+        return rows;
+    }
+
+    private static byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static ByteBuffer decompress(byte[] data, int rows) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            ByteBuffer out = ByteBuffer.allocate(rows * 31);
+            while (!inflater.finished()) {
+                if (inflater.inflate(out) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Corrupt history segment");
+                }
+            }
+            return out.flip();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt history segment", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void putVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static long getVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Where a sealed run of one account's rows is stored, and the bounds of its IDs and times.
+     * Rows are in time order, but their IDs are unique without being ascending.
+     */
+    static final class Segment {
+        final Path file;
+        final long offset;
+        final int length;
+        final int firstRow;
+        final int rows;
+        final long lowestTransactionId;
+        final long highestTransactionId;
+        final long firstTimestamp;
+        final long lastTimestamp;
+
+        Segment(Path file, long offset, int length, int firstRow, int rows, long lowestTransactionId,
+                long highestTransactionId, long firstTimestamp, long lastTimestamp) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.firstRow = firstRow;
+            this.rows = rows;
+            this.lowestTransactionId = lowestTransactionId;
+            this.highestTransactionId = highestTransactionId;
+            this.firstTimestamp = firstTimestamp;
+            this.lastTimestamp = lastTimestamp;
+        }
+    }
+
+    /**
+     * Rows of one account's history in primitive columns, as sealed into or read from a segment.
+     */
+    static final class Rows {
+        final long[] transactionIds;
+        final long[] amounts;
+        final byte[] types;
+        final long[] timestamps;
+        int size;
+
+        Rows(int capacity) {
+            transactionIds = new long[capacity];
+            amounts = new long[capacity];
+            types = new byte[capacity];
+            timestamps = new long[capacity];
+        }
+
+        void add(long transactionId, long amountMinorUnits, byte type, long timestamp) {
+            transactionIds[size] = transactionId;
+            amounts[size] = amountMinorUnits;
+            types[size] = type;
+            timestamps[size] = timestamp;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package Bank;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out unique 64-bit identifiers from blocks reserved per thread, for the account numbers,
+ * customer IDs and transaction IDs of every bank in the process.
+ * <p>
+ * Each thread takes a block of consecutive identifiers from a shared counter and then assigns
+ * them without touching shared state, so concurrent account openings do not contend on one
+ * counter. Identifiers are unique but only ordered within a thread, so an account's history is
+ * ordered by row and paged by row position rather than by transaction ID. Restoring a bank
+ * advances the allocator past every restored identifier, and blocks reserved before that are
+ * abandoned.
+ * </p>
+ * <p>
+ * A bank opened with a journal records a high-water mark for each allocator in a file next to
+ * the journal, through {@link #persistTo(Path)}. The mark is written ahead of the identifiers in
+ * use, a lease of many identifiers at a time, and forced to disk before any identifier beyond the old
+ * mark is handed out. After a restart the allocators resume from the marks, so identifiers stay
+ * unique even if they were never journaled, at the cost of skipping the rest of the lease.
+ * </p>
+ */
+final class IdAllocator {
+
+    /** Allocates account numbers, which must fit in an int. */
+    static final IdAllocator ACCOUNTS = new IdAllocator("Account numbers", Integer.MAX_VALUE, 16, 1 << 14);
+
+    /** Allocates customer IDs, which must fit in an int. */
+    static final IdAllocator CUSTOMERS = new IdAllocator("Customer IDs", Integer.MAX_VALUE, 16, 1 << 14);
+
+    /** Allocates transaction IDs. */
+    static final IdAllocator TRANSACTIONS = new IdAllocator("Transaction IDs", Long.MAX_VALUE, 1024, 1 << 20);
+
+    /** The allocators in the order their marks are stored. */
+    private static final IdAllocator[] ALLOCATORS = {ACCOUNTS, CUSTOMERS, TRANSACTIONS};
+
+    /** The files high-water marks are written to. Guarded by the class lock. */
+    private static final List<FileChannel> MARK_FILES = new ArrayList<>();
+
+    private final String name;
+    private final long maxId;
+    private final int blockSize;
+
+    /** The number of identifiers covered by each write of a high-water mark. */
+    private final int leaseSize;
+
+    /** The first identifier not yet reserved by any thread. */
+    private final AtomicLong reserved = new AtomicLong();
+
+    /** Identifiers below this one were in use before a restore and must not be handed out. */
+    private final AtomicLong floor = new AtomicLong();
+
+    /**
+     * The high-water mark forced to every open mark file: identifiers below it may be handed out.
+     * Long.MAX_VALUE while no mark file is open. Written under the class lock.
+     */
+    private volatile long persisted = Long.MAX_VALUE;
+
+    /**
+     * The high-water mark being written to the mark files, which becomes {@link #persisted}
+     * once it has been forced to all of them. Guarded by the class lock.
+     */
+    private long leased = Long.MAX_VALUE;
+
+    private final ThreadLocal<Block> blocks = ThreadLocal.withInitial(Block::new);
+
+    private IdAllocator(String name, long maxId, int blockSize, int leaseSize) {
+        this.name = name;
+        this.maxId = maxId;
+        this.blockSize = blockSize;
+        this.leaseSize = leaseSize;
+    }
+
+    /**
+     * Returns a new identifier, taking a new block first if the current thread's block is used up
+     * or was reserved before a restore.
+     *
+     * @return The identifier.
+     * @throws IllegalStateException If every identifier up to the maximum has been reserved.
+     * @throws UncheckedIOException If the high-water mark cannot be written.
+     */
+    long next() {
+        Block block = blocks.get();
+        if (block.next >= block.end || block.next < floor.get()) {
+            refill(block);
+        }
+        return block.next++;
+    }
+
+    /**
+     * Returns a new identifier that fits in an int, for account numbers and customer IDs.
+     */
+    int nextInt() {
+        return (int) next();
+    }
+
+    /**
+     * Ensures that identifiers up to and including the given one are never handed out,
+     * as when restoring a bank.
+     *
+     * @param id An identifier assigned before the restore.
+     */
+    void advancePast(long id) {
+        if (id < 0 || id >= maxId) {
+            throw new IllegalArgumentException(name + " must be between 0 and " + (maxId - 1) + ": " + id);
+        }
+        reserved.accumulateAndGet(id + 1, Math::max);
+        floor.accumulateAndGet(id + 1, Math::max);
+    }
+
+    private void refill(Block block) {
+        long start = reserved.getAndAdd(blockSize);
+        if (start < 0 || start > maxId - blockSize) {
+            throw new IllegalStateException(name + " are exhausted");
+        }
+        long end = start + blockSize;
+        if (end > persisted) {
+            extendLease(end);
+        }
+        block.next = start;
+        block.end = end;
+    }
+
+    /**
+     * Raises the high-water mark on disk past the given identifier and a further lease. The new
+     * mark is published to other threads only once it has been forced to disk.
+     */
+    private void extendLease(long end) {
+        synchronized (IdAllocator.class) {
+            if (end <= persisted) {
+                return;
+            }
+            long previous = leased;
+            leased = Math.min(maxId, end + leaseSize);
+            try {
+                writeMarks();
+            } catch (IOException e) {
+                leased = previous;
+                throw new UncheckedIOException("Cannot write the identifier high-water marks", e);
+            }
+            persisted = leased;
+        }
+    }
+
+    /**
+     * Starts keeping the high-water marks of every allocator in the given file, after advancing
+     * the allocators past the marks already in it. Called when a durable bank is opened.
+     *
+     * @param file The file holding the marks, created if it does not exist.
+     * @return A handle that stops writing to the file when closed.
+     * @throws IOException If the file cannot be read or written.
+     */
+    static Closeable persistTo(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            synchronized (IdAllocator.class) {
+                ByteBuffer marks = ByteBuffer.allocate(ALLOCATORS.length * Long.BYTES);
+                while (marks.hasRemaining() && channel.read(marks, marks.position()) >= 0) {
+                    // Keep reading until the marks are complete or the file ends.
+                }
+                if (marks.position() == marks.capacity()) {
+                    for (IdAllocator allocator : ALLOCATORS) {
+                        long mark = marks.getLong(allocator.index() * Long.BYTES);
+                        if (mark > 0) {
+                            allocator.advancePast(mark - 1);
+                        }
+                    }
+                }
+                MARK_FILES.add(channel);
+                for (IdAllocator allocator : ALLOCATORS) {
+                    allocator.leased = Math.min(allocator.maxId, allocator.reserved.get() + allocator.leaseSize);
+                }
+                writeMarks();
+                for (IdAllocator allocator : ALLOCATORS) {
+                    allocator.persisted = allocator.leased;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            synchronized (IdAllocator.class) {
+                MARK_FILES.remove(channel);
+                for (IdAllocator allocator : ALLOCATORS) {
+                    allocator.leased = MARK_FILES.isEmpty() ? Long.MAX_VALUE : allocator.persisted;
+                }
+            }
+            channel.close();
+            throw e;
+        }
+        return () -> {
+            try (channel) {
+                synchronized (IdAllocator.class) {
+                    MARK_FILES.remove(channel);
+                    if (MARK_FILES.isEmpty()) {
+                        for (IdAllocator allocator : ALLOCATORS) {
+                            allocator.persisted = Long.MAX_VALUE;
+                            allocator.leased = Long.MAX_VALUE;
+                        }
+                    }
+                    // Nothing beyond the identifiers reserved so far was used by the closing bank,
+                    // so a clean restart need not skip the rest of the lease.
+                    write(channel, false);
+                }
+            }
+        };
+    }
+
+    /**
+     * Writes and forces every allocator's lease mark to every open mark file. Called with the class lock held.
+     */
+    private static void writeMarks() throws IOException {
+        for (FileChannel channel : MARK_FILES) {
+            write(channel, true);
+        }
+    }
+
+    /**
+     * Writes and forces every allocator's mark to one file: the end of its lease, or the first
+     * identifier not yet reserved.
+     */
+    private static void write(FileChannel channel, boolean lease) throws IOException {
+        ByteBuffer marks = ByteBuffer.allocate(ALLOCATORS.length * Long.BYTES);
+        for (IdAllocator allocator : ALLOCATORS) {
+            long leased = allocator.leased;
+            marks.putLong(lease && leased != Long.MAX_VALUE ? leased : allocator.reserved.get());
+        }
+        marks.flip();
+        while (marks.hasRemaining()) {
+            channel.write(marks, marks.position());
+        }
+        channel.force(false);
+    }
+
+    private int index() {
+        for (int i = 0; i < ALLOCATORS.length; i++) {
+            if (ALLOCATORS[i] == this) {
+                return i;
+            }
+        }
+        throw new AssertionError();
+    }
+
+    /**
+     * The identifiers reserved by one thread and not yet handed out.
+     */
+    private static final class Block {
+        long next;
+        long end;
+    }
+}
@@ -0,0 +1,329 @@
+package Bank;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers the outcome of recent requests by idempotency key, so that a caller retrying a
+ * deposit, withdrawal or transfer gets the original outcome instead of moving money again.
+ * <p>
+ * Keys are spread over {@value #SEGMENTS} segments, each an open-addressing hash table of
+ * primitive arrays with a ring of its keys in insertion order. A lookup is one hash and a short
+ * linear probe, and the table is kept at most half full. Keys are forgotten oldest first, once
+ * they are older than the time to live or to make room when a segment is at capacity, so memory
+ * stays bounded at about 64 bytes per remembered key. Segments start small and grow as keys arrive.
+ * </p>
+ * <p>
+ * Each key is remembered with a fingerprint of its request, the operation, accounts and amount,
+ * so a key reused for a different request is rejected instead of returning another request's
+ * outcome. A request is marked pending in its key's slot, under the lock of the segment, and then
+ * runs outside it, so a slow request holds up only retries of itself, which wait for it instead of running
+ * alongside it. What is remembered is the operation's commit ticket, so a retry of a journaled
+ * operation still waits for the original to become durable. A request that throws is not
+ * remembered. Keys are kept in memory only and are not restored with a bank.
+ * </p>
+ */
+final class IdempotencyCache {
+
+    private static final int SEGMENT_BITS = 6;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+    private static final int INITIAL_SEGMENT_CAPACITY = 16;
+
+    /** Stands for a remembered failure, since a ticket of 0 marks an empty slot. */
+    private static final long FAILED = Long.MIN_VALUE;
+
+    /** Stands for a request that is still running; its slot holds the key and fingerprint. */
+    private static final long PENDING = Long.MIN_VALUE + 1;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long ttlMillis;
+
+    /**
+     * Constructs an empty cache.
+     *
+     * @param capacity The number of keys to remember at most, rounded up to fill the segments evenly.
+     * @param ttlMillis How long a key is remembered, in milliseconds.
+     * @throws IllegalArgumentException If the capacity or time to live is not positive.
+     */
+    IdempotencyCache(int capacity, long ttlMillis) {
+        if (capacity <= 0 || ttlMillis <= 0) {
+            throw new IllegalArgumentException("Capacity and time to live must be positive");
+        }
+        int perSegment = (capacity + SEGMENTS - 1) / SEGMENTS;
+        int segmentCapacity = Integer.highestOneBit(Math.max(perSegment - 1, 1)) << 1;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Returns the fingerprint of a deposit, withdrawal or transfer request, to be remembered with its key.
+     *
+     * @param operation The {@link TransactionBatch} operation code.
+     * @param fromAccountNumber The account, or source account of a transfer.
+     * @param toAccountNumber The destination account of a transfer, or the account itself otherwise.
+     * @param amountMinorUnits The amount in minor units.
+     * @return The fingerprint.
+     */
+    static long fingerprint(byte operation, int fromAccountNumber, int toAccountNumber, long amountMinorUnits) {
+        long hash = operation;
+        hash = (hash * 0x9E3779B97F4A7C15L) ^ fromAccountNumber;
+        hash = (hash * 0x9E3779B97F4A7C15L) ^ toAccountNumber;
+        hash = (hash * 0x9E3779B97F4A7C15L) ^ amountMinorUnits;
+        return hash * 0x9E3779B97F4A7C15L;
+    }
+
+    /**
+     * Returns the fingerprint of a deposit, withdrawal or transfer of the given accounts, either of which may be null.
+     */
+    static long fingerprint(byte operation, Account account, Account otherAccount, double amount) {
+        return fingerprint(operation, account == null ? -1 : account.getAccountNumber(),
+                otherAccount == null ? -1 : otherAccount.getAccountNumber(), Money.toMinorUnits(amount));
+    }
+
+    /**
+     * Runs an operation unless a request with the same key has been seen within the time to live.
+     *
+     * @param key The idempotency key identifying the request.
+     * @param fingerprint The fingerprint of the request, from {@link #fingerprint(byte, int, int, long)}.
+     * @param operation Applies the request, returning its commit ticket, or 0 if it failed.
+     * @return The ticket returned by the operation, now or when the key was first seen.
+     * @throws IllegalArgumentException If the key was seen with a different request.
+     */
+    long execute(long key, long fingerprint, LongSupplier operation) {
+        return execute(key, fingerprint, operation, System.currentTimeMillis());
+    }
+
+    /**
+     * Runs an operation unless its key has been seen, with the current time given.
+     */
+    long execute(long key, long fingerprint, LongSupplier operation, long now) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        Segment segment = segments[(int) (hash >>> (64 - SEGMENT_BITS))];
+        int slotHash = (int) (hash >>> 32);
+        synchronized (segment) {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    segment.expire(now);
+                    int slot = segment.find(key, slotHash);
+                    if (slot >= 0) {
+                        checkFingerprint(key, segment.fingerprints[slot], fingerprint);
+                        long ticket = segment.tickets[slot];
+                        if (ticket != PENDING) {
+                            return ticket == FAILED ? 0 : ticket;
+                        }
+                    } else if (segment.markPending(key, slotHash, fingerprint)) {
+                        break;
+                    }
+                    try {
+                        segment.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        long ticket = 0;
+        boolean completed = false;
+        try {
+            ticket = operation.getAsLong();
+            completed = true;
+            return ticket;
+        } finally {
+            synchronized (segment) {
+                if (completed) {
+                    segment.complete(key, slotHash, ticket == 0 ? FAILED : ticket, now + ttlMillis);
+                } else {
+                    segment.abandon(key);
+                }
+                segment.notifyAll();
+            }
+        }
+    }
+
+    private static void checkFingerprint(long key, long remembered, long fingerprint) {
+        if (remembered != fingerprint) {
+            throw new IllegalArgumentException("Idempotency key " + key + " was used for a different request");
+        }
+    }
+
+    /**
+     * Returns the number of remembered keys, including any that have expired but have not yet been evicted.
+     */
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.count;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * One segment: a hash table of keys, fingerprints and tickets, where a ticket of 0 marks an
+     * empty slot and a ticket of {@code PENDING} a request still running, and a ring of the completed keys
+     * with their expiry times, oldest first. Completed and pending keys together take at most
+     * half the table.
+     */
+    private static final class Segment {
+        private final int maxCapacity;
+
+        long[] keys;
+        long[] fingerprints;
+        long[] tickets;
+        private int mask;
+
+        private long[] ringKeys;
+        private long[] ringExpiries;
+        private int head;
+        int count;
+
+        /** The number of slots marked pending, which are not in the ring. */
+        private int pending;
+
+        Segment(int maxCapacity) {
+            this.maxCapacity = maxCapacity;
+            allocate(Math.min(INITIAL_SEGMENT_CAPACITY, maxCapacity));
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity * 2];
+            fingerprints = new long[capacity * 2];
+            tickets = new long[capacity * 2];
+            mask = capacity * 2 - 1;
+            ringKeys = new long[capacity];
+            ringExpiries = new long[capacity];
+            head = 0;
+        }
+
+        /**
+         * Evicts the keys whose time to live has passed.
+         */
+        void expire(long now) {
+            while (count > 0 && ringExpiries[head] <= now) {
+                evictOldest();
+            }
+        }
+
+        /**
+         * Returns the slot holding the key, or -1 if it is not remembered.
+         */
+        int find(long key, int slotHash) {
+            for (int slot = slotHash & mask; tickets[slot] != 0; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Marks a key that is not present as pending, growing the segment or evicting its oldest
+         * completed key if it is full.
+         *
+         * @return false if every slot the segment may use is pending, so the caller must wait.
+         */
+        boolean markPending(long key, int slotHash, long fingerprint) {
+            if (count + pending == ringKeys.length) {
+                if (ringKeys.length < maxCapacity) {
+                    grow();
+                } else if (count > 0) {
+                    evictOldest();
+                } else {
+                    return false;
+                }
+            }
+            put(key, slotHash, fingerprint, PENDING);
+            pending++;
+            return true;
+        }
+
+        /**
+         * Records the outcome of a pending key and adds it to the ring. The key's slot was
+         * counted against the ring's capacity while pending, so the ring has room for it.
+         */
+        void complete(long key, int slotHash, long ticket, long expiry) {
+            tickets[find(key, slotHash)] = ticket;
+            pending--;
+            int tail = (head + count) & (ringKeys.length - 1);
+            ringKeys[tail] = key;
+            ringExpiries[tail] = expiry;
+            count++;
+        }
+
+        /**
+         * Forgets a pending key whose request threw.
+         */
+        void abandon(long key) {
+            remove(key);
+            pending--;
+        }
+
+        private void put(long key, int slotHash, long fingerprint, long ticket) {
+            int slot = slotHash & mask;
+            while (tickets[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            fingerprints[slot] = fingerprint;
+            tickets[slot] = ticket;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldFingerprints = fingerprints;
+            long[] oldTickets = tickets;
+            long[] oldRingKeys = ringKeys;
+            long[] oldRingExpiries = ringExpiries;
+            int oldHead = head;
+            allocate(ringKeys.length * 2);
+            for (int slot = 0; slot < oldKeys.length; slot++) {
+                if (oldTickets[slot] != 0) {
+                    put(oldKeys[slot], slotHash(oldKeys[slot]), oldFingerprints[slot], oldTickets[slot]);
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                int from = (oldHead + i) & (oldRingKeys.length - 1);
+                ringKeys[i] = oldRingKeys[from];
+                ringExpiries[i] = oldRingExpiries[from];
+            }
+        }
+
+        private void evictOldest() {
+            remove(ringKeys[head]);
+            head = (head + 1) & (ringKeys.length - 1);
+            count--;
+        }
+
+        /**
+         * Removes a key from the table, shifting back the entries of its probe run so that
+         * lookups never need tombstones.
+         */
+        private void remove(long key) {
+            int hole = find(key, slotHash(key));
+            if (hole < 0) {
+                return;
+            }
+            for (int slot = (hole + 1) & mask; tickets[slot] != 0; slot = (slot + 1) & mask) {
+                int home = slotHash(keys[slot]) & mask;
+                if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                    keys[hole] = keys[slot];
+                    fingerprints[hole] = fingerprints[slot];
+                    tickets[hole] = tickets[slot];
+                    hole = slot;
+                }
+            }
+            tickets[hole] = 0;
+        }
+
+        private static int slotHash(long key) {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package Bank;
+
+import java.util.function.Consumer;
+
+/**
+ * An open-addressing hash index keyed by primitive {@code int} values.
+ * Lookup, insertion and removal run in constant expected time without boxing the key.
+ * Collisions are resolved by linear probing and removals use backward shifting,
+ * so the table never accumulates tombstones.
+ * <p>
+ * This class is not thread-safe; callers are responsible for synchronization.
+ * A {@link #get(int)} racing with a writer never fails, but may return a stale or wrong
+ * result, so it is safe to use under an optimistic read that is validated afterwards.
+ * </p>
+ *
+ * @param <V> The type of the indexed values.
+ */
+public class IntIndex<V> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * The key and value arrays of the table, kept together so that a racing reader
+     * always sees both arrays from the same generation.
+     */
+    private static final class Table {
+        final int[] keys;
+        final Object[] values;
+
+        Table(int capacity) {
+            this.keys = new int[capacity];
+            this.values = new Object[capacity];
+        }
+    }
+
+    private Table table;
+    private int size;
+    private int mask;
+    private int resizeThreshold;
+
+    /**
+     * Constructs an empty index with a small default capacity.
+     */
+    public IntIndex() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs an empty index able to hold the expected number of entries without resizing.
+     *
+     * @param expectedSize The number of entries the index is expected to hold.
+     */
+    public IntIndex(int expectedSize) {
+        allocate(tableSizeFor(Math.max(expectedSize, 1) * 2));
+    }
+
+    /**
+     * Returns the value indexed under the given key.
+     *
+     * @param key The key to look up.
+     * @return The value if present, null otherwise.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        Table table = this.table;
+        int[] keys = table.keys;
+        Object[] values = table.values;
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            Object value = values[slot];
+            if (value == null) {
+                return null;
+            }
+            if (keys[slot] == key) {
+                return (V) value;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether a value is indexed under the given key.
+     *
+     * @param key The key to look up.
+     * @return true if the key is present, false otherwise.
+     */
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Indexes a value under the given key unless the key is already present.
+     *
+     * @param key The key of the value.
+     * @param value The value to index, must not be null.
+     * @return true if the value was added, false if the key was already present.
+     */
+    public boolean putIfAbsent(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        int[] keys = table.keys;
+        Object[] values = table.values;
+        int slot = hash(key) & mask;
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > resizeThreshold) {
+            rehash(keys.length << 1);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the value indexed under the given key.
+     *
+     * @param key The key to remove.
+     * @return The removed value, or null if the key was not present.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int[] keys = table.keys;
+        Object[] values = table.values;
+        int slot = hash(key) & mask;
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                V removed = (V) values[slot];
+                shiftBackFrom(slot);
+                size--;
+                return removed;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of entries in the index.
+     *
+     * @return The number of entries.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Passes every indexed value to the given action, in no particular order.
+     *
+     * @param action The action to apply to each value.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(Consumer<? super V> action) {
+        Object[] values = table.values;
+        for (Object value : values) {
+            if (value != null) {
+                action.accept((V) value);
+            }
+        }
+    }
+
+    /**
+     * Closes the gap left at the given slot by moving later entries of the same probe run back.
+     */
+    private void shiftBackFrom(int gap) {
+        int[] keys = table.keys;
+        Object[] values = table.values;
+        int slot = gap;
+        while (true) {
+            slot = (slot + 1) & mask;
+            Object value = values[slot];
+            if (value == null) {
+                break;
+            }
+            int home = hash(keys[slot]) & mask;
+            // Move the entry only if its home slot does not lie cyclically in (gap, slot].
+            if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                keys[gap] = keys[slot];
+                values[gap] = value;
+                gap = slot;
+            }
+        }
+        values[gap] = null;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = table.keys;
+        Object[] oldValues = table.values;
+        Table resized = new Table(capacity);
+        int[] keys = resized.keys;
+        Object[] values = resized.values;
+        int mask = capacity - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (values[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+        this.mask = mask;
+        this.resizeThreshold = capacity >>> 1;
+        this.table = resized;
+    }
+
+    private void allocate(int capacity) {
+        this.table = new Table(capacity);
+        this.mask = capacity - 1;
+        this.resizeThreshold = capacity >>> 1;
+    }
+
+    private static int tableSizeFor(int n) {
+        int capacity = Integer.highestOneBit(Math.max(n - 1, 1)) << 1;
+        return Math.max(capacity, DEFAULT_CAPACITY);
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
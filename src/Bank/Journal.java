@@ -0,0 +1,679 @@
+package Bank;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only binary journal of every mutation applied to a {@link CentralBank}.
+ * <p>
+ * Each mutation is applied and encoded while holding the journal lock, so the journal
+ * order is exactly the order in which mutations took effect and replaying it reproduces
+ * the bank. Records are buffered in memory and made durable by group commit: the first
+ * caller to wait for durability writes and forces every record buffered so far, while
+ * callers arriving during that flush wait for the next one, so many concurrent operations
+ * share a single fsync.
+ * </p>
+ * <p>
+ * Each record is laid out as a payload length, a type byte, the payload and a CRC32 of
+ * the type and payload. Deposits, withdrawals and transfers also carry the time they were
+ * made and the IDs of the transactions they record, so replayed transactions keep their
+ * original timestamps and IDs; records written before timestamps or IDs were journaled are
+ * replayed at the time of replay, under new IDs. Changes to a customer's details and balances
+ * set directly on an account are journaled too. A torn record at the end of the file, left by
+ * a crash during a write, is detected on replay and truncated, as is anything after a record
+ * whose checksum does not match.
+ * </p>
+ * <p>
+ * A failed write or force is not retried: it fails the waiting commits and every later record,
+ * since the mutations it covered have already been applied in memory and later ones may depend
+ * on them. Reopening the journal and replaying it restores the state that reached the disk.
+ * </p>
+ * <p>
+ * Replay can start from the journal offset recorded in a snapshot, so that only the
+ * records appended after the snapshot was taken are applied. Offsets are logical: once a
+ * snapshot is written, the records before its offset are trimmed by rewriting the journal
+ * without them, behind a {@value #HEADER_SIZE}-byte header holding the magic number
+ * {@code 0xCB4A524E} and the offset of the first record kept. A journal without the header
+ * starts at offset 0.
+ * </p>
+ */
+public class Journal implements Closeable {
+
+    static final byte CUSTOMER_ADDED = 1;
+    static final byte CUSTOMER_REMOVED = 2;
+    static final byte ACCOUNT_OPENED = 3;
+    static final byte ACCOUNT_CLOSED = 4;
+    static final byte DEPOSIT = 5;
+    static final byte WITHDRAW = 6;
+    static final byte TRANSFER = 7;
+    /** The debit of a transfer to an account in another journal: the source, the destination and the amount. */
+    static final byte TRANSFER_OUT = 8;
+    /** The credit of a transfer from an account in another journal: the destination, the source and the amount. */
+    static final byte TRANSFER_IN = 9;
+    /** New details of an existing customer, laid out as {@link #CUSTOMER_ADDED} is. */
+    static final byte CUSTOMER_UPDATED = 10;
+    /** A balance set directly on an account: the account, the account again and the new balance. */
+    static final byte BALANCE_SET = 11;
+
+    /** The size of a fixed-layout record payload: two account or customer numbers and an amount. */
+    private static final int FIXED_PAYLOAD = 4 + 4 + 8;
+
+    /** The size of a fixed-layout record payload followed by the time of the mutation. */
+    private static final int TIMESTAMPED_PAYLOAD = FIXED_PAYLOAD + 8;
+
+    /**
+     * The size of a timestamped payload followed by the IDs of the transactions recorded on the
+     * first and the second account, the same ID twice for a record touching one account.
+     */
+    private static final int IDENTIFIED_PAYLOAD = TIMESTAMPED_PAYLOAD + 8 + 8;
+
+    /** The bytes framing every payload: length, type and checksum. */
+    private static final int FRAME = 4 + 1 + 4;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    /**
+     * Starts a trimmed journal. It is negative, so a journal written before trimming, which
+     * starts with a payload length, can never be mistaken for one.
+     */
+    private static final int MAGIC = 0xCB4A524E;
+
+    /** The size of the header of a trimmed journal: the magic number and the offset of its first record. */
+    private static final int HEADER_SIZE = 4 + 8;
+
+    private final Path file;
+    private FileChannel channel;
+
+    /** The offset of the first record in the file. Only changed by a trim, under the lock. */
+    private long baseOffset;
+
+    /** The size of the header before the first record: 0, or {@link #HEADER_SIZE} once trimmed. */
+    private int headerSize;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushed = lock.newCondition();
+    private final CRC32 crc = new CRC32();
+
+    private ByteBuffer pending;
+    private ByteBuffer spare;
+    private long appendedSequence;
+    private long appendedOffset;
+    private long durableSequence;
+    private boolean flushing;
+    private IOException failure;
+
+    private Journal(Path file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+        this.pending = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.spare = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /**
+     * Opens the journal at the given path, creating an empty journal if the file does not exist.
+     * The journal must be replayed before new records are appended to it.
+     *
+     * @param file The journal file.
+     * @return The opened journal.
+     * @throws IOException If the file cannot be opened.
+     */
+    public static Journal open(Path file) throws IOException {
+        return new Journal(file, FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE));
+    }
+
+    /**
+     * Applies every record in the journal to the given bank, truncates any torn record at the
+     * end of the file and positions the journal for appending.
+     *
+     * @param bank The bank to restore, normally freshly constructed.
+     * @throws IOException If the journal cannot be read.
+     */
+    public void replay(CentralBank bank) throws IOException {
+        replay(bank, 0, new IntIndex<>());
+    }
+
+    /**
+     * Applies the records from the given offset onwards to a bank restored from a snapshot,
+     * truncates any torn record at the end of the file and positions the journal for appending.
+     *
+     * @param bank The bank to restore.
+     * @param fromOffset The journal offset recorded in the snapshot.
+     * @param customers Every customer restored from the snapshot, including removed account owners.
+     * @throws IOException If the journal cannot be read, is shorter than the offset or was
+     *         trimmed past it, as when the snapshot it was trimmed for is missing.
+     */
+    void replay(CentralBank bank, long fromOffset, IntIndex<Customer> customers) throws IOException {
+        long end = channel.size();
+        if (end >= HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+                // Keep reading until the header is complete.
+            }
+            if (header.getInt(0) == MAGIC) {
+                headerSize = HEADER_SIZE;
+                baseOffset = header.getLong(4);
+            }
+        }
+        if (fromOffset < baseOffset) {
+            throw new IOException("Journal was trimmed to offset " + baseOffset + " after the snapshot offset " + fromOffset);
+        }
+        if (fromOffset - baseOffset > end - headerSize) {
+            throw new IOException("Journal ends at " + (baseOffset + end - headerSize) + " before the snapshot offset "
+                    + fromOffset);
+        }
+        Replayer replayer = new Replayer(bank, customers);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        buffer.flip();
+        long position = headerSize + fromOffset - baseOffset;
+        channel.position(position);
+        while ((buffer = ensure(buffer, 4)) != null) {
+            int payloadLength = buffer.getInt(buffer.position());
+            if (payloadLength < 0 || payloadLength > end - position - FRAME || (buffer = ensure(buffer, FRAME + payloadLength)) == null) {
+                break;
+            }
+            int start = buffer.position();
+            crc.reset();
+            ByteBuffer checked = buffer.duplicate();
+            checked.position(start + 4).limit(start + 5 + payloadLength);
+            crc.update(checked);
+            if ((int) crc.getValue() != buffer.getInt(start + 5 + payloadLength)) {
+                break;
+            }
+            buffer.position(start + 4);
+            byte type = buffer.get();
+            replayer.apply(type, buffer, payloadLength);
+            buffer.position(start + FRAME + payloadLength);
+            position += FRAME + payloadLength;
+        }
+        channel.truncate(position);
+        channel.position(position);
+        appendedOffset = baseOffset + position - headerSize;
+    }
+
+    /**
+     * Drops the records before the given offset, once a snapshot covering them is durable.
+     * The records from the offset onwards are copied behind a header into a new file that
+     * atomically replaces the journal, so a crash leaves either the old journal or the trimmed
+     * one, and either replays correctly from the snapshot. Mutations wait while the records
+     * are copied, which are only those logged since the snapshot was captured.
+     *
+     * @param offset The journal offset recorded in the snapshot.
+     * @throws IOException If the trimmed journal cannot be written; the journal is then left as it was.
+     * @throws UncheckedIOException If the journal is no longer writable.
+     */
+    void trim(long offset) throws IOException {
+        lock.lock();
+        try {
+            checkFailure();
+            while (flushing) {
+                flushed.awaitUninterruptibly();
+            }
+            if (offset <= baseOffset) {
+                return;
+            }
+            // Only flushed records are in the file; the rest are still buffered and go to the new file.
+            long from = headerSize + offset - baseOffset;
+            long to = channel.size();
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel trimmed = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putLong(offset);
+                header.flip();
+                while (header.hasRemaining()) {
+                    trimmed.write(header);
+                }
+                for (long copied = from; copied < to; ) {
+                    copied += channel.transferTo(copied, to - copied, trimmed);
+                }
+                trimmed.force(true);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            FileChannel reopened = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            reopened.position(reopened.size());
+            channel.close();
+            channel = reopened;
+            baseOffset = offset;
+            headerSize = HEADER_SIZE;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes sure the buffer holds at least the given number of unread bytes,
+     * reading more of the journal and growing the buffer if necessary.
+     *
+     * @return The buffer holding the bytes, or null if the journal ends before that many bytes.
+     */
+    private ByteBuffer ensure(ByteBuffer buffer, int needed) throws IOException {
+        if (buffer.remaining() >= needed) {
+            return buffer;
+        }
+        if (needed > buffer.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(needed);
+            grown.put(buffer);
+            buffer = grown;
+        } else {
+            buffer.compact();
+        }
+        while (buffer.position() < needed && channel.read(buffer) >= 0) {
+            // Keep reading until enough bytes are buffered or the journal ends.
+        }
+        buffer.flip();
+        return buffer.remaining() >= needed ? buffer : null;
+    }
+
+    /**
+     * Applies a mutation and, if it succeeds, appends a fixed-layout record describing it.
+     * The mutation runs under the journal lock so that journal order matches application order.
+     *
+     * @param type The record type.
+     * @param first The first account or customer number of the record.
+     * @param second The second account or customer number of the record.
+     * @param amountMinorUnits The amount of the record in minor units.
+     * @param mutation The mutation to apply.
+     * @return The sequence number of the record, or 0 if the mutation did not succeed.
+     */
+    long log(byte type, int first, int second, long amountMinorUnits, BooleanSupplier mutation) {
+        lock.lock();
+        try {
+            checkFailure();
+            if (!mutation.getAsBoolean()) {
+                return 0;
+            }
+            ByteBuffer out = reserve(FIXED_PAYLOAD);
+            int start = out.position();
+            out.putInt(FIXED_PAYLOAD).put(type).putInt(first).putInt(second).putLong(amountMinorUnits);
+            return seal(out, start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies a deposit, withdrawal or transfer made at the given time and, if it succeeds,
+     * appends a fixed-layout record describing it together with the time and transaction IDs.
+     *
+     * @param type The record type.
+     * @param first The first account number of the record.
+     * @param second The second account number of the record.
+     * @param amountMinorUnits The amount of the record in minor units.
+     * @param timestamp The time the mutation records, in milliseconds since the epoch.
+     * @param firstTransactionId The ID of the transaction the mutation records on the first account.
+     * @param secondTransactionId The ID of the transaction the mutation records on the second
+     *        account, or the first ID again if it records only one.
+     * @param mutation The mutation to apply.
+     * @return The sequence number of the record, or 0 if the mutation did not succeed.
+     */
+    long log(byte type, int first, int second, long amountMinorUnits, long timestamp, long firstTransactionId,
+            long secondTransactionId, BooleanSupplier mutation) {
+        lock.lock();
+        try {
+            checkFailure();
+            if (!mutation.getAsBoolean()) {
+                return 0;
+            }
+            ByteBuffer out = reserve(IDENTIFIED_PAYLOAD);
+            int start = out.position();
+            out.putInt(IDENTIFIED_PAYLOAD).put(type).putInt(first).putInt(second).putLong(amountMinorUnits)
+                    .putLong(timestamp).putLong(firstTransactionId).putLong(secondTransactionId);
+            return seal(out, start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies a mutation adding a customer and, if it succeeds, appends a record holding the customer's details.
+     *
+     * @param customer The customer being added.
+     * @param mutation The mutation to apply.
+     * @return The sequence number of the record, or 0 if the mutation did not succeed.
+     */
+    long logCustomerAdded(Customer customer, BooleanSupplier mutation) {
+        byte[] name = encode(customer.getName());
+        byte[] address = encode(customer.getAddress());
+        lock.lock();
+        try {
+            checkFailure();
+            if (!mutation.getAsBoolean()) {
+                return 0;
+            }
+            return putCustomer(CUSTOMER_ADDED, customer.getCustomerId(), customer.getDateOfBirth(), name, address);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a record holding a customer's current details, after its setters have changed them.
+     * The details are read under the journal lock, so whichever of two concurrent changes is
+     * journaled last carries the details both left behind.
+     *
+     * @param customer The customer whose details changed.
+     * @return The sequence number of the record.
+     */
+    long logCustomerUpdated(Customer customer) {
+        lock.lock();
+        try {
+            checkFailure();
+            String name;
+            String address;
+            Date dateOfBirth;
+            synchronized (customer) {
+                name = customer.getName();
+                address = customer.getAddress();
+                dateOfBirth = customer.getDateOfBirth();
+            }
+            return putCustomer(CUSTOMER_UPDATED, customer.getCustomerId(), dateOfBirth, encode(name), encode(address));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a record holding a customer's details. Called with the lock held.
+     */
+    private long putCustomer(byte type, int customerId, Date dateOfBirth, byte[] name, byte[] address) {
+        int payload = 4 + 8 + 4 + length(name) + 4 + length(address);
+        ByteBuffer out = reserve(payload);
+        int start = out.position();
+        out.putInt(payload).put(type).putInt(customerId).putLong(dateOfBirth == null ? NO_DATE : dateOfBirth.getTime());
+        putBytes(out, name);
+        putBytes(out, address);
+        return seal(out, start);
+    }
+
+    /**
+     * Waits until the record with the given sequence number is durable on disk,
+     * flushing buffered records itself if no other caller is already doing so.
+     *
+     * @param sequence The sequence number returned when the record was logged.
+     * @return true if a record was logged, false if the sequence number is 0.
+     * @throws UncheckedIOException If the journal cannot be written. The record's mutation has
+     *         already been applied and is not undone; the journal refuses every later record, and
+     *         replaying it, after reopening, keeps only the records that reached the disk.
+     */
+    boolean commit(long sequence) {
+        if (sequence == 0) {
+            return false;
+        }
+        lock.lock();
+        try {
+            while (durableSequence < sequence) {
+                checkFailure();
+                if (flushing) {
+                    flushed.awaitUninterruptibly();
+                } else {
+                    flush();
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes and forces every buffered record. Called with the lock held; the lock is
+     * released during the I/O so that other threads keep appending to the other buffer.
+     */
+    private void flush() {
+        flushing = true;
+        ByteBuffer toWrite = pending;
+        pending = spare;
+        spare = null;
+        long upTo = appendedSequence;
+        FileChannel channel = this.channel;
+        lock.unlock();
+        IOException error = null;
+        try {
+            toWrite.flip();
+            while (toWrite.hasRemaining()) {
+                channel.write(toWrite);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            lock.lock();
+        }
+        toWrite.clear();
+        spare = toWrite;
+        flushing = false;
+        if (error != null) {
+            failure = error;
+        } else {
+            durableSequence = upTo;
+        }
+        flushed.signalAll();
+    }
+
+    /**
+     * Returns the pending buffer with room for a record of the given payload size,
+     * growing it if the record does not fit.
+     */
+    private ByteBuffer reserve(int payload) {
+        int needed = FRAME + payload;
+        if (pending.remaining() < needed) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(pending.capacity() * 2, pending.position() + needed));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        return pending;
+    }
+
+    /**
+     * Appends the checksum of the record starting at the given position and assigns its sequence number.
+     */
+    private long seal(ByteBuffer out, int start) {
+        crc.reset();
+        ByteBuffer checked = out.duplicate();
+        checked.position(start + 4).limit(out.position());
+        crc.update(checked);
+        out.putInt((int) crc.getValue());
+        appendedOffset += out.position() - start;
+        return ++appendedSequence;
+    }
+
+    /**
+     * Runs an action while no mutation can be logged, then waits until every record logged
+     * before it is durable. Used to capture a state consistent with a journal offset.
+     *
+     * @param action The action to run.
+     * @return The journal offset at which the captured state begins to diverge from the journal.
+     * @throws UncheckedIOException If the journal cannot be written.
+     */
+    long quiesce(Runnable action) {
+        long offset;
+        long sequence;
+        lock.lock();
+        try {
+            checkFailure();
+            action.run();
+            offset = appendedOffset;
+            sequence = appendedSequence;
+        } finally {
+            lock.unlock();
+        }
+        commit(sequence);
+        return offset;
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new UncheckedIOException("Journal is no longer writable", failure);
+        }
+    }
+
+    /**
+     * Flushes any buffered records and closes the journal file.
+     *
+     * @throws IOException If the journal cannot be written or closed.
+     */
+    @Override
+    public void close() throws IOException {
+        long last;
+        lock.lock();
+        try {
+            last = failure == null ? appendedSequence : 0;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            commit(last);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static byte[] encode(String text) {
+        return text == null ? null : text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static void putBytes(ByteBuffer out, byte[] bytes) {
+        if (bytes == null) {
+            out.putInt(-1);
+        } else {
+            out.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Applies decoded journal records to a bank. Tracks every customer ever added,
+     * since accounts can outlive the removal of their owner from the bank.
+     */
+    private static final class Replayer {
+        private final CentralBank bank;
+        private final IntIndex<Customer> customers;
+
+        Replayer(CentralBank bank, IntIndex<Customer> customers) {
+            this.bank = bank;
+            this.customers = customers;
+        }
+
+        void apply(byte type, ByteBuffer in, int payloadLength) {
+            if (type == CUSTOMER_ADDED || type == CUSTOMER_UPDATED) {
+                int id = in.getInt();
+                long dateOfBirth = in.getLong();
+                String name = getString(in);
+                String address = getString(in);
+                Date born = dateOfBirth == NO_DATE ? null : new Date(dateOfBirth);
+                if (type == CUSTOMER_UPDATED) {
+                    Customer updated = customers.get(id);
+                    if (updated != null) {
+                        updated.restoreDetails(name, address, born);
+                    }
+                    return;
+                }
+                Customer customer = new Customer(id, name, address, born);
+                customers.putIfAbsent(id, customer);
+                bank.insertCustomer(customer);
+                return;
+            }
+            int first = in.getInt();
+            int second = in.getInt();
+            long amount = in.getLong();
+            long timestamp = payloadLength >= TIMESTAMPED_PAYLOAD ? in.getLong() : System.currentTimeMillis();
+            long firstId = 0;
+            long secondId = 0;
+            if (payloadLength >= IDENTIFIED_PAYLOAD) {
+                firstId = in.getLong();
+                secondId = in.getLong();
+                TransactionLog.advancePast(Math.max(firstId, secondId));
+            } else if (type >= DEPOSIT && type <= TRANSFER_IN) {
+                firstId = TransactionLog.nextTransactionId();
+                secondId = type == TRANSFER ? TransactionLog.nextTransactionId() : firstId;
+            }
+            switch (type) {
+            case CUSTOMER_REMOVED:
+                bank.deleteCustomer(first);
+                break;
+            case ACCOUNT_OPENED:
+                Customer owner = customers.get(second);
+                if (owner != null) {
+                    bank.insertAccount(new Account(first, owner, AccountType.values()[(int) amount]));
+                }
+                break;
+            case ACCOUNT_CLOSED:
+                Account closing = bank.getAccountbyAccountID(first);
+                Customer closedBy = customers.get(second);
+                if (closing != null && closedBy != null) {
+                    bank.deleteAccount(closedBy, closing);
+                }
+                break;
+            case DEPOSIT:
+                Account depositTo = bank.getAccountbyAccountID(first);
+                if (depositTo != null) {
+                    depositTo.depositMinorUnits(amount, timestamp, firstId);
+                }
+                break;
+            case WITHDRAW:
+                Account withdrawFrom = bank.getAccountbyAccountID(first);
+                if (withdrawFrom != null) {
+                    withdrawFrom.withdrawMinorUnits(amount, timestamp, firstId);
+                }
+                break;
+            case TRANSFER:
+                Account from = bank.getAccountbyAccountID(first);
+                Account to = bank.getAccountbyAccountID(second);
+                if (from != null && to != null && from.transferOutMinorUnits(amount, timestamp, firstId)) {
+                    to.transferInMinorUnits(amount, timestamp, secondId);
+                }
+                break;
+            case TRANSFER_OUT:
+                Account debited = bank.getAccountbyAccountID(first);
+                if (debited != null) {
+                    debited.transferOutMinorUnits(amount, timestamp, firstId);
+                }
+                break;
+            case TRANSFER_IN:
+                Account credited = bank.getAccountbyAccountID(first);
+                if (credited != null) {
+                    credited.transferInMinorUnits(amount, timestamp, firstId);
+                }
+                break;
+            case BALANCE_SET:
+                Account set = bank.getAccountbyAccountID(first);
+                if (set != null) {
+                    set.restoreBalance(amount);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown journal record type " + type);
+            }
+        }
+    }
+}
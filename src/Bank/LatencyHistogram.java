@@ -0,0 +1,115 @@
+package Bank;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size histogram of latencies in nanoseconds, cheap enough to record every operation.
+ * <p>
+ * Values are counted in log-linear buckets: each power of two is split into
+ * {@value #SUB_BUCKETS} equal sub-buckets, so a reported percentile is within about 3% of the
+ * true value, and memory does not grow with the number of recordings. Latencies of
+ * 2<sup>{@value #MAX_EXPONENT}</sup> nanoseconds and above (about 4.6 minutes) share an overflow
+ * bucket, reported as the maximum, which is kept exactly. Each bucket is a {@link LongAdder}, so threads recording into the
+ * same bucket do not contend on one counter.
+ * </p>
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 38;
+    /** The bucket of latencies too long for the others, after the sub-buckets of every power of two below the limit. */
+    private static final int OVERFLOW = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    private static final int BUCKETS = OVERFLOW + 1;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final AtomicLong max = new AtomicLong();
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records one latency.
+     *
+     * @param nanos The latency in nanoseconds; negative values are recorded as 0.
+     */
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[bucket(value)].increment();
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Returns the number of recorded latencies.
+     */
+    long count() {
+        long count = 0;
+        for (LongAdder bucket : counts) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the largest recorded latency, or 0 if none has been recorded.
+     */
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * Returns the latency at or below which the given fraction of recordings fall, rounded up to
+     * the top of its bucket and capped at the maximum, or 0 if none has been recorded.
+     *
+     * @param fraction The fraction of recordings, between 0 and 1.
+     */
+    long percentile(double fraction) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        if (shift > MAX_EXPONENT - SUB_BUCKET_BITS - 1) {
+            return OVERFLOW;
+        }
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        if (bucket == OVERFLOW) {
+            return Long.MAX_VALUE;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << shift) - 1;
+    }
+}
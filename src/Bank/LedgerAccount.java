@@ -0,0 +1,141 @@
+package Bank;
+
+/**
+ * A view of an account held in a {@link MappedLedger}, for code written against {@link Account}.
+ * <p>
+ * The view holds only the ledger, the account number and the account type; every read and
+ * update of the balance, the owner and the closed flag goes to the ledger record. Views are
+ * cheap and short-lived, and two views of the same account are not the same object. The ledger
+ * keeps no transaction history, so deposits and withdrawals through a view change the balance
+ * without recording a transaction, and the view's history is always empty. Like any balance change
+ * made outside recorded transactions, they are not reflected by {@link #getBalanceAsOf(java.util.Date)}.
+ * </p>
+ */
+public final class LedgerAccount extends Account {
+
+    private final MappedLedger ledger;
+
+    /**
+     * Constructs a view of an account in a ledger.
+     *
+     * @param ledger The ledger holding the account.
+     * @param accountNumber The account number.
+     * @param type The type of the account.
+     */
+    LedgerAccount(MappedLedger ledger, int accountNumber, AccountType type) {
+        super(accountNumber, type);
+        this.ledger = ledger;
+    }
+
+    /**
+     * Sets the balance for this account.
+     *
+     * @param balance The new balance for the account.
+     */
+    @Override
+    public void setBalance(double balance) {
+        ledger.setBalance(getAccountNumber(), Money.toMinorUnits(balance));
+    }
+
+    /**
+     * Returns the balance of this account.
+     *
+     * @return The balance.
+     */
+    @Override
+    public double getBalance() {
+        return Money.toMajorUnits(getBalanceMinorUnits());
+    }
+
+    /**
+     * Returns the balance of this account in minor units.
+     *
+     * @return The balance in minor units.
+     */
+    @Override
+    public long getBalanceMinorUnits() {
+        return ledger.getBalanceMinorUnits(getAccountNumber());
+    }
+
+    /**
+     * Atomically adds an amount to the balance in the ledger.
+     *
+     * @param amountMinorUnits The amount to add, in minor units.
+     * @return The balance after the addition, in minor units.
+     */
+    @Override
+    public long credit(long amountMinorUnits) {
+        return ledger.credit(getAccountNumber(), amountMinorUnits);
+    }
+
+    /**
+     * Atomically subtracts an amount from the balance in the ledger if the balance covers it.
+     *
+     * @param amountMinorUnits The amount to subtract, in minor units.
+     * @return true if the balance covered the amount and was reduced, false otherwise.
+     */
+    @Override
+    public boolean tryDebit(long amountMinorUnits) {
+        return ledger.tryDebit(getAccountNumber(), amountMinorUnits);
+    }
+
+    /**
+     * Adds an amount to the balance in the ledger unless the ledger record is closed. The check
+     * and the addition are separate steps, since the ledger keeps the closed flag apart from the
+     * balance; the ledger's own callers order closing against balance changes.
+     *
+     * @param amountMinorUnits The amount to add, in minor units.
+     * @return true if the account was open and the balance was increased, false otherwise.
+     */
+    @Override
+    boolean creditIfOpen(long amountMinorUnits) {
+        if (isClosed()) {
+            return false;
+        }
+        credit(amountMinorUnits);
+        return true;
+    }
+
+    /**
+     * Subtracts an amount from the balance in the ledger unless the ledger record is closed or
+     * the balance does not cover it.
+     *
+     * @param amountMinorUnits The amount to subtract, in minor units.
+     * @return true if the account was open and the balance was reduced, false otherwise.
+     */
+    @Override
+    boolean debitIfOpen(long amountMinorUnits) {
+        return !isClosed() && tryDebit(amountMinorUnits);
+    }
+
+    /**
+     * Returns the owner of this account, as found by the ledger's customer lookup.
+     *
+     * @return The account owner, or null if the lookup does not know the owner.
+     */
+    @Override
+    public Customer getOwner() {
+        return ledger.owner(getAccountNumber());
+    }
+
+    /**
+     * Returns whether this account has been closed in the ledger.
+     *
+     * @return true if the account is closed, false otherwise.
+     */
+    @Override
+    public boolean isClosed() {
+        return ledger.isClosed(getAccountNumber());
+    }
+
+    @Override
+    long close() {
+        ledger.markClosed(getAccountNumber());
+        return getBalanceMinorUnits();
+    }
+
+    @Override
+    void recordTransaction(long amountMinorUnits, TransactionType type, long timestamp, long transactionId) {
+        // The ledger keeps balances only.
+    }
+}
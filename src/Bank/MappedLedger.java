@@ -0,0 +1,630 @@
+package Bank;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.IntFunction;
+
+/**
+ * An account ledger held off the heap in a memory-mapped file, for workloads with more accounts
+ * than fit comfortably in {@link Account} objects.
+ * <p>
+ * The ledger is a store of its own rather than a mode of {@link CentralBank}: it keeps balances,
+ * owners and account states, but no customer index, transaction history, journal or metrics.
+ * </p>
+ * <p>
+ * Each account is a fixed-width record of {@value #RECORD_SIZE} bytes at the position given by its
+ * account number: its balance in minor units, its owner's customer ID and its state, which holds
+ * the account type and whether the account is closed. The first record slot holds the file header.
+ * Every balance change and closure holds the lock of its accounts, as in {@link CentralBank}, so a
+ * deposit cannot land in an account being closed. The file is mapped in chunks of up to 1 GiB, so a
+ * ledger may hold up to {@value #MAX_CAPACITY} accounts.
+ * </p>
+ * <p>
+ * Nothing is allocated per account on the heap. {@link #getAccount(int)} returns a short-lived
+ * {@link LedgerAccount} view for code written against {@link Account}; the primitive methods taking
+ * account numbers allocate nothing at all. Every change is written straight to the mapped file, so it
+ * survives the process exiting; {@link #force()} makes it survive a power loss as well. A transfer
+ * first writes an undo record holding both balances before it, in a slot owned by the lock it holds,
+ * and clears the record once both balances are updated. Opening a ledger restores the balances of
+ * any transfer whose undo record is still set, so a crash between the debit and the credit cannot
+ * lose money.
+ * </p>
+ */
+public final class MappedLedger implements Transactable, Closeable {
+
+    /** The size of one account record, and of the header, in bytes. */
+    static final int RECORD_SIZE = 16;
+
+    /** The largest number of accounts a ledger can hold. */
+    public static final int MAX_CAPACITY = Integer.MAX_VALUE - 1;
+
+    /** The number of transfer undo records, one per account lock stripe. */
+    static final int UNDO_SLOTS = 1024;
+
+    /** The size of one transfer undo record in bytes. */
+    static final int UNDO_RECORD_SIZE = 32;
+
+    private static final int MAGIC = 0x43424C47;
+    private static final int VERSION = 2;
+
+    private static final int CHUNK_BITS = 26;
+    private static final int CHUNK_RECORDS = 1 << CHUNK_BITS;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int NEXT_ACCOUNT_OFFSET = 12;
+
+    private static final int BALANCE_OFFSET = 0;
+    private static final int OWNER_OFFSET = 8;
+    private static final int STATE_OFFSET = 12;
+
+    private static final int UNDO_PENDING_OFFSET = 0;
+    private static final int UNDO_FROM_OFFSET = 4;
+    private static final int UNDO_TO_OFFSET = 8;
+    private static final int UNDO_FROM_BALANCE_OFFSET = 16;
+    private static final int UNDO_TO_BALANCE_OFFSET = 24;
+
+    /** Set in the state of a closed account; the low bits hold the account type ordinal plus one. */
+    private static final int CLOSED = 1 << 16;
+    private static final int TYPE_MASK = 0xFFFF;
+
+    private static final AccountType[] TYPES = AccountType.values();
+
+    /** Atomic access to the long and int fields of the mapped records. */
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final MappedByteBuffer[] chunks;
+
+    /** The transfer undo records, after the account records. */
+    private final MappedByteBuffer undo;
+    private final int capacity;
+    private final IntFunction<Customer> owners;
+    private final StripedLock accountLocks;
+    private final IdempotencyCache idempotencyCache =
+            new IdempotencyCache(CentralBank.IDEMPOTENCY_CAPACITY, CentralBank.IDEMPOTENCY_TTL_MILLIS);
+
+    private MappedLedger(MappedByteBuffer[] chunks, MappedByteBuffer undo, int capacity, IntFunction<Customer> owners) {
+        this.chunks = chunks;
+        this.undo = undo;
+        this.capacity = capacity;
+        this.owners = owners;
+        this.accountLocks = new StripedLock(UNDO_SLOTS);
+    }
+
+    /**
+     * Opens the ledger in the given file, creating it with room for the given number of accounts
+     * if it does not exist. An existing ledger keeps the capacity it was created with.
+     *
+     * @param file The ledger file.
+     * @param capacity The number of accounts a new ledger can hold.
+     * @param owners Looks up customers by ID, for {@link LedgerAccount#getOwner()}; may return null.
+     * @return The open ledger.
+     * @throws IOException If the file cannot be created, read or mapped, or is not a ledger.
+     * @throws IllegalArgumentException If the capacity is not between 1 and {@value #MAX_CAPACITY}.
+     */
+    public static MappedLedger open(Path file, int capacity, IntFunction<Customer> owners) throws IOException {
+        if (capacity <= 0 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Capacity must be between 1 and " + MAX_CAPACITY + ": " + capacity);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            boolean created = channel.size() == 0;
+            if (!created) {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, RECORD_SIZE);
+                header.order(ByteOrder.nativeOrder());
+                if (header.getInt(MAGIC_OFFSET) != MAGIC || header.getInt(VERSION_OFFSET) != VERSION) {
+                    throw new IOException("Not a ledger file: " + file);
+                }
+                capacity = header.getInt(CAPACITY_OFFSET);
+                if (channel.size() < ((long) capacity + 1) * RECORD_SIZE + (long) UNDO_SLOTS * UNDO_RECORD_SIZE) {
+                    throw new IOException("Truncated ledger file: " + file);
+                }
+            }
+            long records = (long) capacity + 1;
+            MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((records + CHUNK_RECORDS - 1) >>> CHUNK_BITS)];
+            for (int i = 0; i < chunks.length; i++) {
+                long first = (long) i << CHUNK_BITS;
+                long size = Math.min(CHUNK_RECORDS, records - first) * RECORD_SIZE;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, first * RECORD_SIZE, size);
+            }
+            MappedByteBuffer undo = channel.map(FileChannel.MapMode.READ_WRITE, records * RECORD_SIZE,
+                    (long) UNDO_SLOTS * UNDO_RECORD_SIZE);
+            if (created) {
+                chunks[0].order(ByteOrder.nativeOrder())
+                        .putInt(MAGIC_OFFSET, MAGIC)
+                        .putInt(VERSION_OFFSET, VERSION)
+                        .putInt(CAPACITY_OFFSET, capacity)
+                        .putInt(NEXT_ACCOUNT_OFFSET, 0);
+            }
+            MappedLedger ledger = new MappedLedger(chunks, undo, capacity, owners);
+            ledger.undoInterruptedTransfers();
+            return ledger;
+        }
+    }
+
+    /**
+     * Returns the number of accounts the ledger can hold.
+     *
+     * @return The capacity.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of accounts ever opened in the ledger, including closed ones.
+     * Account numbers are allocated from 0 upwards, so this is also the next account number.
+     *
+     * @return The number of accounts opened.
+     */
+    public int getAccountCount() {
+        return (int) INT.getVolatile(chunks[0], NEXT_ACCOUNT_OFFSET);
+    }
+
+    /**
+     * Opens a new account with a zero balance.
+     *
+     * @param ownerId The customer ID of the account's owner.
+     * @param type The type of the account.
+     * @return The number of the new account.
+     * @throws IllegalStateException If the ledger is full.
+     */
+    public int openAccount(int ownerId, AccountType type) {
+        int accountNumber;
+        do {
+            accountNumber = getAccountCount();
+            if (accountNumber >= capacity) {
+                throw new IllegalStateException("The ledger is full: " + capacity + " accounts");
+            }
+        } while (!INT.compareAndSet(chunks[0], NEXT_ACCOUNT_OFFSET, accountNumber, accountNumber + 1));
+        MappedByteBuffer chunk = chunk(accountNumber);
+        int offset = offset(accountNumber);
+        LONG.setVolatile(chunk, offset + BALANCE_OFFSET, 0L);
+        INT.setVolatile(chunk, offset + OWNER_OFFSET, ownerId);
+        INT.setRelease(chunk, offset + STATE_OFFSET, type.ordinal() + 1);
+        return accountNumber;
+    }
+
+    /**
+     * Returns a view of an open account for code written against {@link Account}.
+     * The view reads and writes the ledger record; a new view is returned on every call.
+     *
+     * @param accountNumber The account number.
+     * @return The account, or null if no such account is open.
+     */
+    public LedgerAccount getAccount(int accountNumber) {
+        int state = state(accountNumber);
+        if (state == 0 || (state & CLOSED) != 0) {
+            return null;
+        }
+        return new LedgerAccount(this, accountNumber, TYPES[(state & TYPE_MASK) - 1]);
+    }
+
+    /**
+     * Closes an open account. Its record, including its balance, is kept.
+     *
+     * @param accountNumber The account number.
+     * @return true if the account was open and is now closed, false otherwise.
+     */
+    public boolean closeAccount(int accountNumber) {
+        if (state(accountNumber) == 0) {
+            return false;
+        }
+        accountLocks.lock(accountNumber);
+        try {
+            int state = state(accountNumber);
+            return (state & CLOSED) == 0
+                    && INT.compareAndSet(chunk(accountNumber), offset(accountNumber) + STATE_OFFSET, state, state | CLOSED);
+        } finally {
+            accountLocks.unlock(accountNumber);
+        }
+    }
+
+    /**
+     * Returns whether an account exists and has been closed.
+     *
+     * @param accountNumber The account number.
+     * @return true if the account is closed, false otherwise.
+     */
+    public boolean isClosed(int accountNumber) {
+        return (state(accountNumber) & CLOSED) != 0;
+    }
+
+    /**
+     * Returns the balance of an account in minor units.
+     *
+     * @param accountNumber The account number.
+     * @return The balance, or 0 if no such account has been opened.
+     */
+    public long getBalanceMinorUnits(int accountNumber) {
+        if (state(accountNumber) == 0) {
+            return 0;
+        }
+        return (long) LONG.getVolatile(chunk(accountNumber), offset(accountNumber) + BALANCE_OFFSET);
+    }
+
+    /**
+     * Returns the customer ID of an account's owner.
+     *
+     * @param accountNumber The account number.
+     * @return The owner's customer ID.
+     * @throws IllegalArgumentException If no such account has been opened.
+     */
+    public int getOwnerId(int accountNumber) {
+        if (state(accountNumber) == 0) {
+            throw new IllegalArgumentException("No such account: " + accountNumber);
+        }
+        return (int) INT.getVolatile(chunk(accountNumber), offset(accountNumber) + OWNER_OFFSET);
+    }
+
+    /**
+     * Deposits minor units into an open account.
+     *
+     * @param accountNumber The account number.
+     * @param amountMinorUnits The amount to deposit, in minor units.
+     * @return A {@link TransactionBatch} result code.
+     */
+    public byte depositMinorUnits(int accountNumber, long amountMinorUnits) {
+        if (amountMinorUnits <= 0) {
+            return TransactionBatch.INVALID_AMOUNT;
+        }
+        if (state(accountNumber) == 0) {
+            return TransactionBatch.ACCOUNT_NOT_FOUND;
+        }
+        accountLocks.lock(accountNumber);
+        try {
+            if (!isOpen(accountNumber)) {
+                return TransactionBatch.ACCOUNT_NOT_FOUND;
+            }
+            add(accountNumber, amountMinorUnits);
+            return TransactionBatch.OK;
+        } finally {
+            accountLocks.unlock(accountNumber);
+        }
+    }
+
+    /**
+     * Withdraws minor units from an open account if its balance covers them.
+     *
+     * @param accountNumber The account number.
+     * @param amountMinorUnits The amount to withdraw, in minor units.
+     * @return A {@link TransactionBatch} result code.
+     */
+    public byte withdrawMinorUnits(int accountNumber, long amountMinorUnits) {
+        if (amountMinorUnits <= 0) {
+            return TransactionBatch.INVALID_AMOUNT;
+        }
+        if (state(accountNumber) == 0) {
+            return TransactionBatch.ACCOUNT_NOT_FOUND;
+        }
+        accountLocks.lock(accountNumber);
+        try {
+            if (!isOpen(accountNumber)) {
+                return TransactionBatch.ACCOUNT_NOT_FOUND;
+            }
+            long balance = balance(accountNumber);
+            if (balance < amountMinorUnits) {
+                return TransactionBatch.INSUFFICIENT_FUNDS;
+            }
+            store(accountNumber, balance - amountMinorUnits);
+            return TransactionBatch.OK;
+        } finally {
+            accountLocks.unlock(accountNumber);
+        }
+    }
+
+    /**
+     * Transfers minor units between two open accounts if the source balance covers them,
+     * holding the locks of both accounts and an undo record until both balances are updated.
+     *
+     * @param fromAccountNumber The account to transfer from.
+     * @param toAccountNumber The account to transfer to.
+     * @param amountMinorUnits The amount to transfer, in minor units.
+     * @return A {@link TransactionBatch} result code.
+     */
+    public byte transferMinorUnits(int fromAccountNumber, int toAccountNumber, long amountMinorUnits) {
+        if (amountMinorUnits <= 0) {
+            return TransactionBatch.INVALID_AMOUNT;
+        }
+        if (state(fromAccountNumber) == 0 || state(toAccountNumber) == 0) {
+            return TransactionBatch.ACCOUNT_NOT_FOUND;
+        }
+        accountLocks.lockPair(fromAccountNumber, toAccountNumber);
+        try {
+            if (!isOpen(fromAccountNumber) || !isOpen(toAccountNumber)) {
+                return TransactionBatch.ACCOUNT_NOT_FOUND;
+            }
+            long fromBalance = balance(fromAccountNumber);
+            if (fromBalance < amountMinorUnits) {
+                return TransactionBatch.INSUFFICIENT_FUNDS;
+            }
+            int slot = Math.min(accountLocks.stripeFor(fromAccountNumber), accountLocks.stripeFor(toAccountNumber));
+            int undoOffset = slot * UNDO_RECORD_SIZE;
+            INT.set(undo, undoOffset + UNDO_FROM_OFFSET, fromAccountNumber);
+            INT.set(undo, undoOffset + UNDO_TO_OFFSET, toAccountNumber);
+            LONG.set(undo, undoOffset + UNDO_FROM_BALANCE_OFFSET, fromBalance);
+            LONG.set(undo, undoOffset + UNDO_TO_BALANCE_OFFSET, balance(toAccountNumber));
+            INT.setVolatile(undo, undoOffset + UNDO_PENDING_OFFSET, 1);
+            store(fromAccountNumber, fromBalance - amountMinorUnits);
+            add(toAccountNumber, amountMinorUnits);
+            INT.setVolatile(undo, undoOffset + UNDO_PENDING_OFFSET, 0);
+            return TransactionBatch.OK;
+        } finally {
+            accountLocks.unlockPair(fromAccountNumber, toAccountNumber);
+        }
+    }
+
+    /**
+     * Deposits a specified amount into a given account.
+     *
+     * @param account The account to deposit to.
+     * @param amount The amount to be deposited.
+     * @return true if deposit is successful, false otherwise.
+     */
+    @Override
+    public boolean deposit(Account account, double amount) {
+        return account != null && amount > 0
+                && depositMinorUnits(account.getAccountNumber(), Money.toMinorUnits(amount)) == TransactionBatch.OK;
+    }
+
+    /**
+     * Deposits a specified amount into a given account once per idempotency key.
+     * A retry carrying the key of a request seen in the last day returns the original outcome.
+     *
+     * @param account The account to deposit to.
+     * @param amount The amount to be deposited.
+     * @param idempotencyKey The key identifying the request, the same for every retry.
+     * @return true if the deposit, now or originally, is successful, false otherwise.
+     * @throws IllegalArgumentException If the key was used for a different request.
+     */
+    @Override
+    public boolean deposit(Account account, double amount, long idempotencyKey) {
+        return idempotencyCache.execute(idempotencyKey,
+                IdempotencyCache.fingerprint(TransactionBatch.DEPOSIT, account, account, amount),
+                () -> deposit(account, amount) ? CentralBank.APPLIED : 0) != 0;
+    }
+
+    /**
+     * Withdraws a specified amount from a given account.
+     *
+     * @param account The account to withdraw from.
+     * @param amount The amount to be withdrawn.
+     * @return true if withdrawal is successful, false otherwise.
+     */
+    @Override
+    public boolean withdraw(Account account, double amount) {
+        return account != null && amount > 0
+                && withdrawMinorUnits(account.getAccountNumber(), Money.toMinorUnits(amount)) == TransactionBatch.OK;
+    }
+
+    /**
+     * Withdraws a specified amount from a given account once per idempotency key.
+     * A retry carrying the key of a request seen in the last day returns the original outcome.
+     *
+     * @param account The account to withdraw from.
+     * @param amount The amount to be withdrawn.
+     * @param idempotencyKey The key identifying the request, the same for every retry.
+     * @return true if the withdrawal, now or originally, is successful, false otherwise.
+     * @throws IllegalArgumentException If the key was used for a different request.
+     */
+    @Override
+    public boolean withdraw(Account account, double amount, long idempotencyKey) {
+        return idempotencyCache.execute(idempotencyKey,
+                IdempotencyCache.fingerprint(TransactionBatch.WITHDRAW, account, account, amount),
+                () -> withdraw(account, amount) ? CentralBank.APPLIED : 0) != 0;
+    }
+
+    /**
+     * Transfers a specified amount from one account to another.
+     *
+     * @param fromAccount The account to transfer from.
+     * @param toAccount The account to transfer to.
+     * @param amount The amount to be transferred.
+     * @return true if transfer is successful, false otherwise.
+     */
+    @Override
+    public boolean transfer(Account fromAccount, Account toAccount, double amount) {
+        return fromAccount != null && toAccount != null && amount > 0
+                && transferMinorUnits(fromAccount.getAccountNumber(), toAccount.getAccountNumber(),
+                        Money.toMinorUnits(amount)) == TransactionBatch.OK;
+    }
+
+    /**
+     * Transfers a specified amount from one account to another once per idempotency key.
+     * A retry carrying the key of a request seen in the last day returns the original outcome.
+     *
+     * @param fromAccount The account to transfer from.
+     * @param toAccount The account to transfer to.
+     * @param amount The amount to be transferred.
+     * @param idempotencyKey The key identifying the request, the same for every retry.
+     * @return true if the transfer, now or originally, is successful, false otherwise.
+     * @throws IllegalArgumentException If the key was used for a different request.
+     */
+    @Override
+    public boolean transfer(Account fromAccount, Account toAccount, double amount, long idempotencyKey) {
+        return idempotencyCache.execute(idempotencyKey,
+                IdempotencyCache.fingerprint(TransactionBatch.TRANSFER, fromAccount, toAccount, amount),
+                () -> transfer(fromAccount, toAccount, amount) ? CentralBank.APPLIED : 0) != 0;
+    }
+
+    /**
+     * Applies a batch of deposits, withdrawals and transfers in the order they were added.
+     *
+     * @param batch The operations to apply.
+     * @return One {@link TransactionBatch} result code per operation, or null if the batch is null.
+     */
+    @Override
+    public byte[] process(TransactionBatch batch) {
+        if (batch == null) {
+            return null;
+        }
+        byte[] results = new byte[batch.size()];
+        for (int i = 0; i < results.length; i++) {
+            int from = batch.fromAccount(i);
+            long amountMinorUnits = batch.amountMinorUnits(i);
+            switch (batch.operation(i)) {
+            case TransactionBatch.DEPOSIT:
+                results[i] = depositMinorUnits(from, amountMinorUnits);
+                break;
+            case TransactionBatch.WITHDRAW:
+                results[i] = withdrawMinorUnits(from, amountMinorUnits);
+                break;
+            default:
+                results[i] = transferMinorUnits(from, batch.toAccount(i), amountMinorUnits);
+                break;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Writes every change made to the ledger through to the storage device.
+     */
+    public void force() {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+        undo.force();
+    }
+
+    /**
+     * Writes every change through to the storage device. The mapping itself is released once the
+     * ledger is no longer reachable; the ledger must not be used after it is closed.
+     */
+    @Override
+    public void close() {
+        force();
+    }
+
+    /**
+     * Returns the owner of an account, as found by the ledger's customer lookup.
+     */
+    Customer owner(int accountNumber) {
+        return owners.apply(getOwnerId(accountNumber));
+    }
+
+    /**
+     * Adds minor units to the balance of an account on behalf of its view, returning the new balance.
+     */
+    long credit(int accountNumber, long amountMinorUnits) {
+        accountLocks.lock(accountNumber);
+        try {
+            return add(accountNumber, amountMinorUnits);
+        } finally {
+            accountLocks.unlock(accountNumber);
+        }
+    }
+
+    /**
+     * Subtracts minor units from the balance of an account on behalf of its view if the balance covers them.
+     */
+    boolean tryDebit(int accountNumber, long amountMinorUnits) {
+        accountLocks.lock(accountNumber);
+        try {
+            long balance = balance(accountNumber);
+            if (balance < amountMinorUnits) {
+                return false;
+            }
+            store(accountNumber, balance - amountMinorUnits);
+            return true;
+        } finally {
+            accountLocks.unlock(accountNumber);
+        }
+    }
+
+    /**
+     * Replaces the balance of an account on behalf of its view.
+     */
+    void setBalance(int accountNumber, long balanceMinorUnits) {
+        accountLocks.lock(accountNumber);
+        try {
+            store(accountNumber, balanceMinorUnits);
+        } finally {
+            accountLocks.unlock(accountNumber);
+        }
+    }
+
+    /**
+     * Closes an account on behalf of its view, as {@link CentralBank} does while holding the account's lock.
+     */
+    void markClosed(int accountNumber) {
+        accountLocks.lock(accountNumber);
+        try {
+            INT.getAndBitwiseOr(chunk(accountNumber), offset(accountNumber) + STATE_OFFSET, CLOSED);
+        } finally {
+            accountLocks.unlock(accountNumber);
+        }
+    }
+
+    /**
+     * Restores both balances of every transfer that was interrupted before its undo record was
+     * cleared. Called when the ledger is opened, before it is shared.
+     */
+    private void undoInterruptedTransfers() {
+        for (int slot = 0; slot < UNDO_SLOTS; slot++) {
+            int undoOffset = slot * UNDO_RECORD_SIZE;
+            if ((int) INT.getVolatile(undo, undoOffset + UNDO_PENDING_OFFSET) != 0) {
+                store((int) INT.get(undo, undoOffset + UNDO_FROM_OFFSET),
+                        (long) LONG.get(undo, undoOffset + UNDO_FROM_BALANCE_OFFSET));
+                store((int) INT.get(undo, undoOffset + UNDO_TO_OFFSET),
+                        (long) LONG.get(undo, undoOffset + UNDO_TO_BALANCE_OFFSET));
+                INT.setVolatile(undo, undoOffset + UNDO_PENDING_OFFSET, 0);
+            }
+        }
+    }
+
+    /**
+     * Returns the balance of an account. Writers hold the account's lock.
+     */
+    private long balance(int accountNumber) {
+        return (long) LONG.getVolatile(chunk(accountNumber), offset(accountNumber) + BALANCE_OFFSET);
+    }
+
+    /**
+     * Replaces the balance of an account. Called while holding the account's lock.
+     */
+    private void store(int accountNumber, long balanceMinorUnits) {
+        LONG.setVolatile(chunk(accountNumber), offset(accountNumber) + BALANCE_OFFSET, balanceMinorUnits);
+    }
+
+    /**
+     * Adds minor units to the balance of an account, returning the new balance. Called while holding the account's lock.
+     */
+    private long add(int accountNumber, long amountMinorUnits) {
+        long balance = balance(accountNumber) + amountMinorUnits;
+        store(accountNumber, balance);
+        return balance;
+    }
+
+    private boolean isOpen(int accountNumber) {
+        int state = state(accountNumber);
+        return state != 0 && (state & CLOSED) == 0;
+    }
+
+    /**
+     * Returns the state of an account record, or 0 if the account number has not been allocated.
+     */
+    private int state(int accountNumber) {
+        if (accountNumber < 0 || accountNumber >= capacity) {
+            return 0;
+        }
+        return (int) INT.getAcquire(chunk(accountNumber), offset(accountNumber) + STATE_OFFSET);
+    }
+
+    private MappedByteBuffer chunk(int accountNumber) {
+        return chunks[(accountNumber + 1) >>> CHUNK_BITS];
+    }
+
+    private static int offset(int accountNumber) {
+        return ((accountNumber + 1) & (CHUNK_RECORDS - 1)) * RECORD_SIZE;
+    }
+}
@@ -0,0 +1,34 @@
+package Bank;
+
+/**
+ * Converts between amounts in major units (pounds), as used by the public banking API,
+ * and the fixed-point minor units (pence) in which balances are stored.
+ */
+public final class Money {
+
+    /** The number of minor units in one major unit. */
+    public static final long MINOR_UNITS_PER_MAJOR = 100;
+
+    private Money() {
+    }
+
+    /**
+     * Converts an amount in major units to minor units, rounding to the nearest minor unit.
+     *
+     * @param amount The amount in major units.
+     * @return The amount in minor units.
+     */
+    public static long toMinorUnits(double amount) {
+        return Math.round(amount * MINOR_UNITS_PER_MAJOR);
+    }
+
+    /**
+     * Converts an amount in minor units to major units.
+     *
+     * @param minorUnits The amount in minor units.
+     * @return The amount in major units.
+     */
+    public static double toMajorUnits(long minorUnits) {
+        return (double) minorUnits / MINOR_UNITS_PER_MAJOR;
+    }
+}
@@ -0,0 +1,119 @@
+package Bank;
+
+/**
+ * A point-in-time copy of the latency percentiles and outcome counts of one bank operation.
+ * Latencies are in nanoseconds; percentiles are accurate to within about 3%.
+ */
+public final class OperationStatistics {
+
+    private final long count;
+    private final long p50Nanos;
+    private final long p99Nanos;
+    private final long p999Nanos;
+    private final long maxNanos;
+    private final long succeeded;
+    private final long accountNotFound;
+    private final long insufficientFunds;
+    private final long invalidAmount;
+
+    OperationStatistics(long count, long p50Nanos, long p99Nanos, long p999Nanos, long maxNanos,
+            long succeeded, long accountNotFound, long insufficientFunds, long invalidAmount) {
+        this.count = count;
+        this.p50Nanos = p50Nanos;
+        this.p99Nanos = p99Nanos;
+        this.p999Nanos = p999Nanos;
+        this.maxNanos = maxNanos;
+        this.succeeded = succeeded;
+        this.accountNotFound = accountNotFound;
+        this.insufficientFunds = insufficientFunds;
+        this.invalidAmount = invalidAmount;
+    }
+
+    /**
+     * Returns the number of timed calls. Operations applied in batches are counted by outcome but not timed.
+     *
+     * @return The number of timed calls.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the median latency.
+     *
+     * @return The 50th percentile in nanoseconds.
+     */
+    public long getP50Nanos() {
+        return p50Nanos;
+    }
+
+    /**
+     * Returns the 99th percentile latency.
+     *
+     * @return The 99th percentile in nanoseconds.
+     */
+    public long getP99Nanos() {
+        return p99Nanos;
+    }
+
+    /**
+     * Returns the 99.9th percentile latency.
+     *
+     * @return The 99.9th percentile in nanoseconds.
+     */
+    public long getP999Nanos() {
+        return p999Nanos;
+    }
+
+    /**
+     * Returns the largest latency.
+     *
+     * @return The maximum in nanoseconds.
+     */
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * Returns the number of operations that succeeded.
+     *
+     * @return The number of successes.
+     */
+    public long getSucceeded() {
+        return succeeded;
+    }
+
+    /**
+     * Returns the number of operations that failed because an account or customer was not found or was closed.
+     *
+     * @return The number of such failures.
+     */
+    public long getAccountNotFound() {
+        return accountNotFound;
+    }
+
+    /**
+     * Returns the number of operations that failed because the balance did not cover the amount.
+     *
+     * @return The number of such failures.
+     */
+    public long getInsufficientFunds() {
+        return insufficientFunds;
+    }
+
+    /**
+     * Returns the number of operations that failed because the amount was not valid.
+     *
+     * @return The number of such failures.
+     */
+    public long getInvalidAmount() {
+        return invalidAmount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus ok=%d notFound=%d insufficientFunds=%d invalidAmount=%d",
+                count, p50Nanos / 1e3, p99Nanos / 1e3, p999Nanos / 1e3, maxNanos / 1e3,
+                succeeded, accountNotFound, insufficientFunds, invalidAmount);
+    }
+}
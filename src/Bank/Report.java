@@ -0,0 +1,167 @@
+package Bank;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for rendering reports straight into a caller's {@link Appendable} or {@link ByteBuffer}.
+ * <p>
+ * Numbers and amounts are written digit by digit and text is encoded to UTF-8 character by
+ * character, so rendering a statement creates no intermediate strings and its cost is bounded
+ * by the output rather than by garbage collection.
+ * </p>
+ */
+public final class Report {
+
+    /**
+     * Writes something into an {@link Appendable}.
+     */
+    interface Renderer {
+        void appendTo(Appendable out) throws IOException;
+    }
+
+    private Report() {
+    }
+
+    /**
+     * Appends the decimal digits of a number.
+     *
+     * @param out The destination.
+     * @param value The number.
+     * @return The destination.
+     * @throws IOException If the destination cannot be written.
+     */
+    public static Appendable appendNumber(Appendable out, long value) throws IOException {
+        if (value < 0) {
+            out.append('-');
+            if (value == Long.MIN_VALUE) {
+                return out.append("9223372036854775808");
+            }
+            value = -value;
+        }
+        long divisor = 1;
+        while (divisor <= value / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.append((char) ('0' + value / divisor % 10));
+        }
+        return out;
+    }
+
+    /**
+     * Appends an amount given in minor units as major units, with one decimal place when the
+     * pence are a multiple of ten and two otherwise (100.0, 60.5, 60.05).
+     *
+     * @param out The destination.
+     * @param minorUnits The amount in minor units.
+     * @return The destination.
+     * @throws IOException If the destination cannot be written.
+     */
+    public static Appendable appendAmount(Appendable out, long minorUnits) throws IOException {
+        long major = minorUnits / Money.MINOR_UNITS_PER_MAJOR;
+        long minor = Math.abs(minorUnits % Money.MINOR_UNITS_PER_MAJOR);
+        if (minorUnits < 0) {
+            out.append('-');
+            major = -major;
+        }
+        appendNumber(out, major).append('.').append((char) ('0' + minor / 10));
+        if (minor % 10 != 0) {
+            out.append((char) ('0' + minor % 10));
+        }
+        return out;
+    }
+
+    /**
+     * Returns an {@link Appendable} that encodes what is appended to it as UTF-8 into a buffer.
+     * Appending throws {@link java.nio.BufferOverflowException} once the buffer is full.
+     *
+     * @param buffer The destination buffer.
+     * @return An appendable writing into the buffer.
+     */
+    public static Appendable utf8(ByteBuffer buffer) {
+        return new Utf8Appendable(buffer);
+    }
+
+    /**
+     * Renders into a new string, for toString methods.
+     */
+    static String render(Renderer renderer) {
+        StringBuilder out = new StringBuilder(128);
+        try {
+            renderer.appendTo(out);
+        } catch (IOException e) {
+            // A StringBuilder never throws.
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Renders into a buffer as UTF-8.
+     */
+    static ByteBuffer render(Renderer renderer, ByteBuffer buffer) {
+        try {
+            renderer.appendTo(utf8(buffer));
+        } catch (IOException e) {
+            // Writing into a buffer only throws BufferOverflowException.
+            throw new UncheckedIOException(e);
+        }
+        return buffer;
+    }
+
+    private static final class Utf8Appendable implements Appendable {
+        private final ByteBuffer buffer;
+        private char highSurrogate;
+
+        Utf8Appendable(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public Appendable append(CharSequence text) {
+            return text == null ? append("null", 0, 4) : append(text, 0, text.length());
+        }
+
+        @Override
+        public Appendable append(CharSequence text, int start, int end) {
+            if (text == null) {
+                return append("null", start, end);
+            }
+            for (int i = start; i < end; i++) {
+                append(text.charAt(i));
+            }
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) {
+            if (highSurrogate != 0) {
+                char high = highSurrogate;
+                highSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int codePoint = Character.toCodePoint(high, c);
+                    buffer.put((byte) (0xF0 | codePoint >>> 18))
+                            .put((byte) (0x80 | codePoint >>> 12 & 0x3F))
+                            .put((byte) (0x80 | codePoint >>> 6 & 0x3F))
+                            .put((byte) (0x80 | codePoint & 0x3F));
+                    return this;
+                }
+                buffer.put((byte) '?');
+            }
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | c >>> 6)).put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c)) {
+                highSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | c >>> 12)).put((byte) (0x80 | c >>> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+            }
+            return this;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package Bank;
 
+import java.util.Date;
 import java.util.List;
 
 /**
@@ -12,5 +13,26 @@ public interface Searchable {
 
    /** Fetches transaction history for the given customer. */
    List<TransactionLog> getTransactionHistory(Customer customer);
+
+   /** Fetches the page of the customer's transactions, in time order, following the resume token. */
+   TransactionPage getTransactionHistory(Customer customer, String resumeToken, int pageSize);
+
+   /** Fetches the customer's transactions made at or after from and before to, in time order; neither may be null. */
+   List<TransactionLog> getTransactionHistory(Customer customer, Date from, Date to);
+
+   /** Reconstructs the balance of the account as of the given time from its transaction history. */
+   double getBalanceAsOf(Account account, Date when);
+
+   /** Finds up to limit customers whose name starts with the prefix, ignoring case, in name order. */
+   List<Customer> findCustomersByNamePrefix(String prefix, int limit);
+
+   /** Finds up to limit customers whose address equals the given address, ignoring case. */
+   List<Customer> findCustomersByAddress(String address, int limit);
+
+   /** Finds up to limit customers whose address starts with the prefix, ignoring case, in address order. */
+   List<Customer> findCustomersByAddressPrefix(String prefix, int limit);
+
+   /** Finds up to limit customers born at or after from and before to, oldest first. */
+   List<Customer> findCustomersBornBetween(Date from, Date to, int limit);
 }
 
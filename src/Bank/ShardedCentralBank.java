@@ -0,0 +1,610 @@
+package Bank;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * A bank whose accounts are partitioned by account number across independent
+ * {@link CentralBank} shards, each with its own state and its own executor thread.
+ * <p>
+ * Deposits, withdrawals, account creation and closure run on the executor of the shard owning
+ * the account, so operations on different shards proceed in parallel and never contend.
+ * A transfer within one shard is an ordinary transfer on that shard. A transfer between shards
+ * runs in two phases: the amount is first reserved by debiting the source account on its shard,
+ * then committed by crediting the destination account on its shard; if the destination cannot
+ * be credited, the reservation is refunded to the source. Each phase takes the shard's account
+ * locks and completes before the next one starts, and no shard thread ever waits for another.
+ * Every reservation ends in exactly one credit or refund, so while the process runs money is
+ * neither created nor lost; a refund that cannot be applied fails the transfer with an
+ * exception rather than going unnoticed.
+ * </p>
+ * <p>
+ * The shards are held in memory only. Between the phases the reserved amount is in neither
+ * account and is recorded nowhere but in the pending transfer, so the sharded bank makes no
+ * promise across a crash.
+ * </p>
+ * <p>
+ * Customers are registered with every shard, and a customer's accounts are kept in one list on
+ * the customer whichever shard owns them, so summaries and histories span all shards.
+ * </p>
+ */
+public class ShardedCentralBank implements Transactable, Searchable, Closeable {
+
+    /** The outcome of phase two of a transfer whose destination could not be credited. */
+    private static final byte REFUND = -1;
+
+    private final CentralBank[] shards;
+    private final ExecutorService[] executors;
+
+    /** The outcomes of recent requests carrying an idempotency key, across every shard. */
+    private final IdempotencyCache idempotencyCache =
+            new IdempotencyCache(CentralBank.IDEMPOTENCY_CAPACITY, CentralBank.IDEMPOTENCY_TTL_MILLIS);
+
+    /**
+     * Initializes a sharded bank with the given number of empty shards.
+     *
+     * @param shardCount The number of shards.
+     */
+    public ShardedCentralBank(int shardCount) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("At least one shard is required: " + shardCount);
+        }
+        this.shards = new CentralBank[shardCount];
+        this.executors = new ExecutorService[shardCount];
+        int concurrencyLevel = Math.max(16, Runtime.getRuntime().availableProcessors() * 16 / shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new CentralBank(concurrencyLevel);
+            String name = "bank-shard-" + i;
+            executors[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Returns the number of shards.
+     *
+     * @return The shard count.
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Returns the index of the shard owning the given account number.
+     *
+     * @param accountNumber The account number.
+     * @return The shard index.
+     */
+    public int shardFor(int accountNumber) {
+        return Math.floorMod(accountNumber, shards.length);
+    }
+
+    /**
+     * Registers a customer with every shard.
+     *
+     * @param customer The customer to be added.
+     * @return true if customer is added successfully, false otherwise (e.g., customer already exists).
+     */
+    public boolean addCustomer(Customer customer) {
+        if (customer == null) {
+            return false;
+        }
+        boolean added = shards[0].addCustomer(customer);
+        if (added) {
+            for (int i = 1; i < shards.length; i++) {
+                shards[i].addCustomer(customer);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Removes a customer from every shard.
+     *
+     * @param customer The customer to be removed.
+     * @return true if customer is removed successfully, false otherwise.
+     */
+    public boolean removeCustomer(Customer customer) {
+        if (customer == null) {
+            return false;
+        }
+        boolean removed = shards[0].removeCustomer(customer);
+        for (int i = 1; i < shards.length; i++) {
+            shards[i].removeCustomer(customer);
+        }
+        return removed;
+    }
+
+    /**
+     * Retrieves a customer using their ID.
+     *
+     * @param customerID The ID of the customer.
+     * @return Customer if found, null otherwise.
+     */
+    public Customer getCustomerByID(int customerID) {
+        return shards[0].getCustomerByID(customerID);
+    }
+
+    /**
+     * Retrieves an account from the shard owning its number.
+     *
+     * @param accountNumber The account number.
+     * @return Account if found, null otherwise.
+     */
+    public Account getAccountbyAccountID(int accountNumber) {
+        return shards[shardFor(accountNumber)].getAccountbyAccountID(accountNumber);
+    }
+
+    /**
+     * Returns the sum of the balances of the open accounts of a given type across every shard.
+     *
+     * @param accountType The account type.
+     * @return The total balance of accounts of that type in minor units.
+     */
+    public long getTotalDepositsMinorUnits(AccountType accountType) {
+        long total = 0;
+        for (CentralBank shard : shards) {
+            total += shard.getTotalDepositsMinorUnits(accountType);
+        }
+        return total;
+    }
+
+    /**
+     * Returns the sum of the balances of all open accounts across every shard.
+     *
+     * @return The total balance in minor units.
+     */
+    public long getTotalDepositsMinorUnits() {
+        long total = 0;
+        for (CentralBank shard : shards) {
+            total += shard.getTotalDepositsMinorUnits();
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of open accounts across every shard.
+     *
+     * @return The number of accounts.
+     */
+    public int getAccountCount() {
+        int count = 0;
+        for (CentralBank shard : shards) {
+            count += shard.getAccountCount();
+        }
+        return count;
+    }
+
+    /**
+     * Creates a new account for a given customer on the shard owning its number.
+     *
+     * @param customer The customer for whom the account should be created.
+     * @param accountType The type of account to be created.
+     * @return The new account, or null if account creation failed.
+     */
+    public Account createAccount(Customer customer, AccountType accountType) {
+        if (customer == null || accountType == null) {
+            return null;
+        }
+        Account account = new Account(customer, accountType);
+        CentralBank shard = shards[shardFor(account.getAccountNumber())];
+        return onShard(account.getAccountNumber(), () -> shard.commit(shard.applyOpenAccount(account))) ? account : null;
+    }
+
+    /**
+     * Closes an account on the shard owning it.
+     *
+     * @param customer The customer who owns the account.
+     * @param account The account to be closed.
+     * @return true if account closure is successful, false otherwise.
+     */
+    public boolean closeAccount(Customer customer, Account account) {
+        if (customer == null || account == null) {
+            return false;
+        }
+        int accountNumber = account.getAccountNumber();
+        CentralBank shard = shards[shardFor(accountNumber)];
+        return onShard(accountNumber, () -> shard.closeAccount(customer, account));
+    }
+
+    /**
+     * Deposits a specified amount into a given account on the shard owning it.
+     *
+     * @param account The account to deposit to.
+     * @param amount The amount to be deposited.
+     * @return true if deposit is successful, false otherwise.
+     */
+    @Override
+    public boolean deposit(Account account, double amount) {
+        if (account == null) {
+            return false;
+        }
+        int accountNumber = account.getAccountNumber();
+        CentralBank shard = shards[shardFor(accountNumber)];
+        return onShard(accountNumber, () -> shard.deposit(account, amount));
+    }
+
+    /**
+     * Deposits a specified amount into a given account once per idempotency key.
+     * A retry carrying the key of a request seen in the last day returns the original outcome.
+     *
+     * @param account The account to deposit to.
+     * @param amount The amount to be deposited.
+     * @param idempotencyKey The key identifying the request, the same for every retry.
+     * @return true if the deposit, now or originally, is successful, false otherwise.
+     * @throws IllegalArgumentException If the key was used for a different request.
+     */
+    @Override
+    public boolean deposit(Account account, double amount, long idempotencyKey) {
+        return once(idempotencyKey, IdempotencyCache.fingerprint(TransactionBatch.DEPOSIT, account, account, amount),
+                () -> deposit(account, amount));
+    }
+
+    /**
+     * Withdraws a specified amount from a given account on the shard owning it.
+     *
+     * @param account The account to withdraw from.
+     * @param amount The amount to be withdrawn.
+     * @return true if withdrawal is successful, false otherwise.
+     */
+    @Override
+    public boolean withdraw(Account account, double amount) {
+        if (account == null) {
+            return false;
+        }
+        int accountNumber = account.getAccountNumber();
+        CentralBank shard = shards[shardFor(accountNumber)];
+        return onShard(accountNumber, () -> shard.withdraw(account, amount));
+    }
+
+    /**
+     * Withdraws a specified amount from a given account once per idempotency key.
+     * A retry carrying the key of a request seen in the last day returns the original outcome.
+     *
+     * @param account The account to withdraw from.
+     * @param amount The amount to be withdrawn.
+     * @param idempotencyKey The key identifying the request, the same for every retry.
+     * @return true if the withdrawal, now or originally, is successful, false otherwise.
+     * @throws IllegalArgumentException If the key was used for a different request.
+     */
+    @Override
+    public boolean withdraw(Account account, double amount, long idempotencyKey) {
+        return once(idempotencyKey, IdempotencyCache.fingerprint(TransactionBatch.WITHDRAW, account, account, amount),
+                () -> withdraw(account, amount));
+    }
+
+    /**
+     * Transfers a specified amount from one account to another, in two phases if the accounts
+     * are owned by different shards.
+     *
+     * @param fromAccount The account to transfer from.
+     * @param toAccount The account to transfer to.
+     * @param amount The amount to be transferred.
+     * @return true if transfer is successful, false otherwise.
+     * @throws java.util.concurrent.CompletionException Wrapping an {@link IllegalStateException} if
+     *         the destination could not be credited and the reservation could not be refunded either.
+     */
+    @Override
+    public boolean transfer(Account fromAccount, Account toAccount, double amount) {
+        if (fromAccount == null || toAccount == null || amount <= 0) {
+            return false;
+        }
+        return transfer(fromAccount.getAccountNumber(), toAccount.getAccountNumber(), Money.toMinorUnits(amount))
+                .join() == TransactionBatch.OK;
+    }
+
+    /**
+     * Transfers a specified amount from one account to another once per idempotency key.
+     * A retry carrying the key of a request seen in the last day returns the original outcome.
+     *
+     * @param fromAccount The account to transfer from.
+     * @param toAccount The account to transfer to.
+     * @param amount The amount to be transferred.
+     * @param idempotencyKey The key identifying the request, the same for every retry.
+     * @return true if the transfer, now or originally, is successful, false otherwise.
+     * @throws IllegalArgumentException If the key was used for a different request.
+     */
+    @Override
+    public boolean transfer(Account fromAccount, Account toAccount, double amount, long idempotencyKey) {
+        return once(idempotencyKey, IdempotencyCache.fingerprint(TransactionBatch.TRANSFER, fromAccount, toAccount, amount),
+                () -> transfer(fromAccount, toAccount, amount));
+    }
+
+    /**
+     * Applies a batch of operations. Consecutive operations confined to single shards are split
+     * into per-shard batches applied in parallel, and each transfer between shards is applied on
+     * its own, so operations on any one account keep their order.
+     *
+     * @param batch The operations to apply.
+     * @return One {@link TransactionBatch} result code per operation, or null if the batch is null.
+     */
+    @Override
+    public byte[] process(TransactionBatch batch) {
+        if (batch == null) {
+            return null;
+        }
+        int size = batch.size();
+        byte[] results = new byte[size];
+        TransactionBatch[] shardBatches = new TransactionBatch[shards.length];
+        int[][] shardIndexes = new int[shards.length][];
+        int[] shardSizes = new int[shards.length];
+        int start = 0;
+        while (start < size) {
+            int end = start;
+            while (end < size && shardFor(batch.fromAccount(end)) == shardFor(batch.toAccount(end))) {
+                int shard = shardFor(batch.fromAccount(end));
+                if (shardBatches[shard] == null) {
+                    shardBatches[shard] = new TransactionBatch();
+                    shardIndexes[shard] = new int[64];
+                }
+                if (shardSizes[shard] == shardIndexes[shard].length) {
+                    shardIndexes[shard] = Arrays.copyOf(shardIndexes[shard], shardSizes[shard] << 1);
+                }
+                shardBatches[shard].add(batch.operation(end), batch.fromAccount(end), batch.toAccount(end),
+                        batch.amountMinorUnits(end));
+                shardIndexes[shard][shardSizes[shard]++] = end;
+                end++;
+            }
+            List<CompletableFuture<Void>> pending = new ArrayList<>();
+            for (int shard = 0; shard < shards.length; shard++) {
+                if (shardSizes[shard] == 0) {
+                    continue;
+                }
+                TransactionBatch shardBatch = shardBatches[shard];
+                int[] indexes = shardIndexes[shard];
+                CentralBank bank = shards[shard];
+                pending.add(CompletableFuture.supplyAsync(() -> bank.process(shardBatch), executors[shard])
+                        .thenAccept(shardResults -> {
+                            for (int i = 0; i < shardResults.length; i++) {
+                                results[indexes[i]] = shardResults[i];
+                            }
+                        }));
+            }
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+            for (int shard = 0; shard < shards.length; shard++) {
+                if (shardBatches[shard] != null) {
+                    shardBatches[shard].clear();
+                    shardSizes[shard] = 0;
+                }
+            }
+            if (end < size) {
+                results[end] = transfer(batch.fromAccount(end), batch.toAccount(end), batch.amountMinorUnits(end)).join();
+                end++;
+            }
+            start = end;
+        }
+        return results;
+    }
+
+    /**
+     * Retrieves the transaction history for a given customer across all their accounts on every shard.
+     *
+     * @param customer The customer whose transaction history should be retrieved.
+     * @return A list of transaction logs for the customer.
+     */
+    @Override
+    public List<TransactionLog> getTransactionHistory(Customer customer) {
+        return shards[0].getTransactionHistory(customer);
+    }
+
+    /**
+     * Retrieves one page of a customer's transaction history across every shard.
+     *
+     * @param customer The customer whose transaction history should be retrieved.
+     * @param resumeToken The resume token, which records where each account's history was left off.
+     * @param pageSize The maximum number of transactions to return.
+     * @return The page of transactions, or null if the customer is null.
+     */
+    @Override
+    public TransactionPage getTransactionHistory(Customer customer, String resumeToken, int pageSize) {
+        return shards[0].getTransactionHistory(customer, resumeToken, pageSize);
+    }
+
+    /**
+     * Retrieves a customer's transactions made at or after {@code from} and before {@code to}
+     * across their accounts on every shard, in time order.
+     *
+     * @param customer The customer whose transaction history should be retrieved.
+     * @param from The start of the range, inclusive.
+     * @param to The end of the range, exclusive.
+     * @return A list of transaction logs, or null if the customer is null.
+     * @throws IllegalArgumentException If either end of the range is null.
+     */
+    @Override
+    public List<TransactionLog> getTransactionHistory(Customer customer, Date from, Date to) {
+        return shards[0].getTransactionHistory(customer, from, to);
+    }
+
+    /**
+     * Reconstructs the balance of an account as of a given time from its transaction history.
+     *
+     * @param account The account.
+     * @param when The time to reconstruct the balance at.
+     * @return The balance at that time.
+     * @throws IllegalArgumentException If the account or time is null.
+     */
+    @Override
+    public double getBalanceAsOf(Account account, Date when) {
+        return shards[0].getBalanceAsOf(account, when);
+    }
+
+    /**
+     * Finds customers whose name starts with the given prefix, ignoring case.
+     *
+     * @param prefix The start of the name.
+     * @param limit The maximum number of customers to return.
+     * @return The matching customers in name order.
+     */
+    @Override
+    public List<Customer> findCustomersByNamePrefix(String prefix, int limit) {
+        return shards[0].findCustomersByNamePrefix(prefix, limit);
+    }
+
+    /**
+     * Finds customers whose address equals the given address, ignoring case.
+     *
+     * @param address The address.
+     * @param limit The maximum number of customers to return.
+     * @return The matching customers.
+     */
+    @Override
+    public List<Customer> findCustomersByAddress(String address, int limit) {
+        return shards[0].findCustomersByAddress(address, limit);
+    }
+
+    /**
+     * Finds customers whose address starts with the given prefix, ignoring case.
+     *
+     * @param prefix The start of the address.
+     * @param limit The maximum number of customers to return.
+     * @return The matching customers in address order.
+     */
+    @Override
+    public List<Customer> findCustomersByAddressPrefix(String prefix, int limit) {
+        return shards[0].findCustomersByAddressPrefix(prefix, limit);
+    }
+
+    /**
+     * Finds customers born at or after {@code from} and before {@code to}.
+     *
+     * @param from The earliest date of birth, inclusive.
+     * @param to The latest date of birth, exclusive.
+     * @param limit The maximum number of customers to return.
+     * @return The matching customers, oldest first.
+     */
+    @Override
+    public List<Customer> findCustomersBornBetween(Date from, Date to, int limit) {
+        return shards[0].findCustomersBornBetween(from, to, limit);
+    }
+
+    /**
+     * Generates a summary for a given customer covering their accounts on every shard.
+     *
+     * @param customer The customer whose summary should be generated.
+     * @return A formatted string representation of the customer's details and accounts.
+     */
+    @Override
+    public String getCustomerSummary(Customer customer) {
+        return shards[0].getCustomerSummary(customer);
+    }
+
+    /**
+     * Stops every shard's executor after the operations already submitted to it.
+     *
+     * @throws IOException If a shard cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        for (ExecutorService executor : executors) {
+            executor.shutdown();
+        }
+        try {
+            for (ExecutorService executor : executors) {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (CentralBank shard : shards) {
+            shard.close();
+        }
+    }
+
+    /**
+     * Transfers between two accounts, returning a {@link TransactionBatch} result code.
+     */
+    private CompletableFuture<Byte> transfer(int fromNumber, int toNumber, long amountMinorUnits) {
+        if (amountMinorUnits <= 0) {
+            return CompletableFuture.completedFuture(TransactionBatch.INVALID_AMOUNT);
+        }
+        int fromShard = shardFor(fromNumber);
+        int toShard = shardFor(toNumber);
+        if (fromShard == toShard) {
+            TransactionBatch single = new TransactionBatch(1);
+            single.add(TransactionBatch.TRANSFER, fromNumber, toNumber, amountMinorUnits);
+            CentralBank bank = shards[fromShard];
+            return CompletableFuture.supplyAsync(() -> bank.process(single)[0], executors[fromShard]);
+        }
+        Account from = shards[fromShard].getAccountbyAccountID(fromNumber);
+        Account to = shards[toShard].getAccountbyAccountID(toNumber);
+        if (from == null || to == null) {
+            return CompletableFuture.completedFuture(TransactionBatch.ACCOUNT_NOT_FOUND);
+        }
+        long start = System.nanoTime();
+        long timestamp = System.currentTimeMillis();
+        CentralBank source = shards[fromShard];
+        CentralBank destination = shards[toShard];
+        return CompletableFuture.supplyAsync(() -> reserve(source, from, toNumber, amountMinorUnits, timestamp),
+                        executors[fromShard])
+                .thenApplyAsync(reserved -> reserved == TransactionBatch.OK
+                        ? commit(destination, to, fromNumber, amountMinorUnits, timestamp) : reserved, executors[toShard])
+                .thenApplyAsync(result -> {
+                    byte outcome = result == REFUND ? refund(source, from, toNumber, amountMinorUnits, timestamp) : result;
+                    source.getMetrics().record(BankMetrics.Operation.TRANSFER, start, outcome);
+                    return outcome;
+                }, executors[fromShard]);
+    }
+
+    /**
+     * Phase one of a transfer between shards: debits the source account through its shard,
+     * which journals the debit, and waits for the debit to be durable before the credit is made.
+     */
+    private static byte reserve(CentralBank shard, Account from, int toNumber, long amountMinorUnits, long timestamp) {
+        if (shard.commit(shard.applyTransferOut(from, toNumber, amountMinorUnits, timestamp))) {
+            return TransactionBatch.OK;
+        }
+        return from.isClosed() ? TransactionBatch.ACCOUNT_NOT_FOUND : TransactionBatch.INSUFFICIENT_FUNDS;
+    }
+
+    /**
+     * Phase two of a transfer between shards: credits the destination account through its shard,
+     * or asks for the reservation to be refunded if the account has been closed.
+     */
+    private static byte commit(CentralBank shard, Account to, int fromNumber, long amountMinorUnits, long timestamp) {
+        return shard.commit(shard.applyTransferIn(to, fromNumber, amountMinorUnits, timestamp, false))
+                ? TransactionBatch.OK : REFUND;
+    }
+
+    /**
+     * Returns a reservation to the source account through its shard. The account keeps the funds
+     * even if it was closed after the reservation, as it would had the transfer never started.
+     * The refund is recorded as an incoming transfer, so the source's history still adds up to its balance.
+     *
+     * @throws IllegalStateException If the refund was not applied, which leaves the reserved amount
+     *         in neither account.
+     */
+    private static byte refund(CentralBank shard, Account from, int toNumber, long amountMinorUnits, long timestamp) {
+        if (!shard.commit(shard.applyTransferIn(from, toNumber, amountMinorUnits, timestamp, true))) {
+            throw new IllegalStateException("Could not refund " + amountMinorUnits + " minor units reserved from account "
+                    + from.getAccountNumber() + " for account " + toNumber);
+        }
+        return TransactionBatch.ACCOUNT_NOT_FOUND;
+    }
+
+    /**
+     * Runs an operation unless a request with the same idempotency key has been seen, returning
+     * the outcome of the operation or of the original request.
+     */
+    private boolean once(long idempotencyKey, long fingerprint, Supplier<Boolean> operation) {
+        return idempotencyCache.execute(idempotencyKey, fingerprint, () -> operation.get() ? CentralBank.APPLIED : 0) != 0;
+    }
+
+    /**
+     * Returns the result of a task run on the executor of the shard owning the given account.
+     */
+    private boolean onShard(int accountNumber, Supplier<Boolean> task) {
+        return CompletableFuture.supplyAsync(task, executors[shardFor(accountNumber)]).join();
+    }
+}
@@ -0,0 +1,378 @@
+package Bank;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A binary checkpoint of every customer, account, balance and transaction of a {@link CentralBank},
+ * together with the journal offset it is consistent with.
+ * <p>
+ * The state is captured in memory while the journal is quiesced, then encoded to a temporary
+ * file that atomically replaces the previous snapshot. On startup the snapshot is read through
+ * memory-mapped windows and only the journal records after its offset are replayed.
+ * </p>
+ * <p>
+ * Transactions sealed into the bank's {@link HistoryArchive} are not copied: the snapshot records
+ * the archive's directory and each account's segment descriptors, checkpoints and balance after
+ * the sealed rows, and a loaded bank reads the segments from the same files.
+ * </p>
+ */
+final class Snapshot {
+
+    private static final int MAGIC = 0x43425348;
+    private static final int VERSION = 3;
+
+    /** The previous version, without archived history, which can still be loaded. */
+    private static final int VERSION_WITHOUT_ARCHIVE = 2;
+    private static final int WRITE_BUFFER_SIZE = 4 << 20;
+    private static final long MAP_WINDOW = 256L << 20;
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    /** The encoded size of a transaction: ID, amount, type and timestamp. */
+    private static final int ROW_SIZE = 8 + 8 + 1 + 8;
+
+    /** The encoded size of a segment descriptor after its file name: offset, length, rows and bounds. */
+    private static final int SEGMENT_SIZE = 8 + 4 + 4 + 4 + 8 + 8 + 8 + 8;
+
+    private final IntIndex<Customer> customers = new IntIndex<>();
+    private final List<Customer> customerOrder = new ArrayList<>();
+    private boolean[] registered = new boolean[64];
+    private Account[] accounts = new Account[64];
+    private long[] balances = new long[64];
+    private int[] historySizes = new int[64];
+    private TransactionColumns.Sealed[] sealed = new TransactionColumns.Sealed[64];
+    private int accountCount;
+    private Path archiveDirectory;
+
+    /**
+     * Records the directory of the bank's history archive, whose segments captured accounts may refer to.
+     */
+    void setArchiveDirectory(Path directory) {
+        archiveDirectory = directory.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Captures a customer registered with the bank. Must be called while the journal is quiesced,
+     * before any account is captured.
+     */
+    void addCustomer(Customer customer) {
+        captureCustomer(customer, true);
+    }
+
+    /**
+     * Captures an open account, its balance, the length of its history and its sealed rows, along
+     * with its owner. Must be called while the journal is quiesced.
+     */
+    void addAccount(Account account) {
+        if (accountCount == accounts.length) {
+            int capacity = accountCount << 1;
+            accounts = Arrays.copyOf(accounts, capacity);
+            balances = Arrays.copyOf(balances, capacity);
+            historySizes = Arrays.copyOf(historySizes, capacity);
+            sealed = Arrays.copyOf(sealed, capacity);
+        }
+        accounts[accountCount] = account;
+        balances[accountCount] = account.getBalanceMinorUnits();
+        TransactionColumns history = account.getTransactionColumns();
+        synchronized (history) {
+            historySizes[accountCount] = history.size();
+            sealed[accountCount] = history.sealedState();
+        }
+        accountCount++;
+        captureCustomer(account.getOwner(), false);
+    }
+
+    private void captureCustomer(Customer customer, boolean isRegistered) {
+        if (customers.putIfAbsent(customer.getCustomerId(), customer)) {
+            if (customerOrder.size() == registered.length) {
+                registered = Arrays.copyOf(registered, registered.length << 1);
+            }
+            registered[customerOrder.size()] = isRegistered;
+            customerOrder.add(customer);
+        }
+    }
+
+    /**
+     * Encodes the captured state to the given file, replacing it atomically.
+     *
+     * @param file The snapshot file.
+     * @param journalOffset The journal offset the captured state is consistent with.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    void write(Path file, long journalOffset) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Output out = new Output(channel);
+            byte[] directory = encode(archiveDirectory == null ? null : archiveDirectory.toString());
+            out.ensure(4 + 4 + 8 + 4 + 4 + length(directory));
+            out.buffer.putInt(MAGIC).putInt(VERSION).putLong(journalOffset)
+                    .putInt(customerOrder.size()).putInt(accountCount);
+            putBytes(out.buffer, directory);
+            for (int i = 0; i < customerOrder.size(); i++) {
+                Customer customer = customerOrder.get(i);
+                byte[] name = encode(customer.getName());
+                byte[] address = encode(customer.getAddress());
+                out.ensure(4 + 1 + 8 + 8 + length(name) + length(address));
+                Date dateOfBirth = customer.getDateOfBirth();
+                out.buffer.putInt(customer.getCustomerId()).put((byte) (registered[i] ? 1 : 0))
+                        .putLong(dateOfBirth == null ? NO_DATE : dateOfBirth.getTime());
+                putBytes(out.buffer, name);
+                putBytes(out.buffer, address);
+            }
+            for (int i = 0; i < accountCount; i++) {
+                Account account = accounts[i];
+                out.ensure(4 + 4 + 1 + 8 + 4);
+                out.buffer.putInt(account.getAccountNumber()).putInt(account.getOwner().getCustomerId())
+                        .put((byte) account.getAccountType().ordinal()).putLong(balances[i]).putInt(historySizes[i]);
+                int sealedRows = writeSealed(out, sealed[i]);
+                account.getTransactionColumns().visit(sealedRows, historySizes[i], out);
+            }
+            if (out.failure != null) {
+                throw out.failure;
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restores a snapshot into a freshly constructed bank, if the snapshot file exists.
+     *
+     * @param file The snapshot file.
+     * @param bank The bank to restore into.
+     * @param customers Receives every restored customer, including removed account owners.
+     * @return The journal offset from which replay must continue, or 0 if there is no snapshot.
+     * @throws IOException If the snapshot cannot be read or is not a snapshot.
+     */
+    static long load(Path file, CentralBank bank, IntIndex<Customer> customers) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Input in = new Input(channel);
+            ByteBuffer buffer = in.ensure(4 + 4 + 8 + 4 + 4);
+            int version = buffer.getInt() == MAGIC ? buffer.getInt() : -1;
+            if (version != VERSION && version != VERSION_WITHOUT_ARCHIVE) {
+                throw new IOException("Not a bank snapshot: " + file);
+            }
+            long journalOffset = buffer.getLong();
+            int customerCount = buffer.getInt();
+            int accountCount = buffer.getInt();
+            HistoryArchive archive = null;
+            if (version == VERSION) {
+                String directory = in.getString();
+                if (directory != null) {
+                    archive = bank.openHistoryArchive(Paths.get(directory));
+                }
+            }
+            for (int i = 0; i < customerCount; i++) {
+                buffer = in.ensure(4 + 1 + 8);
+                int id = buffer.getInt();
+                boolean isRegistered = buffer.get() != 0;
+                long dateOfBirth = buffer.getLong();
+                String name = in.getString();
+                String address = in.getString();
+                Customer customer = new Customer(id, name, address, dateOfBirth == NO_DATE ? null : new Date(dateOfBirth));
+                customers.putIfAbsent(id, customer);
+                if (isRegistered) {
+                    bank.insertCustomer(customer);
+                }
+            }
+            AccountType[] accountTypes = AccountType.values();
+            TransactionType[] transactionTypes = TransactionType.values();
+            for (int i = 0; i < accountCount; i++) {
+                buffer = in.ensure(4 + 4 + 1 + 8 + 4);
+                int number = buffer.getInt();
+                Customer owner = customers.get(buffer.getInt());
+                Account account = new Account(number, owner, accountTypes[buffer.get()]);
+                account.restoreBalance(buffer.getLong());
+                int historySize = buffer.getInt();
+                TransactionColumns history = account.getTransactionColumns();
+                int sealedRows = version == VERSION ? readSealed(in, archive, history) : 0;
+                for (int j = sealedRows; j < historySize; j++) {
+                    buffer = in.ensure(ROW_SIZE);
+                    history.restore(buffer.getLong(), buffer.getLong(), transactionTypes[buffer.get()], buffer.getLong());
+                }
+                bank.insertAccount(account);
+            }
+            return journalOffset;
+        }
+    }
+
+    /**
+     * Encodes an account's sealed rows: their count and, if there are any, the balance after
+     * them, their checkpoints and their segment descriptors.
+     *
+     * @return The number of sealed rows.
+     */
+    private static int writeSealed(Output out, TransactionColumns.Sealed sealed) throws IOException {
+        out.ensure(4);
+        if (sealed == null) {
+            out.buffer.putInt(0);
+            return 0;
+        }
+        out.ensure(4 + 8 + 4 + 8 * sealed.checkpoints.length + 4);
+        out.buffer.putInt(sealed.rows).putLong(sealed.balance).putInt(sealed.checkpoints.length);
+        for (long checkpoint : sealed.checkpoints) {
+            out.buffer.putLong(checkpoint);
+        }
+        out.buffer.putInt(sealed.segments.length);
+        for (HistoryArchive.Segment segment : sealed.segments) {
+            byte[] name = encode(segment.file.getFileName().toString());
+            out.ensure(length(name) + SEGMENT_SIZE);
+            putBytes(out.buffer, name);
+            out.buffer.putLong(segment.offset).putInt(segment.length).putInt(segment.firstRow).putInt(segment.rows)
+                    .putLong(segment.lowestTransactionId).putLong(segment.highestTransactionId)
+                    .putLong(segment.firstTimestamp).putLong(segment.lastTimestamp);
+        }
+        return sealed.rows;
+    }
+
+    /**
+     * Restores an account's sealed rows, resolving their segments in the archive's directory.
+     *
+     * @return The number of sealed rows.
+     * @throws IOException If the snapshot is truncated or refers to segments without an archive.
+     */
+    private static int readSealed(Input in, HistoryArchive archive, TransactionColumns history) throws IOException {
+        int rows = in.ensure(4).getInt();
+        if (rows == 0) {
+            return 0;
+        }
+        if (archive == null) {
+            throw new IOException("Snapshot refers to archived history but names no archive");
+        }
+        ByteBuffer buffer = in.ensure(8 + 4);
+        long balance = buffer.getLong();
+        long[] checkpoints = new long[buffer.getInt()];
+        for (int i = 0; i < checkpoints.length; i++) {
+            checkpoints[i] = in.ensure(8).getLong();
+        }
+        HistoryArchive.Segment[] segments = new HistoryArchive.Segment[in.ensure(4).getInt()];
+        for (int i = 0; i < segments.length; i++) {
+            Path file = archive.directory().resolve(in.getString());
+            buffer = in.ensure(SEGMENT_SIZE);
+            segments[i] = new HistoryArchive.Segment(file, buffer.getLong(), buffer.getInt(), buffer.getInt(),
+                    buffer.getInt(), buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+        }
+        history.restoreSealed(archive, new TransactionColumns.Sealed(segments, rows, balance, checkpoints));
+        return rows;
+    }
+
+    private static byte[] encode(String text) {
+        return text == null ? null : text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int length(byte[] bytes) {
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    private static void putBytes(ByteBuffer out, byte[] bytes) {
+        if (bytes == null) {
+            out.putInt(-1);
+        } else {
+            out.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    /**
+     * Buffers encoded bytes in a large direct buffer and writes them to a channel when it fills.
+     * Also encodes transaction rows visited in an account's columns.
+     */
+    private static final class Output implements TransactionColumns.RowVisitor {
+        private final FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        private IOException failure;
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+                if (buffer.capacity() < bytes) {
+                    buffer = ByteBuffer.allocateDirect(bytes);
+                }
+            }
+        }
+
+        @Override
+        public void visit(long transactionId, long amountMinorUnits, TransactionType type, long timestamp) {
+            if (failure != null) {
+                return;
+            }
+            try {
+                ensure(ROW_SIZE);
+                buffer.putLong(transactionId).putLong(amountMinorUnits).put((byte) type.ordinal()).putLong(timestamp);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Reads a file through a sliding memory-mapped window, remapping whenever a read would cross its end.
+     */
+    private static final class Input {
+        private final FileChannel channel;
+        private final long size;
+        private MappedByteBuffer window;
+        private long windowStart;
+
+        Input(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            map(0, 0);
+        }
+
+        ByteBuffer ensure(int bytes) throws IOException {
+            if (window.remaining() < bytes) {
+                long position = windowStart + window.position();
+                if (size - position < bytes) {
+                    throw new IOException("Snapshot is truncated at offset " + position);
+                }
+                map(position, bytes);
+            }
+            return window;
+        }
+
+        String getString() throws IOException {
+            int length = ensure(4).getInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            ensure(length).get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private void map(long position, int atLeast) throws IOException {
+            long length = Math.min(size - position, Math.max(MAP_WINDOW, atLeast));
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            windowStart = position;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package Bank;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks shared by many keys, so that operations on unrelated keys
+ * can proceed in parallel without allocating one lock per key.
+ * <p>
+ * Pairs of keys are always locked in ascending stripe order, which makes two-key
+ * operations such as transfers deadlock-free regardless of the order the keys are given in.
+ * </p>
+ */
+public class StripedLock {
+
+    private final ReentrantLock[] stripes;
+    private final int mask;
+
+    /**
+     * Constructs a striped lock with at least the given number of stripes.
+     * The number of stripes is rounded up to a power of two.
+     *
+     * @param concurrencyLevel The minimum number of stripes.
+     */
+    public StripedLock(int concurrencyLevel) {
+        int size = Integer.highestOneBit(Math.max(concurrencyLevel - 1, 1)) << 1;
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Returns the index of the stripe guarding the given key.
+     *
+     * @param key The key.
+     * @return The stripe index.
+     */
+    public int stripeFor(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Returns the number of stripes.
+     *
+     * @return The number of stripes.
+     */
+    public int size() {
+        return stripes.length;
+    }
+
+    /**
+     * Acquires the stripe guarding the given key.
+     *
+     * @param key The key to lock.
+     */
+    public void lock(int key) {
+        stripes[stripeFor(key)].lock();
+    }
+
+    /**
+     * Releases the stripe guarding the given key.
+     *
+     * @param key The key to unlock.
+     */
+    public void unlock(int key) {
+        stripes[stripeFor(key)].unlock();
+    }
+
+    /**
+     * Acquires the stripes guarding both keys, lowest stripe first.
+     * A stripe shared by both keys is acquired only once.
+     *
+     * @param first The first key to lock.
+     * @param second The second key to lock.
+     */
+    public void lockPair(int first, int second) {
+        int a = stripeFor(first);
+        int b = stripeFor(second);
+        if (a == b) {
+            stripes[a].lock();
+        } else {
+            stripes[Math.min(a, b)].lock();
+            stripes[Math.max(a, b)].lock();
+        }
+    }
+
+    /**
+     * Releases the stripes acquired by {@link #lockPair(int, int)}.
+     *
+     * @param first The first key to unlock.
+     * @param second The second key to unlock.
+     */
+    public void unlockPair(int first, int second) {
+        int a = stripeFor(first);
+        int b = stripeFor(second);
+        if (a == b) {
+            stripes[a].unlock();
+        } else {
+            stripes[Math.max(a, b)].unlock();
+            stripes[Math.min(a, b)].unlock();
+        }
+    }
+
+    /**
+     * Acquires a stripe by index. Callers locking several stripes must do so in ascending index order.
+     *
+     * @param stripe The stripe index.
+     */
+    public void lockStripe(int stripe) {
+        stripes[stripe].lock();
+    }
+
+    /**
+     * Releases a stripe by index.
+     *
+     * @param stripe The stripe index.
+     */
+    public void unlockStripe(int stripe) {
+        stripes[stripe].unlock();
+    }
+}
@@ -0,0 +1,93 @@
+package Bank;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A bounded cache of customer summaries keyed by customer ID, each tagged with the customer
+ * version it was generated at.
+ * <p>
+ * A cached summary is returned only while the customer's version is unchanged, so any balance
+ * change, account opening or closure, or change to the customer's details invalidates it without
+ * the cache being told. The cache is split into segments, each an access-ordered map guarded by
+ * its own lock that evicts its least recently used summary when full, so concurrent readers of
+ * different customers rarely contend.
+ * </p>
+ */
+final class SummaryCache {
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    /**
+     * Constructs an empty cache.
+     *
+     * @param capacity The maximum number of summaries to keep.
+     */
+    SummaryCache(int capacity) {
+        int segmentCapacity = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+    }
+
+    /**
+     * Returns the customer's summary, rendering and caching it if no summary of the customer's
+     * current version is cached.
+     *
+     * @param customer The customer.
+     * @param render Generates the summary of a customer.
+     * @return The summary.
+     */
+    String get(Customer customer, Function<Customer, String> render) {
+        int customerId = customer.getCustomerId();
+        Segment segment = segments[(customerId ^ (customerId >>> 16)) & (SEGMENTS - 1)];
+        // The version is read before rendering, so a change made while rendering leaves a stale
+        // entry that is rejected on the next read.
+        long version = customer.getVersion();
+        synchronized (segment) {
+            Entry entry = segment.get(customerId);
+            if (entry != null && entry.customer == customer && entry.version == version) {
+                return entry.summary;
+            }
+        }
+        String summary = render.apply(customer);
+        synchronized (segment) {
+            Entry entry = segment.get(customerId);
+            if (entry == null || entry.customer != customer || entry.version < version) {
+                segment.put(customerId, new Entry(customer, version, summary));
+            }
+        }
+        return summary;
+    }
+
+    private static final class Entry {
+        final Customer customer;
+        final long version;
+        final String summary;
+
+        Entry(Customer customer, long version, String summary) {
+            this.customer = customer;
+            this.version = version;
+            this.summary = summary;
+        }
+    }
+
+    private static final class Segment extends LinkedHashMap<Integer, Entry> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -1,6 +1,13 @@
 package Bank;
 /**
  * Interface for financial transactions.
+ * <p>
+ * The keyed overloads apply a request once for every call carrying the same idempotency key
+ * within the time the key is remembered; a retry returns the original outcome without moving
+ * money again. A key reused for a different request, one with another operation, account or
+ * amount, is rejected with an {@link IllegalArgumentException} by every implementation, and
+ * the request is not applied.
+ * </p>
  */
 public interface Transactable {
    
@@ -12,5 +19,29 @@ public interface Transactable {
 
    /** Transfers amount between accounts. */
    boolean transfer(Account fromAccount, Account toAccount, double amount);
+
+   /**
+    * Deposits amount into an account, once for all requests carrying the same idempotency key.
+    *
+    * @throws IllegalArgumentException If the key was used for a different request.
+    */
+   boolean deposit(Account account, double amount, long idempotencyKey);
+
+   /**
+    * Withdraws amount from an account, once for all requests carrying the same idempotency key.
+    *
+    * @throws IllegalArgumentException If the key was used for a different request.
+    */
+   boolean withdraw(Account account, double amount, long idempotencyKey);
+
+   /**
+    * Transfers amount between accounts, once for all requests carrying the same idempotency key.
+    *
+    * @throws IllegalArgumentException If the key was used for a different request.
+    */
+   boolean transfer(Account fromAccount, Account toAccount, double amount, long idempotencyKey);
+
+   /** Applies a batch of operations in order, returning one {@link TransactionBatch} result code per operation. */
+   byte[] process(TransactionBatch batch);
 }
 
@@ -0,0 +1,144 @@
+package Bank;
+
+import java.util.Arrays;
+
+/**
+ * An ordered batch of deposits, withdrawals and transfers addressed by account number,
+ * submitted in one call to {@link Transactable#process(TransactionBatch)}.
+ * <p>
+ * Operations are stored in parallel primitive arrays, so a batch of tens of thousands of
+ * operations costs a handful of allocations. Processing a batch yields one result code
+ * per operation, in the order the operations were added.
+ * </p>
+ */
+public class TransactionBatch {
+
+    /** Result code of an operation that was applied. */
+    public static final byte OK = 0;
+
+    /** Result code of an operation naming an account that does not exist or is closed. */
+    public static final byte ACCOUNT_NOT_FOUND = 1;
+
+    /** Result code of a withdrawal or transfer not covered by the source balance. */
+    public static final byte INSUFFICIENT_FUNDS = 2;
+
+    /** Result code of an operation whose amount is not positive. */
+    public static final byte INVALID_AMOUNT = 3;
+
+    static final byte DEPOSIT = 0;
+    static final byte WITHDRAW = 1;
+    static final byte TRANSFER = 2;
+
+    private byte[] operations;
+    private int[] fromAccounts;
+    private int[] toAccounts;
+    private long[] amounts;
+    private int size;
+
+    /**
+     * Constructs an empty batch.
+     */
+    public TransactionBatch() {
+        this(64);
+    }
+
+    /**
+     * Constructs an empty batch able to hold the expected number of operations without growing.
+     *
+     * @param expectedSize The number of operations the batch is expected to hold.
+     */
+    public TransactionBatch(int expectedSize) {
+        int capacity = Math.max(expectedSize, 1);
+        this.operations = new byte[capacity];
+        this.fromAccounts = new int[capacity];
+        this.toAccounts = new int[capacity];
+        this.amounts = new long[capacity];
+    }
+
+    /**
+     * Adds a deposit to the batch.
+     *
+     * @param accountNumber The account to deposit to.
+     * @param amount The amount to be deposited.
+     * @return This batch.
+     */
+    public TransactionBatch addDeposit(int accountNumber, double amount) {
+        add(DEPOSIT, accountNumber, accountNumber, Money.toMinorUnits(amount));
+        return this;
+    }
+
+    /**
+     * Adds a withdrawal to the batch.
+     *
+     * @param accountNumber The account to withdraw from.
+     * @param amount The amount to be withdrawn.
+     * @return This batch.
+     */
+    public TransactionBatch addWithdraw(int accountNumber, double amount) {
+        add(WITHDRAW, accountNumber, accountNumber, Money.toMinorUnits(amount));
+        return this;
+    }
+
+    /**
+     * Adds a transfer to the batch.
+     *
+     * @param fromAccountNumber The account to transfer from.
+     * @param toAccountNumber The account to transfer to.
+     * @param amount The amount to be transferred.
+     * @return This batch.
+     */
+    public TransactionBatch addTransfer(int fromAccountNumber, int toAccountNumber, double amount) {
+        add(TRANSFER, fromAccountNumber, toAccountNumber, Money.toMinorUnits(amount));
+        return this;
+    }
+
+    /**
+     * Returns the number of operations in the batch.
+     *
+     * @return The number of operations.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all operations from the batch so that it can be reused.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    byte operation(int index) {
+        return operations[index];
+    }
+
+    int fromAccount(int index) {
+        return fromAccounts[index];
+    }
+
+    int toAccount(int index) {
+        return toAccounts[index];
+    }
+
+    long amountMinorUnits(int index) {
+        return amounts[index];
+    }
+
+    /**
+     * Adds an operation with an amount already in minor units, as decoded from the wire.
+     */
+    void add(byte operation, int from, int to, long amountMinorUnits) {
+        if (size == operations.length) {
+            int capacity = size << 1;
+            operations = Arrays.copyOf(operations, capacity);
+            fromAccounts = Arrays.copyOf(fromAccounts, capacity);
+            toAccounts = Arrays.copyOf(toAccounts, capacity);
+            amounts = Arrays.copyOf(amounts, capacity);
+        }
+        operations[size] = operation;
+        fromAccounts[size] = from;
+        toAccounts[size] = to;
+        amounts[size] = amountMinorUnits;
+        size++;
+    }
+}
@@ -0,0 +1,421 @@
+package Bank;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The transaction history of one account, stored as growable primitive columns
+ * (transaction ID, amount in minor units, transaction type and timestamp) rather than as
+ * one {@link TransactionLog} object per transaction. The account number column is implicit,
+ * since every row belongs to the owning account.
+ * <p>
+ * A row costs 25 bytes plus growth slack; {@link TransactionLog} objects are materialized
+ * only when a caller asks for them. Rows are kept in the order they are appended and
+ * never modified; a row's number, not its transaction ID, gives its place in the history,
+ * since IDs come from per-thread blocks and are unique but not ascending. All methods
+ * synchronize on the store, so appends from concurrent deposits and withdrawals are safe.
+ * </p>
+ * <p>
+ * The store also keeps the balance the rows add up to, and a checkpoint of that balance every
+ * {@value #CHECKPOINT_INTERVAL} rows, so the balance as of any time is found by a binary search
+ * and a replay of at most {@value #CHECKPOINT_INTERVAL} rows, however long the history is.
+ * </p>
+ * <p>
+ * Older rows can be sealed into a {@link HistoryArchive}, after which only the newer rows stay
+ * in the columns and the sealed ones are described by one small segment descriptor per sealing.
+ * Row numbers do not change when rows are sealed. Reads reaching sealed rows find their segment
+ * under the store's lock and page it in through the archive's cache after releasing it, so appends
+ * never wait for the disk; reads of recent rows, which are most of them, never touch it.
+ * </p>
+ */
+final class TransactionColumns {
+
+    /**
+     * Receives the fields of a row without materializing a {@link TransactionLog}.
+     */
+    interface RowVisitor {
+        void visit(long transactionId, long amountMinorUnits, TransactionType type, long timestamp);
+    }
+
+    private static final TransactionType[] TYPES = TransactionType.values();
+
+    /** The number of rows between balance checkpoints. */
+    static final int CHECKPOINT_INTERVAL = 64;
+    private static final long[] NO_LONGS = new long[0];
+    private static final byte[] NO_BYTES = new byte[0];
+    private static final HistoryArchive.Segment[] NO_SEGMENTS = new HistoryArchive.Segment[0];
+
+    /** The rows from {@link #base} onwards; the column index of a row is its row number minus the base. */
+    private long[] transactionIds = NO_LONGS;
+    private long[] amounts = NO_LONGS;
+    private byte[] types = NO_BYTES;
+    private long[] timestamps = NO_LONGS;
+    private int size;
+
+    /** The number of rows sealed into the archive, which are the rows before the first one in memory. */
+    private int base;
+
+    /** The sealed rows, in row order, or none if nothing has been sealed. */
+    private HistoryArchive.Segment[] segments = NO_SEGMENTS;
+
+    /** The archive holding the sealed rows, or null if nothing has been sealed. */
+    private HistoryArchive archive;
+
+    /** The balance before row {@code i * CHECKPOINT_INTERVAL}, for each i up to the last row. */
+    private long[] checkpoints = NO_LONGS;
+
+    /** The sum of the signed amounts of every row. */
+    private long balance;
+
+    /**
+     * Records a new transaction made at the given time. The caller draws the transaction ID,
+     * from its thread's block, before the store's lock is taken, so the lock covers only the
+     * stores of the row, and so the journal can record the ID along with the transaction.
+     * A time earlier than the latest recorded one, as after a clock adjustment, is raised to it,
+     * so rows stay in time order.
+     *
+     * @param transactionId The ID of the transaction.
+     * @param amountMinorUnits The amount of the transaction in minor units.
+     * @param type The type of the transaction.
+     * @param timestamp The time of the transaction in milliseconds since the epoch.
+     */
+    synchronized void append(long transactionId, long amountMinorUnits, TransactionType type, long timestamp) {
+        add(transactionId, amountMinorUnits, type, size == 0 ? timestamp : Math.max(timestamp, lastTimestamp()));
+    }
+
+    /**
+     * Records a previously assigned transaction, as when restoring a bank.
+     * Ensures the given ID is never assigned to a new transaction.
+     */
+    synchronized void restore(long transactionId, long amountMinorUnits, TransactionType type, long timestamp) {
+        TransactionLog.advancePast(transactionId);
+        add(transactionId, amountMinorUnits, type, timestamp);
+    }
+
+    /**
+     * Returns the number of recorded transactions.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the timestamp at the given row.
+     */
+    long timestamp(int row) {
+        HistoryArchive.Segment segment;
+        HistoryArchive archive;
+        synchronized (this) {
+            if (row >= base) {
+                return timestamps[row - base];
+            }
+            segment = segments[segmentIndex(row)];
+            archive = this.archive;
+        }
+        return archive.read(segment).timestamps[row - segment.firstRow];
+    }
+
+    /**
+     * Returns the first row made at or after the given time, or the number of rows if there is
+     * none. Rows are in ascending time order.
+     */
+    int firstRowAtOrAfter(long timestamp) {
+        HistoryArchive.Segment segment;
+        HistoryArchive archive;
+        synchronized (this) {
+            if (base == 0 || (size > base && timestamps[0] < timestamp)) {
+                return base + firstAtOrAfter(timestamps, size - base, timestamp);
+            }
+            int low = 0;
+            int high = segments.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (segments[middle].lastTimestamp < timestamp) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            if (low == segments.length) {
+                return base;
+            }
+            segment = segments[low];
+            archive = this.archive;
+        }
+        HistoryArchive.Rows rows = archive.read(segment);
+        return segment.firstRow + firstAtOrAfter(rows.timestamps, rows.size, timestamp);
+    }
+
+    /**
+     * Returns the balance the recorded transactions add up to as of the given time, counting
+     * every transaction made at or before it. Starts from the checkpoint preceding the first
+     * later transaction and replays the rows since, at most {@value #CHECKPOINT_INTERVAL} of them.
+     *
+     * @param timestamp The time in milliseconds since the epoch.
+     * @return The balance in minor units.
+     */
+    long balanceAsOf(long timestamp) {
+        int end = timestamp == Long.MAX_VALUE ? Integer.MAX_VALUE : firstRowAtOrAfter(timestamp + 1);
+        int row;
+        long[] balanceAsOf = new long[1];
+        synchronized (this) {
+            if (end >= size) {
+                return balance;
+            }
+            row = end - end % CHECKPOINT_INTERVAL;
+            balanceAsOf[0] = checkpoints[row / CHECKPOINT_INTERVAL];
+        }
+        visit(row, end, (transactionId, amountMinorUnits, type, time) ->
+                balanceAsOf[0] += type.isCredit() ? amountMinorUnits : -amountMinorUnits);
+        return balanceAsOf[0];
+    }
+
+    /**
+     * Materializes the transaction at the given row.
+     */
+    TransactionLog get(Account account, int row) {
+        HistoryArchive.Segment segment;
+        HistoryArchive archive;
+        synchronized (this) {
+            if (row < 0 || row >= size) {
+                throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+            }
+            if (row >= base) {
+                int i = row - base;
+                return new TransactionLog(transactionIds[i], account, Money.toMajorUnits(amounts[i]), TYPES[types[i]],
+                        timestamps[i]);
+            }
+            segment = segments[segmentIndex(row)];
+            archive = this.archive;
+        }
+        HistoryArchive.Rows rows = archive.read(segment);
+        int i = row - segment.firstRow;
+        return new TransactionLog(rows.transactionIds[i], account, Money.toMajorUnits(rows.amounts[i]),
+                TYPES[rows.types[i]], rows.timestamps[i]);
+    }
+
+    /**
+     * Materializes every recorded transaction, oldest first, into the given list.
+     */
+    void materializeInto(Account account, List<? super TransactionLog> out) {
+        visit(0, Integer.MAX_VALUE, (transactionId, amountMinorUnits, type, timestamp) ->
+                out.add(new TransactionLog(transactionId, account, Money.toMajorUnits(amountMinorUnits), type, timestamp)));
+    }
+
+    /**
+     * Passes the rows in the given range to a visitor, up to the last row recorded when the call
+     * starts. Rows in memory are visited while holding the store's lock. Sealed rows are paged in
+     * one segment at a time without holding it, so appends are never held up by the disk; rows
+     * never change once recorded, so the visited rows are the same either way.
+     */
+    void visit(int fromRow, int toRow, RowVisitor visitor) {
+        int row = Math.max(fromRow, 0);
+        int end = -1;
+        while (true) {
+            HistoryArchive.Segment segment;
+            HistoryArchive archive;
+            synchronized (this) {
+                if (end < 0) {
+                    end = Math.min(toRow, size);
+                }
+                if (row >= base) {
+                    for (; row < end; row++) {
+                        int i = row - base;
+                        visitor.visit(transactionIds[i], amounts[i], TYPES[types[i]], timestamps[i]);
+                    }
+                    return;
+                }
+                if (row >= end) {
+                    return;
+                }
+                segment = segments[segmentIndex(row)];
+                archive = this.archive;
+            }
+            HistoryArchive.Rows rows = archive.read(segment);
+            int stop = Math.min(end, segment.firstRow + segment.rows);
+            for (; row < stop; row++) {
+                int i = row - segment.firstRow;
+                visitor.visit(rows.transactionIds[i], rows.amounts[i], TYPES[rows.types[i]], rows.timestamps[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of rows sealed into the archive, which are the rows before the first one in memory.
+     */
+    synchronized int sealedRows() {
+        return base;
+    }
+
+    /**
+     * Returns what a snapshot needs to restore the sealed rows without reading them: their
+     * segments, the checkpoints covering them and the balance after them.
+     *
+     * @return The sealed rows, or null if nothing has been sealed.
+     */
+    synchronized Sealed sealedState() {
+        if (base == 0) {
+            return null;
+        }
+        long balanceAtBase = balance;
+        for (int i = size - base - 1; i >= 0; i--) {
+            balanceAtBase -= TYPES[types[i]].isCredit() ? amounts[i] : -amounts[i];
+        }
+        return new Sealed(segments, base, balanceAtBase,
+                Arrays.copyOf(checkpoints, (base + CHECKPOINT_INTERVAL - 1) / CHECKPOINT_INTERVAL));
+    }
+
+    /**
+     * Restores sealed rows into an empty store, as when loading a snapshot. Rows restored
+     * afterwards follow them.
+     *
+     * @param archive The archive holding the segments.
+     * @param sealed The sealed rows, as returned by {@link #sealedState()}.
+     */
+    synchronized void restoreSealed(HistoryArchive archive, Sealed sealed) {
+        if (size != 0) {
+            throw new IllegalStateException("Sealed rows must be restored first");
+        }
+        for (HistoryArchive.Segment segment : sealed.segments) {
+            TransactionLog.advancePast(segment.highestTransactionId);
+        }
+        this.archive = archive;
+        segments = sealed.segments;
+        base = sealed.rows;
+        size = sealed.rows;
+        balance = sealed.balance;
+        checkpoints = Arrays.copyOf(sealed.checkpoints, Math.max(4, sealed.checkpoints.length * 2));
+    }
+
+    /**
+     * Copies the in-memory rows recorded before the given time, to be sealed into a segment.
+     *
+     * @param timestamp The time, in milliseconds since the epoch.
+     * @return The rows, or null if there are none.
+     */
+    synchronized HistoryArchive.Rows rowsBefore(long timestamp) {
+        int count = firstAtOrAfter(timestamps, size - base, timestamp);
+        if (count == 0) {
+            return null;
+        }
+        HistoryArchive.Rows rows = new HistoryArchive.Rows(count);
+        for (int i = 0; i < count; i++) {
+            rows.add(transactionIds[i], amounts[i], types[i], timestamps[i]);
+        }
+        return rows;
+    }
+
+    /**
+     * Releases the in-memory rows that were written to a segment, which must start at the first
+     * row still in memory.
+     *
+     * @param archive The archive the segment belongs to.
+     * @param segment The segment written from {@link #rowsBefore(long)}.
+     * @throws IllegalStateException If the rows were sealed concurrently or into another archive.
+     */
+    synchronized void sealed(HistoryArchive archive, HistoryArchive.Segment segment) {
+        if (segment.firstRow != base || (this.archive != null && this.archive != archive)) {
+            throw new IllegalStateException("History was sealed concurrently");
+        }
+        this.archive = archive;
+        segments = Arrays.copyOf(segments, segments.length + 1);
+        segments[segments.length - 1] = segment;
+        base += segment.rows;
+        int remaining = size - base;
+        if (remaining == 0) {
+            transactionIds = NO_LONGS;
+            amounts = NO_LONGS;
+            types = NO_BYTES;
+            timestamps = NO_LONGS;
+        } else {
+            int capacity = Math.max(4, remaining + (remaining >>> 1));
+            transactionIds = Arrays.copyOfRange(transactionIds, segment.rows, segment.rows + capacity);
+            amounts = Arrays.copyOfRange(amounts, segment.rows, segment.rows + capacity);
+            types = Arrays.copyOfRange(types, segment.rows, segment.rows + capacity);
+            timestamps = Arrays.copyOfRange(timestamps, segment.rows, segment.rows + capacity);
+        }
+    }
+
+    /**
+     * Returns the index of the segment holding a sealed row.
+     */
+    private int segmentIndex(int row) {
+        int low = 0;
+        int high = segments.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (segments[middle].firstRow <= row) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the first index below the given count whose value is at least the given one,
+     * or the count if there is none, in a column sorted in ascending order.
+     */
+    private static int firstAtOrAfter(long[] column, int count, long value) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (column[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private long lastTimestamp() {
+        if (size > base) {
+            return timestamps[size - base - 1];
+        }
+        return segments[segments.length - 1].lastTimestamp;
+    }
+
+    private void add(long transactionId, long amountMinorUnits, TransactionType type, long timestamp) {
+        if (size % CHECKPOINT_INTERVAL == 0) {
+            int checkpoint = size / CHECKPOINT_INTERVAL;
+            if (checkpoint == checkpoints.length) {
+                checkpoints = Arrays.copyOf(checkpoints, Math.max(4, checkpoint * 2));
+            }
+            checkpoints[checkpoint] = balance;
+        }
+        int index = size - base;
+        if (index == transactionIds.length) {
+            int capacity = Math.max(4, index + (index >>> 1));
+            transactionIds = Arrays.copyOf(transactionIds, capacity);
+            amounts = Arrays.copyOf(amounts, capacity);
+            types = Arrays.copyOf(types, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+        }
+        transactionIds[index] = transactionId;
+        amounts[index] = amountMinorUnits;
+        types[index] = (byte) type.ordinal();
+        timestamps[index] = timestamp;
+        size++;
+        balance += type.isCredit() ? amountMinorUnits : -amountMinorUnits;
+    }
+
+    /**
+     * The sealed rows of a store at one moment, as captured by a snapshot.
+     */
+    static final class Sealed {
+        final HistoryArchive.Segment[] segments;
+        final int rows;
+        final long balance;
+        final long[] checkpoints;
+
+        Sealed(HistoryArchive.Segment[] segments, int rows, long balance, long[] checkpoints) {
+            this.segments = segments;
+            this.rows = rows;
+            this.balance = balance;
+            this.checkpoints = checkpoints;
+        }
+    }
+}
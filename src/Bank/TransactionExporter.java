@@ -0,0 +1,412 @@
+package Bank;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exports every transaction of a {@link CentralBank} to files, for audits.
+ * <p>
+ * The open accounts and the length of each one's history are captured first, then the accounts
+ * are split into partitions of roughly equal row counts. Each partition is exported by its own
+ * worker thread into its own file, so no locks or buffers are shared between workers. Rows are
+ * copied out of each account's {@link TransactionColumns} {@value #CHUNK_ROWS} at a time, so its
+ * lock is held only for the copy, then encoded into a large direct buffer that is written through
+ * a {@link FileChannel} whenever it fills, with no lock held.
+ * </p>
+ * <p>
+ * Each account's rows are exported as they stood when the accounts were captured. Transactions
+ * made during the export are left out, but accounts are not captured all at the same instant, so
+ * the export is not a consistent snapshot of the whole bank.
+ * </p>
+ * <p>
+ * Only open accounts are exported. Closing an account removes it and its history from the bank,
+ * as it does from snapshots, so the history of a closed account must be exported before it is
+ * closed; the outgoing leg of a transfer to an account closed since appears only on the source.
+ * </p>
+ * <p>
+ * Files are named {@code transactions-<partition>.csv} or {@code transactions-<partition>.bin}.
+ * CSV files start with the header {@code transaction_id,account_number,customer_id,type,amount,timestamp},
+ * where the amount has two decimal places and the timestamp is in milliseconds since the epoch.
+ * Binary files start with a 4-byte magic number and a 4-byte version, followed by big-endian
+ * rows of {@value #BINARY_ROW_SIZE} bytes: transaction ID (8), account number (4), customer ID (4),
+ * transaction type ordinal (1), amount in minor units (8) and timestamp (8).
+ * </p>
+ */
+public final class TransactionExporter {
+
+    /**
+     * The encoding of exported transactions.
+     */
+    public enum Format {
+        /** Comma-separated text with a header line. */
+        CSV(".csv"),
+        /** Fixed-size binary rows. */
+        BINARY(".bin");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    /** The magic number at the start of a binary export file. */
+    public static final int BINARY_MAGIC = 0x43425458;
+
+    /** The version of the binary export format. */
+    public static final int BINARY_VERSION = 1;
+
+    /** The size in bytes of a binary row. */
+    public static final int BINARY_ROW_SIZE = 8 + 4 + 4 + 1 + 8 + 8;
+
+    private static final byte[] CSV_HEADER =
+            "transaction_id,account_number,customer_id,type,amount,timestamp\n".getBytes(StandardCharsets.US_ASCII);
+
+    /** The longest CSV row: three longs, two ints, a type name, separators and a newline. */
+    private static final int MAX_CSV_ROW_SIZE = 3 * 20 + 2 * 11 + 32 + 6 + 1;
+
+    private static final int WRITE_BUFFER_SIZE = 8 << 20;
+
+    /** The number of rows copied out of an account's history under its lock at a time. */
+    private static final int CHUNK_ROWS = 4096;
+
+    private static final byte[][] TYPE_NAMES;
+
+    static {
+        TransactionType[] types = TransactionType.values();
+        TYPE_NAMES = new byte[types.length][];
+        for (int i = 0; i < types.length; i++) {
+            TYPE_NAMES[i] = types[i].name().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final CentralBank bank;
+
+    /**
+     * Constructs an exporter for the given bank.
+     *
+     * @param bank The bank whose transactions are exported.
+     */
+    public TransactionExporter(CentralBank bank) {
+        this.bank = bank;
+    }
+
+    /**
+     * Exports every transaction of the bank's open accounts into one file per partition.
+     * Closed accounts are not exported, as the bank no longer holds them.
+     *
+     * @param directory The directory to write the files to, created if missing.
+     * @param format The encoding of the files.
+     * @param partitions The number of files and worker threads.
+     * @return The number of rows and bytes written and the time taken.
+     * @throws IOException If a file cannot be written.
+     * @throws IllegalArgumentException If the number of partitions is not positive.
+     */
+    public Result export(Path directory, Format format, int partitions) throws IOException {
+        if (partitions <= 0) {
+            throw new IllegalArgumentException("Partitions must be positive");
+        }
+        long start = System.nanoTime();
+        List<Account> accounts = new ArrayList<>();
+        bank.forEachAccount(accounts::add);
+        int[] historySizes = new int[accounts.size()];
+        long totalRows = 0;
+        for (int i = 0; i < historySizes.length; i++) {
+            historySizes[i] = accounts.get(i).getTransactionColumns().size();
+            totalRows += historySizes[i];
+        }
+        int[] bounds = partition(historySizes, totalRows, partitions);
+
+        Files.createDirectories(directory);
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(partitions, runnable -> {
+            Thread thread = new Thread(runnable, "bank-export-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Long>> written = new ArrayList<>(partitions);
+            for (int p = 0; p < partitions; p++) {
+                Path file = directory.resolve("transactions-" + p + format.extension);
+                int from = bounds[p];
+                int to = bounds[p + 1];
+                written.add(workers.submit(() -> writePartition(file, format, accounts, historySizes, from, to)));
+            }
+            long bytes = 0;
+            for (Future<Long> partitionBytes : written) {
+                bytes += partitionBytes.get();
+            }
+            return new Result(totalRows, bytes, partitions, System.nanoTime() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while exporting", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Export failed", e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Splits the accounts into contiguous ranges holding roughly equal numbers of rows.
+     * Partition {@code p} covers accounts {@code bounds[p]} up to but excluding {@code bounds[p + 1]}.
+     */
+    private static int[] partition(int[] historySizes, long totalRows, int partitions) {
+        int[] bounds = new int[partitions + 1];
+        int account = 0;
+        long rows = 0;
+        for (int p = 1; p < partitions; p++) {
+            long target = totalRows * p / partitions;
+            while (account < historySizes.length && rows + historySizes[account] <= target) {
+                rows += historySizes[account++];
+            }
+            bounds[p] = account;
+        }
+        bounds[partitions] = historySizes.length;
+        return bounds;
+    }
+
+    private static long writePartition(Path file, Format format, List<Account> accounts, int[] historySizes,
+            int from, int to) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Encoder encoder = format == Format.CSV ? new CsvEncoder(channel) : new BinaryEncoder(channel);
+            RowChunk chunk = new RowChunk();
+            for (int i = from; i < to; i++) {
+                Account account = accounts.get(i);
+                encoder.account(account);
+                TransactionColumns columns = account.getTransactionColumns();
+                for (int row = 0; row < historySizes[i]; row += CHUNK_ROWS) {
+                    chunk.size = 0;
+                    columns.visit(row, Math.min(row + CHUNK_ROWS, historySizes[i]), chunk);
+                    for (int j = 0; j < chunk.size; j++) {
+                        encoder.row(chunk.transactionIds[j], chunk.amounts[j], chunk.types[j], chunk.timestamps[j]);
+                    }
+                }
+            }
+            encoder.flush();
+            return encoder.written;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Rows copied out of a history under its lock, to be encoded after the lock is released.
+     */
+    private static final class RowChunk implements TransactionColumns.RowVisitor {
+        final long[] transactionIds = new long[CHUNK_ROWS];
+        final long[] amounts = new long[CHUNK_ROWS];
+        final TransactionType[] types = new TransactionType[CHUNK_ROWS];
+        final long[] timestamps = new long[CHUNK_ROWS];
+        int size;
+
+        @Override
+        public void visit(long transactionId, long amountMinorUnits, TransactionType type, long timestamp) {
+            transactionIds[size] = transactionId;
+            amounts[size] = amountMinorUnits;
+            types[size] = type;
+            timestamps[size] = timestamp;
+            size++;
+        }
+    }
+
+    /**
+     * Buffers encoded rows of one partition in a large direct buffer and writes them to a channel
+     * when it fills.
+     */
+    private abstract static class Encoder {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        private final FileChannel channel;
+        int accountNumber;
+        int customerId;
+        long written;
+
+        Encoder(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Encodes one row of the current account.
+         */
+        abstract void row(long transactionId, long amountMinorUnits, TransactionType type, long timestamp) throws IOException;
+
+        void account(Account account) {
+            this.accountNumber = account.getAccountNumber();
+            Customer owner = account.getOwner();
+            this.customerId = owner == null ? -1 : owner.getCustomerId();
+        }
+
+        /**
+         * Makes room for the given number of bytes, writing out the buffer if needed.
+         */
+        void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            written += buffer.remaining();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    private static final class BinaryEncoder extends Encoder {
+
+        BinaryEncoder(FileChannel channel) {
+            super(channel);
+            buffer.order(ByteOrder.BIG_ENDIAN).putInt(BINARY_MAGIC).putInt(BINARY_VERSION);
+        }
+
+        @Override
+        void row(long transactionId, long amountMinorUnits, TransactionType type, long timestamp) throws IOException {
+            ensure(BINARY_ROW_SIZE);
+            buffer.putLong(transactionId).putInt(accountNumber).putInt(customerId).put((byte) type.ordinal())
+                    .putLong(amountMinorUnits).putLong(timestamp);
+        }
+    }
+
+    private static final class CsvEncoder extends Encoder {
+
+        /** Digits of the current number, least significant first. */
+        private final byte[] digits = new byte[20];
+
+        CsvEncoder(FileChannel channel) {
+            super(channel);
+            buffer.put(CSV_HEADER);
+        }
+
+        @Override
+        void row(long transactionId, long amountMinorUnits, TransactionType type, long timestamp) throws IOException {
+            ensure(MAX_CSV_ROW_SIZE);
+            putNumber(transactionId);
+            buffer.put((byte) ',');
+            putNumber(accountNumber);
+            buffer.put((byte) ',');
+            putNumber(customerId);
+            buffer.put((byte) ',').put(TYPE_NAMES[type.ordinal()]).put((byte) ',');
+            putAmount(amountMinorUnits);
+            buffer.put((byte) ',');
+            putNumber(timestamp);
+            buffer.put((byte) '\n');
+        }
+
+        private void putNumber(long value) {
+            // Digits are taken from the negated value, which cannot overflow.
+            long negative = value;
+            if (value < 0) {
+                buffer.put((byte) '-');
+            } else {
+                negative = -value;
+            }
+            int count = 0;
+            do {
+                digits[count++] = (byte) ('0' - negative % 10);
+                negative /= 10;
+            } while (negative != 0);
+            while (count > 0) {
+                buffer.put(digits[--count]);
+            }
+        }
+
+        private void putAmount(long minorUnits) {
+            long minor = Math.abs(minorUnits % Money.MINOR_UNITS_PER_MAJOR);
+            long major = Math.abs(minorUnits / Money.MINOR_UNITS_PER_MAJOR);
+            if (minorUnits < 0) {
+                buffer.put((byte) '-');
+            }
+            putNumber(major);
+            buffer.put((byte) '.').put((byte) ('0' + minor / 10)).put((byte) ('0' + minor % 10));
+        }
+    }
+
+    /**
+     * The outcome of an export.
+     */
+    public static final class Result {
+        private final long rows;
+        private final long bytes;
+        private final int files;
+        private final long elapsedNanos;
+
+        Result(long rows, long bytes, int files, long elapsedNanos) {
+            this.rows = rows;
+            this.bytes = bytes;
+            this.files = files;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * Returns the number of transactions exported.
+         *
+         * @return The number of rows.
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * Returns the number of bytes written across all files.
+         *
+         * @return The number of bytes.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Returns the number of files written.
+         *
+         * @return The number of files.
+         */
+        public int getFiles() {
+            return files;
+        }
+
+        /**
+         * Returns the time the export took, from capturing the accounts to the last file being written.
+         *
+         * @return The elapsed time in nanoseconds.
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * Returns the export throughput.
+         *
+         * @return The number of rows exported per second.
+         */
+        public double getRowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : rows * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Exported %d transactions (%d bytes) to %d files in %.3f s, %.0f rows/s",
+                    rows, bytes, files, elapsedNanos / 1e9, getRowsPerSecond());
+        }
+    }
+}
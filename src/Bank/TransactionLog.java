@@ -1,5 +1,8 @@
 package Bank;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 /**
  * Represents a record of a single transaction made on an account.
  * Each transaction log captures important details such as the amount involved, the type of transaction,
@@ -7,11 +10,11 @@ package Bank;
  */
 public class TransactionLog {
     
-    private static int idCount = 0;
-    private int transactionId;
+    private long transactionId;
     private Account Account; 
     private double Amount;
     private TransactionType type;
+    private long timestamp;
     
     /**
      * Constructs a new TransactionLog with the given account, amount, and type of transaction.
@@ -21,12 +24,45 @@ public class TransactionLog {
      * @param type The nature of the transaction (e.g., DEPOSIT, WITHDRAW).
      */
     public TransactionLog(Account Account, double Amount, TransactionType type) {
-        this.transactionId = idCount++;
+        this(nextTransactionId(), Account, Amount, type, System.currentTimeMillis());
+    }
+
+    /**
+     * Constructs a TransactionLog for a transaction whose ID has already been assigned,
+     * as when materializing a recorded transaction.
+     *
+     * @param transactionId The transaction ID.
+     * @param Account The account associated with this transaction.
+     * @param Amount The amount involved in this transaction.
+     * @param type The nature of the transaction (e.g., DEPOSIT, WITHDRAW).
+     * @param timestamp The time of the transaction in milliseconds since the epoch.
+     */
+    TransactionLog(long transactionId, Account Account, double Amount, TransactionType type, long timestamp) {
+        this.transactionId = transactionId;
         this.Account = Account;
         this.Amount = Amount;
         this.type = type;
+        this.timestamp = timestamp;
     }
     
+    /**
+     * Assigns the next unique transaction ID.
+     *
+     * @return The transaction ID.
+     */
+    static long nextTransactionId() {
+        return IdAllocator.TRANSACTIONS.next();
+    }
+
+    /**
+     * Ensures an ID assigned before a restart is never assigned again.
+     *
+     * @param transactionId The restored transaction ID.
+     */
+    static void advancePast(long transactionId) {
+        IdAllocator.TRANSACTIONS.advancePast(transactionId);
+    }
+
     /**
      * Retrieves the amount involved in the transaction.
      *
@@ -45,12 +81,21 @@ public class TransactionLog {
         return this.type;
     }
 
+    /**
+     * Retrieves the time at which the transaction was made.
+     *
+     * @return The time in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
     /**
      * Retrieves the unique identifier for this transaction.
      *
      * @return The transaction ID.
      */
-    public int getTransactionId() {
+    public long getTransactionId() {
         return this.transactionId;
     }
 
@@ -72,6 +117,33 @@ public class TransactionLog {
         return this.Account.getOwner().getName();
     }
 
+    /**
+     * Writes a report of this transaction to the given destination without building intermediate strings.
+     *
+     * @param out The destination.
+     * @throws IOException If the destination cannot be written.
+     */
+    public void appendTo(Appendable out) throws IOException {
+        out.append("Generating report...\n");
+        Report.appendNumber(out.append("Transaction Id: "), getTransactionId()).append('\n');
+        out.append("Name: ").append(getName()).append('\n');
+        Report.appendNumber(out.append("Account Number: "), getAccountNumber()).append('\n');
+        Report.appendAmount(out.append("Amount: "), Money.toMinorUnits(getAmount())).append('\n');
+        out.append("Transaction type: ").append(String.valueOf(getTransactionType())).append('\n');
+        out.append("Report complete.\n");
+    }
+
+    /**
+     * Writes a report of this transaction to the given buffer as UTF-8.
+     *
+     * @param buffer The destination buffer.
+     * @return The buffer.
+     * @throws java.nio.BufferOverflowException If the report does not fit in the buffer.
+     */
+    public ByteBuffer appendTo(ByteBuffer buffer) {
+        return Report.render(this::appendTo, buffer);
+    }
+
     /**
      * Provides a textual representation of this transaction, suitable for reporting purposes.
      *
@@ -79,14 +151,6 @@ public class TransactionLog {
      */
     @Override
     public String toString() {
-        String info = "";
-        info += "Generating report..." + "\n";
-        info += "Transaction Id: " + getTransactionId() + "\n";
-        info += "Name: " + getName() + "\n";
-        info += "Account Number: " + getAccountNumber() + "\n";
-        info += "Amount: " + getAmount() + "\n";
-        info += "Transaction type: " + getTransactionType() + "\n";
-        info += "Report complete." + "\n";
-        return info;
+        return Report.render(this::appendTo);
     }
 }
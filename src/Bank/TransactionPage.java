@@ -0,0 +1,273 @@
+package Bank;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of a customer's transaction history, merged across all of the customer's accounts
+ * in time order, together with the resume token for the next page.
+ * <p>
+ * The resume token records, for each account, how many of its rows have been returned, so
+ * the next page continues every account exactly where this one left off. A transaction
+ * recorded while a client is paging is returned on a later page even if it is older than
+ * transactions already returned from other accounts, and is never skipped or repeated.
+ * Pages are produced by a lazy k-way merge: only as many rows as fit on the page are
+ * materialized, so reading a page costs memory proportional to the page size and the
+ * number of accounts, not to the length of the history.
+ * </p>
+ */
+public class TransactionPage {
+
+    /** The resume token that starts reading from the oldest transaction of every account. */
+    public static final String FIRST_PAGE = "-";
+
+    private final List<TransactionLog> transactions;
+    private final String resumeToken;
+    private final boolean hasMore;
+
+    private TransactionPage(List<TransactionLog> transactions, String resumeToken, boolean hasMore) {
+        this.transactions = transactions;
+        this.resumeToken = resumeToken;
+        this.hasMore = hasMore;
+    }
+
+    /**
+     * Returns the transactions on this page, oldest first, transactions made at the same time
+     * being ordered by account number.
+     *
+     * @return The transactions.
+     */
+    public List<TransactionLog> getTransactions() {
+        return transactions;
+    }
+
+    /**
+     * Returns the token to pass back to read the page following this one. The token is opaque
+     * text without spaces: a comma-separated list of account numbers, each followed by a colon
+     * and the number of that account's rows already returned, or {@link #FIRST_PAGE} if none are.
+     *
+     * @return The resume token.
+     */
+    public String getResumeToken() {
+        return resumeToken;
+    }
+
+    /**
+     * Returns whether more transactions followed this page when it was read.
+     *
+     * @return true if another page is available, false otherwise.
+     */
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    /**
+     * Reads the page of transactions following the resume token across the given accounts.
+     * Accounts the token does not mention are read from their first row.
+     *
+     * @param accounts The accounts to merge.
+     * @param resumeToken The resume token, {@link #FIRST_PAGE} or one returned by {@link #getResumeToken()}.
+     * @param pageSize The maximum number of transactions on the page.
+     * @return The page.
+     * @throws IllegalArgumentException If the resume token is malformed.
+     */
+    static TransactionPage read(List<Account> accounts, String resumeToken, int pageSize) {
+        long[] cursors = parse(resumeToken);
+        Merge merge = new Merge(accounts.size());
+        for (Account account : accounts) {
+            merge.add(account, startRow(cursors, account.getAccountNumber()), account.getTransactionColumns().size());
+        }
+        List<TransactionLog> transactions = new ArrayList<>(Math.min(pageSize, 1024));
+        merge.drainInto(transactions, pageSize);
+        return new TransactionPage(Collections.unmodifiableList(transactions), merge.resumeToken(), merge.hasMore());
+    }
+
+    /**
+     * Parses a resume token into account number and row pairs, each packed into one long with
+     * the account number in the high half.
+     */
+    private static long[] parse(String resumeToken) {
+        if (resumeToken == null) {
+            throw new IllegalArgumentException("Missing resume token");
+        }
+        if (resumeToken.equals(FIRST_PAGE)) {
+            return new long[0];
+        }
+        String[] entries = resumeToken.split(",", -1);
+        long[] cursors = new long[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            int colon = entries[i].indexOf(':');
+            try {
+                if (colon < 0) {
+                    throw new NumberFormatException(entries[i]);
+                }
+                int accountNumber = Integer.parseInt(entries[i].substring(0, colon));
+                int row = Integer.parseInt(entries[i].substring(colon + 1));
+                if (row < 0) {
+                    throw new NumberFormatException(entries[i]);
+                }
+                cursors[i] = (long) accountNumber << 32 | row;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed resume token: " + resumeToken);
+            }
+        }
+        return cursors;
+    }
+
+    /**
+     * Returns the row to resume an account at, from parsed cursors.
+     */
+    private static int startRow(long[] cursors, int accountNumber) {
+        for (long cursor : cursors) {
+            if ((int) (cursor >>> 32) == accountNumber) {
+                return (int) cursor;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Reads every transaction made at or after {@code fromMillis} and before {@code toMillis}
+     * across the given accounts, in time order. Each account's range is found by binary
+     * search over its time-ordered history, so only the matching transactions are read.
+     *
+     * @param accounts The accounts to merge.
+     * @param fromMillis The start of the range, inclusive, in milliseconds since the epoch.
+     * @param toMillis The end of the range, exclusive, in milliseconds since the epoch.
+     * @return The transactions in the range.
+     */
+    static List<TransactionLog> readBetween(List<Account> accounts, long fromMillis, long toMillis) {
+        Merge merge = new Merge(accounts.size());
+        int total = 0;
+        for (Account account : accounts) {
+            TransactionColumns columns = account.getTransactionColumns();
+            int first = columns.firstRowAtOrAfter(fromMillis);
+            int end = columns.firstRowAtOrAfter(toMillis);
+            merge.add(account, first, end);
+            total += Math.max(0, end - first);
+        }
+        List<TransactionLog> transactions = new ArrayList<>(total);
+        merge.drainInto(transactions, Integer.MAX_VALUE);
+        return transactions;
+    }
+
+    /**
+     * A lazy k-way merge of row ranges of several accounts' histories in time order, transactions
+     * made at the same time being taken in account number order.
+     */
+    private static final class Merge {
+        private final Account[] cursorAccounts;
+        private final int[] rows;
+        private final int[] ends;
+        private final long[] heads;
+        private int cursorCount;
+        // A binary min-heap of the indexes of the cursors with rows left, ordered by the
+        // timestamp at each cursor's row and then by account number.
+        private final int[] heap;
+        private int heapSize;
+
+        Merge(int accountCount) {
+            cursorAccounts = new Account[accountCount];
+            rows = new int[accountCount];
+            ends = new int[accountCount];
+            heads = new long[accountCount];
+            heap = new int[accountCount];
+        }
+
+        /**
+         * Adds the rows of an account from {@code row} up to but excluding {@code end}.
+         */
+        void add(Account account, int row, int end) {
+            int cursor = cursorCount++;
+            cursorAccounts[cursor] = account;
+            rows[cursor] = row;
+            ends[cursor] = end;
+            if (row < end) {
+                heads[cursor] = account.getTransactionColumns().timestamp(row);
+                heap[heapSize++] = cursor;
+                siftUp(heapSize - 1);
+            }
+        }
+
+        /**
+         * Materializes up to the given number of transactions in merge order.
+         */
+        void drainInto(List<TransactionLog> transactions, int limit) {
+            while (heapSize > 0 && transactions.size() < limit) {
+                int cursor = heap[0];
+                Account account = cursorAccounts[cursor];
+                TransactionColumns columns = account.getTransactionColumns();
+                transactions.add(columns.get(account, rows[cursor]));
+                if (++rows[cursor] < ends[cursor]) {
+                    heads[cursor] = columns.timestamp(rows[cursor]);
+                } else {
+                    heap[0] = heap[--heapSize];
+                }
+                siftDown(0);
+            }
+        }
+
+        boolean hasMore() {
+            return heapSize > 0;
+        }
+
+        /**
+         * Returns the token resuming every account at the row the merge stopped at.
+         */
+        String resumeToken() {
+            StringBuilder token = new StringBuilder();
+            for (int cursor = 0; cursor < cursorCount; cursor++) {
+                if (rows[cursor] > 0) {
+                    if (token.length() > 0) {
+                        token.append(',');
+                    }
+                    token.append(cursorAccounts[cursor].getAccountNumber()).append(':').append(rows[cursor]);
+                }
+            }
+            return token.length() == 0 ? FIRST_PAGE : token.toString();
+        }
+
+        private boolean before(int cursor, int other) {
+            if (heads[cursor] != heads[other]) {
+                return heads[cursor] < heads[other];
+            }
+            return cursorAccounts[cursor].getAccountNumber() < cursorAccounts[other].getAccountNumber();
+        }
+
+        private void siftUp(int index) {
+            int cursor = heap[index];
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (!before(cursor, heap[parent])) {
+                    break;
+                }
+                heap[index] = heap[parent];
+                index = parent;
+            }
+            heap[index] = cursor;
+        }
+
+        private void siftDown(int index) {
+            if (heapSize == 0) {
+                return;
+            }
+            int cursor = heap[index];
+            while (true) {
+                int child = 2 * index + 1;
+                if (child >= heapSize) {
+                    break;
+                }
+                if (child + 1 < heapSize && before(heap[child + 1], heap[child])) {
+                    child++;
+                }
+                if (!before(heap[child], cursor)) {
+                    break;
+                }
+                heap[index] = heap[child];
+                index = child;
+            }
+            heap[index] = cursor;
+        }
+    }
+}
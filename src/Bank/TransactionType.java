@@ -7,6 +7,8 @@ package Bank;
  * <ul>
  *     <li>{@link #DEPOSIT}</li>
  *     <li>{@link #WITHDRAW}</li>
+ *     <li>{@link #TRANSFER_IN}</li>
+ *     <li>{@link #TRANSFER_OUT}</li>
  * </ul>
  * </p>
  */
@@ -15,10 +17,39 @@ public enum TransactionType {
     /**
      * Represents a transaction where money is added to an account.
      */
-    DEPOSIT,
+    DEPOSIT(true),
 
     /**
      * Represents a transaction where money is taken out of an account.
      */
-    WITHDRAW
+    WITHDRAW(false),
+
+    /**
+     * Represents money received by an account from a transfer.
+     */
+    TRANSFER_IN(true),
+
+    /**
+     * Represents money sent from an account by a transfer.
+     */
+    TRANSFER_OUT(false);
+
+    /**
+     * Whether the transaction adds its amount to the account's balance.
+     */
+    private final boolean credit;
+
+    TransactionType(boolean credit) {
+        this.credit = credit;
+    }
+
+    /**
+     * Returns whether a transaction of this type adds its amount to the account's balance,
+     * rather than taking it out.
+     *
+     * @return true for deposits and incoming transfers, false otherwise.
+     */
+    public boolean isCredit() {
+        return credit;
+    }
 }
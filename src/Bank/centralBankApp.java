@@ -3,11 +3,16 @@
  */
 package Bank;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Paths;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class provides the main application for interacting with the central bank operations.
@@ -28,6 +33,13 @@ import java.util.Scanner;
  * </p>
  * <p>
  * The application assumes a single central bank instance and all operations are performed on this instance.
+ * If a journal file is given as the first argument, the bank is restored from it on startup,
+ * every operation is recorded in it and the bank is checkpointed every few minutes.
+ * The bank's metrics are published over JMX, and also written to the log every minute while serving.
+ * Given "--port" and a port number, the same operations are served to network clients
+ * by a {@link BankServer} instead of the console, and given "--binary-port" and a port number,
+ * pipelined binary clients are served by a {@link BinaryBankServer}. Given "--export" and a directory,
+ * every transaction is written there by a {@link TransactionExporter} instead.
  * </p>
  */
 public class centralBankApp {
@@ -35,10 +47,48 @@ public class centralBankApp {
 	/**
      * Main entry point for the application.
      * 
-     * @param args Command line arguments (not used in this application).
+     * @param args Command line arguments; optionally the path of the bank's journal file,
+     *             "--port" followed by a port number to serve the line protocol instead of the console,
+     *             "--binary-port" followed by a port number to serve the binary protocol,
+     *             and "--export" followed by a directory to export every transaction there and exit,
+     *             with "--export-format" followed by "csv" or "binary" choosing the encoding.
+     * @throws IOException If the journal cannot be read or written.
      */
-	public static void main(String[] args) {
-		CentralBank HSBC = new CentralBank();
+	public static void main(String[] args) throws IOException {
+		String journalPath = null;
+		int port = -1;
+		int binaryPort = -1;
+		String exportDirectory = null;
+		TransactionExporter.Format exportFormat = TransactionExporter.Format.CSV;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--port") && i + 1 < args.length) {
+				port = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--binary-port") && i + 1 < args.length) {
+				binaryPort = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--export") && i + 1 < args.length) {
+				exportDirectory = args[++i];
+			} else if (args[i].equals("--export-format") && i + 1 < args.length) {
+				exportFormat = TransactionExporter.Format.valueOf(args[++i].toUpperCase());
+			} else {
+				journalPath = args[i];
+			}
+		}
+		CentralBank HSBC = journalPath != null ? CentralBank.open(Paths.get(journalPath)) : new CentralBank();
+		if (exportDirectory != null) {
+			TransactionExporter.Result result = new TransactionExporter(HSBC)
+					.export(Paths.get(exportDirectory), exportFormat, Runtime.getRuntime().availableProcessors());
+			System.out.println(result);
+			HSBC.close();
+			return;
+		}
+		if (journalPath != null) {
+			HSBC.scheduleCheckpoints(5, TimeUnit.MINUTES);
+		}
+		HSBC.getMetrics().registerMBean("HSBC");
+		if (port >= 0 || binaryPort >= 0) {
+			serve(HSBC, port, binaryPort);
+			return;
+		}
 		
 		while(true) {
 			Menu m = new Menu("HSBC Bank App", options);
@@ -46,6 +96,7 @@ public class centralBankApp {
 			
 			if(choice ==10) {
 				System.out.println("Thank you for using our bank");
+				HSBC.close();
 				break;
 			}
 			processChoice(choice, HSBC);
@@ -55,6 +106,47 @@ public class centralBankApp {
 
 	}
 	
+	/**
+     * Serves the bank to network clients until the process is shut down, then closes the bank.
+     * 
+     * @param bank The bank to serve.
+     * @param port The port to serve the line protocol on, or -1 for none.
+     * @param binaryPort The port to serve the binary protocol on, or -1 for none.
+     * @throws IOException If a port cannot be bound.
+     */
+	private static void serve(CentralBank bank, int port, int binaryPort) throws IOException {
+		bank.getMetrics().scheduleLogging(1, TimeUnit.MINUTES);
+		BankServer server = port >= 0 ? new BankServer(bank, port) : null;
+		BinaryBankServer binaryServer = binaryPort >= 0
+				? new BinaryBankServer(bank, binaryPort, Runtime.getRuntime().availableProcessors()) : null;
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				if (server != null) {
+					server.close();
+				}
+				if (binaryServer != null) {
+					binaryServer.close();
+				}
+				bank.close();
+			} catch (IOException e) {
+				System.err.println("Failed to close the bank: " + e.getMessage());
+			}
+		}));
+		if (server != null) {
+			server.start();
+			System.out.println("HSBC Bank App listening on port " + server.getPort());
+		}
+		if (binaryServer != null) {
+			binaryServer.start();
+			System.out.println("HSBC Bank App serving the binary protocol on port " + binaryServer.getPort());
+		}
+	}
+	
+	/**
+     * The number of transactions read from the bank at a time when displaying a history.
+     */
+	private static final int HISTORY_PAGE_SIZE = 100;
+
 	 /**
      * Provides the menu options for the user interface.
      */
@@ -312,13 +404,27 @@ public class centralBankApp {
 	        return;
 	    }
 
-	    List<TransactionLog> logs = bank.getTransactionHistory(customer);
-	    if (logs.isEmpty()) {
+	    TransactionPage page = bank.getTransactionHistory(customer, TransactionPage.FIRST_PAGE, HISTORY_PAGE_SIZE);
+	    if (page.getTransactions().isEmpty()) {
 	        System.out.println("No transactions found.");
-	    } else {
-	        for (TransactionLog log : logs) {
-	            System.out.println(log);  // Assuming the TransactionLog class has an appropriate toString() method
+	        return;
+	    }
+	    // Reports are written straight into a buffered console writer, which is flushed but not closed.
+	    Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+	    try {
+	        while (true) {
+	            for (TransactionLog log : page.getTransactions()) {
+	                log.appendTo(out);
+	                out.append('\n');
+	            }
+	            if (!page.hasMore()) {
+	                break;
+	            }
+	            page = bank.getTransactionHistory(customer, page.getResumeToken(), HISTORY_PAGE_SIZE);
 	        }
+	        out.flush();
+	    } catch (IOException e) {
+	        System.out.println("Could not print transaction history: " + e.getMessage());
 	    }
 	}
 	